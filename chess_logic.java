@@ -1,27 +1,74 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
 
 
 /**
  * Class Main.
  */
 public final class Main {
+    /** Base of written counts. */
+    private static final int DECIMAL = 10;
+    /** Longest line of the output: two counts of ten digits, a space and a new line. */
+    static final int MAX_LINE_BYTES = 22;
+    /** Size of the output buffer. */
+    private static final int OUTPUT_BUFFER_BYTES = 1 << 16;
+    /** Output buffer of every thread, reused by every written file. */
+    private static final ThreadLocal<byte[]> OUTPUT_BUFFER =
+            ThreadLocal.withInitial(() -> new byte[OUTPUT_BUFFER_BYTES]);
 
     private Main() {
     }
 
-    /** instance {@code chessBoard} of class {@link Board}.
-     * that employs Chess logic
-     * */
-    private static Board chessBoard;
-
     /**
      * The main function that gets input values
      * and calls other functions.
@@ -31,107 +78,294 @@ public final class Main {
     public static void main(String[] args) {
 
         ErrorWriter err = new ErrorWriter();
+        RunOptions options = RunOptions.parse(args);
+
+        if (options.getError() != null) {
+            System.out.println(options.getError());
+            System.out.println(RunOptions.USAGE);
+            System.exit(1);
+        }
+
+        if (options.getShardWorker() != null) {
+            try {
+                new ShardWorker(Paths.get(options.getShardWorker())).run();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
 
-        int whiteK = 0;
-        int blackK = 0;
+        if (options.getTraceFile() != null) {
+            try {
+                EvaluationTrace.start(Paths.get(options.getTraceFile()));
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
 
-        Parse parser = new Parse();
+        if (options.getFuzzCases() > 0) {
+            new DifferentialFuzzer(options.getFuzzSeed()).run(options.getFuzzCases());
+            return;
+        }
+
+        if (options.isBatch()) {
+            new BatchEvaluator(options).run();
+            return;
+        }
 
         Path inputFile = Paths.get("input.txt");
-        try {
-            List<String> lines = Files.readAllLines(inputFile, StandardCharsets.UTF_8);
 
+        if (options.isPipeline()) {
+            new PipelinedRun(options).run(inputFile, "output.txt", err);
+            return;
+        }
 
-            int n = parser.parseBoardSize(lines);
-            chessBoard = new Board(n);
+        if (options.isVariants()) {
+            new VariantRun(err, options.isAggregate()).run(inputFile, "output.txt");
+            return;
+        }
 
-            int m = parser.parseNumberOfPieces(lines, n);
+        if (options.getShards() > 0) {
+            new ShardedRun(options).run(inputFile, "output.txt", err);
+            return;
+        }
 
-            final int maxArrLength = 1000;
-            int[] moves = new int[maxArrLength];
-            int[] captures = new int[maxArrLength];
-            final int numOfArguments = 4;
+        try {
+            if (usesSnapshot(options)
+                && evaluateSnapshot(inputFile, Paths.get(options.getSnapshotFile()), options, err)) {
+                return;
+            }
 
-            // Check on number of pieces
-            if (m != lines.size() - 2) {
-                err.reportFatalError(new InvalidNumberOfPiecesException());
+            if (SteadyStateRun.handles(options)) {
+                new SteadyStateRun(err, options.getEngine()).run(inputFile, "output.txt");
+                return;
             }
 
-            PiecePosition[] listOfFigures = new PiecePosition[maxArrLength];
+            Position position = loadPosition(inputFile, options, err);
 
-            for (int i = 0; i < m; i++) {
+            if (options.getPerftDepth() > 0) {
+                runPerft(new PerftBoard(position.getSize(), position.getPieces(), position.getCount()), options);
+                return;
+            }
 
-                String[] arr = lines.get(i + 2).split(" ");
-                if (arr.length != numOfArguments) {
-                    err.reportFatalError(new InvalidInputException());
-                }
-                String pieceName = parser.parsePieceType(arr[0]);
-                PieceColor color = PieceColor.parse(arr[1]);
-                if (pieceName.equals("King")) {
-                    if (whiteK >= 1 && color.equals(PieceColor.WHITE)) {
-                        err.reportFatalError(new InvalidGivenKingsException());
-                    } else if (blackK >= 1 && color.equals(PieceColor.BLACK)) {
-                        err.reportFatalError(new InvalidGivenKingsException());
-                    } else if (color.equals(PieceColor.WHITE)) {
-                        whiteK += 1;
-                    } else if (color.equals(PieceColor.BLACK)) {
-                        blackK += 1;
-                    }
-                }
-                PiecePosition pos = new PiecePosition(parser.parsePosition(arr[2], n),
-                                                      parser.parsePosition(arr[2 + 1], n));
+            if (options.getBenchEngines() != null) {
+                new EngineBenchmark().run(position, options.getBenchEngines());
+                return;
+            }
 
-                listOfFigures[i] = pos;
+            if (options.getQueryPieces() != null) {
+                int[] indices = queryIndices(options, position.getCount(), err);
+                int[] moves = new int[indices.length];
+                int[] captures = new int[indices.length];
+                position.evaluate(options, indices, moves, captures);
+                writeResults("output.txt", moves, captures, indices.length);
+            } else {
+                int[] moves = new int[position.getCount()];
+                int[] captures = new int[position.getCount()];
+                position.evaluate(options, moves, captures);
 
-                switch (pieceName) {
-                    case "Knight":
-                        chessBoard.addPiece(new Knight(pos, color));
-                        break;
-                    case "King":
-                        chessBoard.addPiece(new King(pos, color));
-                        break;
-                    case "Pawn":
-                        chessBoard.addPiece(new Pawn(pos, color));
-                        break;
-                    case "Bishop":
-                        chessBoard.addPiece(new Bishop(pos, color));
-                        break;
-                    case "Rook":
-                        chessBoard.addPiece(new Rook(pos, color));
-                        break;
-                    case "Queen":
-                        chessBoard.addPiece(new Queen(pos, color));
-                        break;
-                    default:
-                        break;
+                if (options.isAggregate()) {
+                    AggregateStatistics.of(position, moves, captures).write("output.txt");
+                } else {
+                    writeResults("output.txt", position, moves, captures);
                 }
-
             }
 
-            if (whiteK == 0 || blackK == 0) {
-                err.reportFatalError(new InvalidGivenKingsException());
+            if (usesSnapshot(options)) {
+                try {
+                    BoardSnapshot.write(Paths.get(options.getSnapshotFile()), position, Files.readAllBytes(inputFile));
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
             }
 
+        } catch (IOException e) {
+            err.reportFatalError(new InvalidInputException());
+        }
+
+    }
+
+    /**
+     * Is the snapshot of the board used, the counts of legal moves, of the move tree
+     * and of the benchmark need the pieces of the position.
+     *
+     * @param options the run options
+     * @return true if the board is saved to and evaluated from the snapshot
+     */
+    private static boolean usesSnapshot(RunOptions options) {
+        return options.getSnapshotFile() != null && !options.isLegalMoves() && options.getPerftDepth() == 0
+               && options.getBenchEngines() == null;
+    }
+
+    /**
+     * Evaluate the board saved in the snapshot of the input and write the output.
+     *
+     * @param inputFile    the input file
+     * @param snapshotFile the snapshot file
+     * @param options      the run options
+     * @param err          the error writer
+     * @return true if the output is written, false if there is no valid snapshot of the input
+     * @throws IOException if the input can not be read
+     */
+    private static boolean evaluateSnapshot(Path inputFile, Path snapshotFile, RunOptions options, ErrorWriter err)
+            throws IOException {
+        byte[] input = Files.readAllBytes(inputFile);
+        if (!Files.exists(snapshotFile)) {
+            return false;
+        }
+        try (BoardSnapshot snapshot = BoardSnapshot.open(snapshotFile, input)) {
+            int[] indices = options.getQueryPieces() != null ? queryIndices(options, snapshot.getCount(), err) : null;
+            int count = indices != null ? indices.length : snapshot.getCount();
+            int[] moves = new int[count];
+            int[] captures = new int[count];
+            if (indices != null) {
+                snapshot.evaluate(indices, moves, captures);
+            } else {
+                snapshot.evaluate(moves, captures);
+            }
+            if (indices == null && options.isAggregate()) {
+                AggregateStatistics.of(snapshot.getKinds(), moves, captures, count).write("output.txt");
+            } else {
+                writeResults("output.txt", moves, captures, count);
+            }
+            return true;
+        } catch (InvalidSnapshotException | IOException e) {
+            System.out.println(e.getMessage() + ", rebuilding " + snapshotFile);
+            return false;
+        }
+    }
 
-            for (int j = 0; j < m; j++) {
-                moves[j] = chessBoard.getPiecePossibleMovesCount(chessBoard.getPiece(listOfFigures[j]));
-                captures[j] = chessBoard.getPiecePossibleCapturesCount(chessBoard.getPiece(listOfFigures[j]));
+    /**
+     * Gets indices of the pieces to evaluate from their numbers,
+     * a number greater than the number of pieces is reported as an invalid input.
+     *
+     * @param options the run options
+     * @param count   the number of pieces
+     * @param err     the error writer
+     * @return the indices in the input order
+     */
+    private static int[] queryIndices(RunOptions options, int count, ErrorWriter err) {
+        int[] numbers = options.getQueryPieces();
+        int[] indices = new int[numbers.length];
+        for (int i = 0; i < numbers.length; i++) {
+            if (numbers[i] > count) {
+                err.reportFatalError(new InvalidInputException());
             }
+            indices[i] = numbers[i] - 1;
+        }
+        return indices;
+    }
+
+    /**
+     * Load position from the input file by the loader chosen by the options.
+     *
+     * @param inputFile the input file
+     * @param options   the run options
+     * @param err       the error writer
+     * @return the position
+     * @throws IOException if the input can not be read
+     */
+    private static Position loadPosition(Path inputFile, RunOptions options, ErrorWriter err) throws IOException {
+        if (options.isPrevalidate()) {
+            return new InputValidator(err).load(Files.readAllBytes(inputFile));
+        }
+        if (options.isParallelParse()) {
+            return new ParallelPieceParser(err).load(Files.readAllBytes(inputFile));
+        }
+        return Position.load(Files.readAllLines(inputFile, StandardCharsets.UTF_8), err);
+    }
 
+    /**
+     * Write moves and captures of every piece of the position to the file, one piece per line.
+     *
+     * @param fileName the name of output file
+     * @param position the position
+     * @param moves    the moves counts
+     * @param captures the captures counts
+     */
+    static void writeResults(String fileName, Position position, int[] moves, int[] captures) {
+        OutputEvent event = new OutputEvent();
+        event.begin();
+        writeResults(fileName, moves, captures, position.getCount());
+        event.tag(position.getSize(), position.getCount());
+        event.commit();
+    }
 
-            try (FileWriter writer = new FileWriter("output.txt", false)) {
-                for (int j = 0; j < m; j++) {
-                    writer.write(moves[j] + " " + captures[j]);
-                    writer.write('\n');
+    /**
+     * Write moves and captures of every piece to the file, one piece per line.
+     *
+     * @param fileName the name of output file
+     * @param moves    the moves counts
+     * @param captures the captures counts
+     * @param count    the number of pieces
+     */
+    static void writeResults(String fileName, int[] moves, int[] captures, int count) {
+        byte[] buffer = OUTPUT_BUFFER.get();
+        try (FileOutputStream out = new FileOutputStream(fileName, false)) {
+            int length = 0;
+            for (int j = 0; j < count; j++) {
+                if (length + MAX_LINE_BYTES > buffer.length) {
+                    out.write(buffer, 0, length);
+                    length = 0;
                 }
-            } catch (IOException e) {
-                System.out.println(e.getMessage());
+                length = appendCount(buffer, length, moves[j]);
+                buffer[length++] = ' ';
+                length = appendCount(buffer, length, captures[j]);
+                buffer[length++] = '\n';
             }
-
+            out.write(buffer, 0, length);
         } catch (IOException e) {
-            err.reportFatalError(new InvalidInputException());
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Append decimal digits of the count to the buffer.
+     *
+     * @param buffer the buffer
+     * @param length the length of the buffer content
+     * @param count  the count, not negative
+     * @return the new length
+     */
+    static int appendCount(byte[] buffer, int length, int count) {
+        int digits = 1;
+        for (int rest = count / DECIMAL; rest > 0; rest /= DECIMAL) {
+            digits += 1;
+        }
+        int value = count;
+        for (int k = length + digits - 1; k >= length; k--) {
+            buffer[k] = (byte) ('0' + value % DECIMAL);
+            value /= DECIMAL;
         }
+        return length + digits;
+    }
 
+    /**
+     * Count nodes of the move tree, write the count to the output file
+     * and report the throughput.
+     *
+     * @param board   the board of the root position
+     * @param options the run options
+     */
+    private static void runPerft(PerftBoard board, RunOptions options) {
+        final double nanosInSecond = 1e9;
+        PerftSearch search = new PerftSearch(board, options.getTableSizeMb());
+        long start = System.nanoTime();
+        long nodes = search.run(options.getPerftDepth());
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        System.out.println("perft " + options.getPerftDepth() + ": " + nodes + " nodes in "
+                           + elapsed / 1_000_000 + " ms, "
+                           + (long) (nodes * nanosInSecond / elapsed) + " nodes/sec");
+        if (search.getTable() != null) {
+            System.out.println("transposition table: " + search.getTable());
+        }
+        try (FileWriter writer = new FileWriter("output.txt", false)) {
+            writer.write(String.valueOf(nodes));
+            writer.write('\n');
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
     }
 
 }
@@ -140,211 +374,934 @@ public final class Main {
  * Class {@code ErrorWriter} to write exceptions to the file.
  */
 class ErrorWriter {
+    /** Name of the file the error is written to. */
+    private final String outputFile;
+
+    /**
+     * Instantiates a new Error writer to the output.txt.
+     */
+    ErrorWriter() {
+        this("output.txt");
+    }
+
+    /**
+     * Instantiates a new Error writer.
+     *
+     * @param fileName the name of output file
+     */
+    ErrorWriter(String fileName) {
+        this.outputFile = fileName;
+    }
+
     /**
      * Report fatal error.
      *
      * @param e the e
      */
     public void reportFatalError(Exception e) {
-        try (FileWriter writer = new FileWriter("output.txt", false)) {
+        if (writeError(e)) {
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Write the error to the output file without stopping the program.
+     *
+     * @param e the e
+     * @return true if the error was written
+     */
+    public boolean writeError(Exception e) {
+        try (FileWriter writer = new FileWriter(outputFile, false)) {
             writer.write(e.getMessage());
             writer.flush();
-            System.exit(0);
+            return true;
         } catch (Exception ex) {
             System.out.println(ex.getMessage());
+            return false;
         }
     }
 }
 
 /**
- * Class {@code Parse} to handle input values.
+ * Class {@code StopOnErrorWriter} that stops handling of the current input by throwing
+ * {@link RejectedInputException} instead of exiting, so that other inputs can be handled.
  */
-class Parse {
-
+class StopOnErrorWriter extends ErrorWriter {
     /**
-     * Instance of class {@link ErrorWriter}.
-     * Used to throw exceptions
+     * Report fatal error.
+     *
+     * @param e the e
      */
-    private ErrorWriter err = new ErrorWriter();
+    @Override
+    public void reportFatalError(Exception e) {
+        throw new RejectedInputException(e);
+    }
+}
+
+/**
+ * Class {@code RunOptions} to handle command line flags.
+ */
+class RunOptions {
+    /** Usage printed with the message of an invalid flag. */
+    static final String USAGE = "usage: java Main [--legal] [--engine=NAME] [--bench[=NAMES]] [--perft=DEPTH [--tt=MB]]"
+            + " [--pipeline] [--parallel-parse] [--prevalidate] [--trace=FILE] [--query=K,...] [--snapshot=FILE]"
+            + " [--variants] [--aggregate] [--shards=K [--max-size=N]] [--fuzz=COUNT [--seed=S]] [--batch FILE...]";
+
+    /** Flag that switches evaluation to counts of legal moves. */
+    private boolean legalMoves;
+    /** Depth of the move tree to count instead of evaluation, 0 if disabled. */
+    private int perftDepth;
+    /** Size of the table of searched subtrees in megabytes, 0 if disabled. */
+    private int tableSizeMb;
+    /** Flag that switches to evaluation of every input in {@link #inputs}. */
+    private boolean batch;
+    /** Names of input files given after the flags. */
+    private List<String> inputs = new ArrayList<>();
+    /** Flag that switches to the staged pipeline of parsing, building and evaluation. */
+    private boolean pipeline;
+    /** Flag that parses chunks of lines of pieces in parallel. */
+    private boolean parallelParse;
+    /** Flag that validates the bytes of the input before the position is built. */
+    private boolean prevalidate;
+    /** File of the recording of events, null if the run is not recorded. */
+    private String traceFile;
+    /** Number of random cases to compare engines and loaders on, 0 if disabled. */
+    private int fuzzCases;
+    /** Seed of the random cases. */
+    private long fuzzSeed = System.nanoTime();
+    /** Numbers of the pieces to evaluate from 1 in the input order, null if every piece is evaluated. */
+    private int[] queryPieces;
+    /** File of the snapshot of the board, null if the board is not saved. */
+    private String snapshotFile;
+    /** Flag that accepts pieces of every {@link PieceDescriptor} in the input. */
+    private boolean variants;
+    /** Flag that writes {@link AggregateStatistics} instead of a line of every piece. */
+    private boolean aggregate;
+    /** Number of strips counted by worker processes, 0 if the position is evaluated in this process. */
+    private int shards;
+    /** Largest board size of the sharded evaluation. */
+    private int maxBoardSize = Parse.MAX_BOARD_SIZE;
+    /** Strip file of a {@link ShardWorker} process, null if this process is not a worker. */
+    private String shardWorker;
+    /** Name of the engine that evaluates positions. */
+    private String engine = "auto";
+    /** Names of engines to benchmark, null if the benchmark is disabled. */
+    private List<String> benchEngines;
+    /** Message of the first invalid flag, null if every flag is valid. */
+    private String error;
 
     /**
-     * Function to parse the size of {@link Board}.
+     * Function to parse command line flags, unknown flags are ignored.
      *
-     * @param fileContent the file content - an array of file lines
-     * @return the size of Board
+     * @param args the input arguments
+     * @return the run options
      */
-    public int parseBoardSize(List<String> fileContent) {
+    public static RunOptions parse(String[] args) {
+        RunOptions options = new RunOptions();
+        for (String arg: args) {
+            if (arg.equals("--legal")) {
+                options.legalMoves = true;
+            } else if (arg.startsWith("--perft=")) {
+                options.perftDepth = options.parseValue(arg, "--perft=", 0);
+            } else if (arg.startsWith("--tt=")) {
+                options.tableSizeMb = options.parseValue(arg, "--tt=", 0);
+            } else if (arg.startsWith("--engine=")) {
+                String name = arg.substring("--engine=".length());
+                if (options.checkEngine(arg, name)) {
+                    options.engine = name;
+                }
+            } else if (arg.equals("--bench")) {
+                options.benchEngines = EvaluationEngine.names();
+            } else if (arg.startsWith("--bench=")) {
+                options.benchEngines = Arrays.asList(arg.substring("--bench=".length()).split(","));
+                options.benchEngines.forEach(name -> options.checkEngine(arg, name));
+            } else if (arg.equals("--pipeline")) {
+                options.pipeline = true;
+            } else if (arg.equals("--parallel-parse")) {
+                options.parallelParse = true;
+            } else if (arg.equals("--prevalidate")) {
+                options.prevalidate = true;
+            } else if (arg.startsWith("--trace=")) {
+                options.traceFile = arg.substring("--trace=".length());
+            } else if (arg.startsWith("--query=")) {
+                options.queryPieces = Arrays.stream(arg.substring("--query=".length()).split(","))
+                        .mapToInt(number -> options.parseValue("--query=" + number, "--query=", 1))
+                        .toArray();
+            } else if (arg.equals("--variants")) {
+                options.variants = true;
+            } else if (arg.equals("--aggregate")) {
+                options.aggregate = true;
+            } else if (arg.startsWith("--shards=")) {
+                options.shards = options.parseValue(arg, "--shards=", 1);
+            } else if (arg.startsWith("--max-size=")) {
+                options.maxBoardSize = options.parseValue(arg, "--max-size=", Parse.MIN_BOARD_SIZE);
+            } else if (arg.startsWith("--shard-worker=")) {
+                options.shardWorker = arg.substring("--shard-worker=".length());
+            } else if (arg.startsWith("--snapshot=")) {
+                options.snapshotFile = arg.substring("--snapshot=".length());
+            } else if (arg.startsWith("--fuzz=")) {
+                options.fuzzCases = options.parseValue(arg, "--fuzz=", 0);
+            } else if (arg.startsWith("--seed=")) {
+                try {
+                    options.fuzzSeed = Long.parseLong(arg.substring("--seed=".length()));
+                } catch (NumberFormatException e) {
+                    options.reject(arg, "a number");
+                }
+            } else if (arg.equals("--batch")) {
+                options.batch = true;
+            } else if (!arg.startsWith("--")) {
+                options.inputs.add(arg);
+            }
+        }
+        options.checkCombinations();
+        return options;
+    }
+
+    private void checkCombinations() {
+        rejectWith("--variants", "--legal", variants && legalMoves);
+        if (shards > 0) {
+            rejectWith("--shards", "--legal", legalMoves);
+            rejectWith("--shards", "--query", queryPieces != null);
+            rejectWith("--shards", "--perft", perftDepth > 0);
+            rejectWith("--shards", "--bench", benchEngines != null);
+            rejectWith("--shards", "--snapshot", snapshotFile != null);
+            rejectWith("--shards", "--variants", variants);
+            rejectWith("--shards", "--pipeline", pipeline);
+            rejectWith("--shards", "--batch", batch);
+        }
+    }
+
+    private void rejectWith(String flag, String other, boolean given) {
+        if (given && error == null) {
+            error = "invalid flags: " + flag + " can not be combined with " + other;
+        }
+    }
+
+    private int parseValue(String arg, String prefix, int min) {
         try {
-            Integer.parseInt(fileContent.get(0));
+            int value = Integer.parseInt(arg.substring(prefix.length()));
+            if (value >= min) {
+                return value;
+            }
         } catch (NumberFormatException e) {
-            err.reportFatalError(new InvalidBoardSizeException());
+            // Rejected below
         }
+        reject(arg, "a whole number of at least " + min);
+        return min;
+    }
 
-        int localBoardSize = Integer.parseInt(fileContent.get(0));
-        final int minBoardSize = 3;
-        final int maxBoardSize = 1000;
-        if (localBoardSize < minBoardSize || localBoardSize > maxBoardSize) {
-            err.reportFatalError(new InvalidBoardSizeException());
+    private boolean checkEngine(String arg, String name) {
+        if (EvaluationEngine.names().contains(name) || name.equals("auto")) {
+            return true;
+        }
+        reject(arg, "engines of auto, " + String.join(", ", EvaluationEngine.names()));
+        return false;
+    }
+
+    private void reject(String arg, String expected) {
+        if (error == null) {
+            error = "invalid flag " + arg + ": expected " + expected;
         }
-        return localBoardSize;
     }
 
     /**
-     * Function to parse number of pieces on the {@link Board}.
+     * Gets message of the first invalid flag, such as a value that is not a number.
      *
-     * @param fileContent    the file content
-     * @param localBoardSize the local board size
-     * @return the int
+     * @return the message, null if every flag is valid
      */
-    public int parseNumberOfPieces(List<String> fileContent, int localBoardSize) {
-        try {
-            Integer.parseInt(fileContent.get(1));
-        } catch (NumberFormatException e) {
-            err.reportFatalError(new InvalidNumberOfPiecesException());
-        }
-        int localNumOfPieces = Integer.parseInt(fileContent.get(1));
-        if (localNumOfPieces < 2 || localNumOfPieces > Math.pow(localBoardSize, 2)) {
-            err.reportFatalError(new InvalidNumberOfPiecesException());
-        }
-        return localNumOfPieces;
+    public String getError() {
+        return error;
     }
 
     /**
-     * Function to parse {@link ChessPiece} type.
+     * Is legal moves mode enabled.
      *
-     * @param piece the piece
-     * @return the string - an exception message
+     * @return true if pins and checks have to be taken into account
      */
-    public String parsePieceType(String piece) {
-        String[] listOfTypes = {"Pawn", "King", "Knight", "Rook", "Queen", "Bishop"};
-        for (String elem: listOfTypes) {
-            if (piece.equals(elem)) {
-                return piece;
-            }
-        }
-        err.reportFatalError(new InvalidPieceNameException());
-        return piece;
+    public boolean isLegalMoves() {
+        return legalMoves;
     }
 
+    /**
+     * Gets depth of the move tree to count.
+     *
+     * @return the depth, 0 if the move tree is not counted
+     */
+    public int getPerftDepth() {
+        return perftDepth;
+    }
 
     /**
-     * Parse position int.
+     * Gets size of the table of searched subtrees.
      *
-     * @param coordinate the coordinate of {@link ChessPiece}
-     * @param n          the {@code boardSize} value
-     * @return the int - if position is valid
+     * @return the size in megabytes, 0 if the table is disabled
      */
-    public int parsePosition(String coordinate, int n) {
-        try {
-            Integer.parseInt(coordinate);
-        } catch (NumberFormatException e) {
-            err.reportFatalError(new InvalidPiecePositionException());
-        }
-        int localPosition = Integer.parseInt(coordinate);
-        if (localPosition < 1 || localPosition > n) {
-            err.reportFatalError(new InvalidPiecePositionException());
-        }
-        return localPosition;
+    public int getTableSizeMb() {
+        return tableSizeMb;
     }
-}
 
+    /**
+     * Is batch mode enabled.
+     *
+     * @return true if every input file has to be evaluated
+     */
+    public boolean isBatch() {
+        return batch;
+    }
 
-/**
- * Class {@code PiecePosition}, correlates coordinates to Pieces on {@link Board}.
- */
-class PiecePosition {
-    /** Variable describing the X coordinate of {@link ChessPiece}. */
-    private int x;
-    /** Variable describing the Y coordinate of {@link ChessPiece}. */
-    private int y;
+    /**
+     * Gets names of input files.
+     *
+     * @return the input files
+     */
+    public List<String> getInputs() {
+        return inputs;
+    }
 
     /**
-     * Instantiates a new Piece position.
+     * Is the staged pipeline enabled.
      *
-     * @param onX the x
-     * @param onY the y
+     * @return true if parsing, building and evaluation run as a pipeline
      */
-    PiecePosition(int onX, int onY) {
-        this.x = onX;
-        this.y = onY;
+    public boolean isPipeline() {
+        return pipeline;
     }
 
     /**
-     * Gets x.
+     * Is parallel parsing of the lines of pieces enabled.
      *
-     * @return the x
+     * @return true if chunks of lines are parsed in parallel
      */
-    public int getX() {
-        return x;
+    public boolean isParallelParse() {
+        return parallelParse;
     }
 
     /**
-     * Gets y.
+     * Is validation of the bytes of the input before building enabled.
      *
-     * @return the y
+     * @return true if the input is validated first
      */
-    public int getY() {
-        return y;
+    public boolean isPrevalidate() {
+        return prevalidate;
     }
 
-    public String toString() {
-        return x + " " + y;
+    /**
+     * Gets file of the recording of events.
+     *
+     * @return the file name, null if the run is not recorded
+     */
+    public String getTraceFile() {
+        return traceFile;
     }
-}
 
-/**
- * The enum {@code PieceColor}, correlates color with {@link ChessPiece}.
- */
-enum PieceColor {
     /**
-     * White piece color.
+     * Gets numbers of the pieces to evaluate.
+     *
+     * @return the numbers from 1 in the input order, null if every piece is evaluated
      */
-    WHITE,
+    public int[] getQueryPieces() {
+        return queryPieces;
+    }
+
     /**
-     * Black piece color.
+     * Are pieces of every descriptor accepted.
+     *
+     * @return true if variant pieces such as the Camel are accepted
      */
-    BLACK;
+    public boolean isVariants() {
+        return variants;
+    }
 
     /**
-     * Function to parse color of piece on the {@link Board}.
+     * Is the summary of the counts written instead of the counts of every piece.
      *
-     * @param color the color
-     * @return the piece color
+     * @return true if the output is the aggregate statistics
+     */
+    public boolean isAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * Gets number of strips counted by worker processes.
+     *
+     * @return the number of strips, 0 if the position is evaluated in this process
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * Gets largest board size of the sharded evaluation.
+     *
+     * @return the board size
+     */
+    public int getMaxBoardSize() {
+        return maxBoardSize;
+    }
+
+    /**
+     * Gets strip file of a worker process.
+     *
+     * @return the file name, null if this process is not a worker
+     */
+    public String getShardWorker() {
+        return shardWorker;
+    }
+
+    /**
+     * Gets file of the snapshot of the board.
+     *
+     * @return the file name, null if the board is not saved
+     */
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * Gets number of random cases to compare engines and loaders on.
+     *
+     * @return the number of cases, 0 if disabled
+     */
+    public int getFuzzCases() {
+        return fuzzCases;
+    }
+
+    /**
+     * Gets seed of the random cases.
+     *
+     * @return the seed
+     */
+    public long getFuzzSeed() {
+        return fuzzSeed;
+    }
+
+    /**
+     * Gets name of the engine.
+     *
+     * @return the name of engine
+     */
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * Gets names of engines to benchmark.
+     *
+     * @return the names, null if the benchmark is disabled
+     */
+    public List<String> getBenchEngines() {
+        return benchEngines;
+    }
+}
+
+/**
+ * Class {@code Parse} to handle input values.
+ */
+class Parse {
+    /** Smallest board size of the input. */
+    static final int MIN_BOARD_SIZE = 3;
+    /** Largest board size of the input. */
+    static final int MAX_BOARD_SIZE = 1000;
+
+    /**
+     * Instance of class {@link ErrorWriter}.
+     * Used to throw exceptions
+     */
+    private ErrorWriter err;
+    /** Largest board size accepted by this parser. */
+    private final int maxBoardSize;
+
+    /**
+     * Instantiates a new Parse that writes errors to the output.txt.
+     */
+    Parse() {
+        this(new ErrorWriter());
+    }
+
+    /**
+     * Instantiates a new Parse.
+     *
+     * @param errorWriter the error writer
+     */
+    Parse(ErrorWriter errorWriter) {
+        this(errorWriter, MAX_BOARD_SIZE);
+    }
+
+    /**
+     * Instantiates a new Parse that accepts boards up to the given size.
+     *
+     * @param errorWriter the error writer
+     * @param maxSize     the largest board size
+     */
+    Parse(ErrorWriter errorWriter, int maxSize) {
+        this.err = errorWriter;
+        this.maxBoardSize = maxSize;
+    }
+
+    /**
+     * Function to parse the size of {@link Board}.
+     *
+     * @param fileContent the file content - an array of file lines
+     * @return the size of Board
+     */
+    public int parseBoardSize(List<String> fileContent) {
+        try {
+            Integer.parseInt(fileContent.get(0));
+        } catch (NumberFormatException e) {
+            err.reportFatalError(new InvalidBoardSizeException());
+        }
+
+        int localBoardSize = Integer.parseInt(fileContent.get(0));
+        if (localBoardSize < MIN_BOARD_SIZE || localBoardSize > maxBoardSize) {
+            err.reportFatalError(new InvalidBoardSizeException());
+        }
+        return localBoardSize;
+    }
+
+    /**
+     * Function to parse number of pieces on the {@link Board}.
+     *
+     * @param fileContent    the file content
+     * @param localBoardSize the local board size
+     * @return the int
+     */
+    public int parseNumberOfPieces(List<String> fileContent, int localBoardSize) {
+        try {
+            Integer.parseInt(fileContent.get(1));
+        } catch (NumberFormatException e) {
+            err.reportFatalError(new InvalidNumberOfPiecesException());
+        }
+        int localNumOfPieces = Integer.parseInt(fileContent.get(1));
+        if (localNumOfPieces < 2 || localNumOfPieces > Math.pow(localBoardSize, 2)) {
+            err.reportFatalError(new InvalidNumberOfPiecesException());
+        }
+        return localNumOfPieces;
+    }
+
+    /**
+     * Function to parse {@link ChessPiece} type.
+     *
+     * @param piece the piece
+     * @return the string - an exception message
+     */
+    public String parsePieceType(String piece) {
+        String[] listOfTypes = {"Pawn", "King", "Knight", "Rook", "Queen", "Bishop"};
+        for (String elem: listOfTypes) {
+            if (piece.equals(elem)) {
+                return piece;
+            }
+        }
+        err.reportFatalError(new InvalidPieceNameException());
+        return piece;
+    }
+
+
+    /**
+     * Parse position int.
+     *
+     * @param coordinate the coordinate of {@link ChessPiece}
+     * @param n          the {@code boardSize} value
+     * @return the int - if position is valid
+     */
+    public int parsePosition(String coordinate, int n) {
+        try {
+            Integer.parseInt(coordinate);
+        } catch (NumberFormatException e) {
+            err.reportFatalError(new InvalidPiecePositionException());
+        }
+        int localPosition = Integer.parseInt(coordinate);
+        if (localPosition < 1 || localPosition > n) {
+            err.reportFatalError(new InvalidPiecePositionException());
+        }
+        return localPosition;
+    }
+}
+
+
+/**
+ * Class {@code PiecePosition}, correlates coordinates to Pieces on {@link Board}.
+ */
+class PiecePosition {
+    /** Variable describing the X coordinate of {@link ChessPiece}. */
+    private int x;
+    /** Variable describing the Y coordinate of {@link ChessPiece}. */
+    private int y;
+
+    /**
+     * Instantiates a new Piece position.
+     *
+     * @param onX the x
+     * @param onY the y
+     */
+    PiecePosition(int onX, int onY) {
+        this.x = onX;
+        this.y = onY;
+    }
+
+    /**
+     * Gets x.
+     *
+     * @return the x
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Gets y.
+     *
+     * @return the y
+     */
+    public int getY() {
+        return y;
+    }
+
+    public String toString() {
+        return x + " " + y;
+    }
+}
+
+/**
+ * The enum {@code PieceColor}, correlates color with {@link ChessPiece}.
+ */
+enum PieceColor {
+    /**
+     * White piece color.
+     */
+    WHITE,
+    /**
+     * Black piece color.
+     */
+    BLACK;
+
+    /**
+     * Function to parse color of piece on the {@link Board}.
+     *
+     * @param color the color
+     * @return the piece color
      */
     public static PieceColor parse(String color) {
+        return parse(color, new ErrorWriter());
+    }
+
+    /**
+     * Function to parse color of piece on the {@link Board}.
+     *
+     * @param color the color
+     * @param err   the error writer
+     * @return the piece color
+     */
+    public static PieceColor parse(String color, ErrorWriter err) {
         if (!(color.equals("Black")) && !(color.equals("White"))) {
-            new ErrorWriter().reportFatalError(new InvalidPieceColorException());
+            err.reportFatalError(new InvalidPieceColorException());
         } else if (color.equals("Black")) {
             return PieceColor.BLACK;
         }
 
         return PieceColor.WHITE;
     }
+
+    /**
+     * Get the opposite color.
+     *
+     * @return the piece color of the enemy
+     */
+    public PieceColor opposite() {
+        return this == WHITE ? BLACK : WHITE;
+    }
+
+    /**
+     * Get the vertical step of Pawn of this color.
+     *
+     * @return 1 for White and -1 for Black
+     */
+    public int forward() {
+        return this == WHITE ? 1 : -1;
+    }
 }
 
 
 /**
- * The interface Bishop movement.
+ * The enum {@code PieceType}, correlates type with {@link ChessPiece}.
  */
-interface BishopMovement {
+enum PieceType {
     /**
-     * Gets diagonal moves count.
+     * Pawn piece type.
+     */
+    PAWN,
+    /**
+     * King piece type.
+     */
+    KING,
+    /**
+     * Knight piece type.
+     */
+    KNIGHT,
+    /**
+     * Rook piece type.
+     */
+    ROOK,
+    /**
+     * Queen piece type.
+     */
+    QUEEN,
+    /**
+     * Bishop piece type.
+     */
+    BISHOP;
+
+    /**
+     * Does piece of this type slide along ranks and files.
      *
-     * @param position  the position
-     * @param color     the color
-     * @param positions the positions Map
-     * @param boardSize the board size
-     * @return the diagonal moves count
+     * @return true for Rook and Queen
      */
-    default int getDiagonalMovesCount(PiecePosition position,
-                                     PieceColor color,
-                                     Map<String, ChessPiece> positions,
-                                     int boardSize) {
-        int x = position.getX();
-        int y = position.getY();
-        int leftDownMove = Integer.MAX_VALUE;
-        int rightDownMove = Integer.MAX_VALUE;
-        int leftUpMove = Integer.MAX_VALUE;
+    public boolean isOrthogonalSlider() {
+        return this == ROOK || this == QUEEN;
+    }
+
+    /**
+     * Does piece of this type slide along diagonals.
+     *
+     * @return true for Bishop and Queen
+     */
+    public boolean isDiagonalSlider() {
+        return this == BISHOP || this == QUEEN;
+    }
+
+    /**
+     * Does piece of this type slide in the direction.
+     *
+     * @param direction the index of direction in {@link Directions}
+     * @return true if piece slides in the direction
+     */
+    public boolean slidesAlong(int direction) {
+        return direction < Directions.ORTHOGONAL ? isOrthogonalSlider() : isDiagonalSlider();
+    }
+
+    /**
+     * Gets type by the name of input, as checked by {@link Parse#parsePieceType(String)}.
+     *
+     * @param name the name, such as "Knight"
+     * @return the piece type
+     */
+    public static PieceType fromName(String name) {
+        switch (name) {
+            case "Pawn":
+                return PAWN;
+            case "King":
+                return KING;
+            case "Knight":
+                return KNIGHT;
+            case "Rook":
+                return ROOK;
+            case "Queen":
+                return QUEEN;
+            default:
+                return BISHOP;
+        }
+    }
+
+    /**
+     * Create piece of this type.
+     *
+     * @param position the position
+     * @param color    the color
+     * @return the chess piece
+     */
+    public ChessPiece newPiece(PiecePosition position, PieceColor color) {
+        switch (this) {
+            case PAWN:
+                return new Pawn(position, color);
+            case KING:
+                return new King(position, color);
+            case KNIGHT:
+                return new Knight(position, color);
+            case ROOK:
+                return new Rook(position, color);
+            case QUEEN:
+                return new Queen(position, color);
+            default:
+                return new Bishop(position, color);
+        }
+    }
+}
+
+/**
+ * Class {@code Directions} that holds steps of sliding and jumping pieces.
+ */
+final class Directions {
+    /** Horizontal steps of directions, first four are orthogonal, last four are diagonal,
+     * the opposite direction of {@code d} is {@code d ^ 1}. */
+    static final int[] DX = {1, -1, 0, 0, 1, -1, 1, -1};
+    /** Vertical steps of directions, paired with {@link #DX}. */
+    static final int[] DY = {0, 0, 1, -1, 1, -1, -1, 1};
+    /** Horizontal steps of Knight jumps. */
+    static final int[] KNIGHT_DX = {-2, -2, -1, -1, 1, 1, 2, 2};
+    /** Vertical steps of Knight jumps, paired with {@link #KNIGHT_DX}. */
+    static final int[] KNIGHT_DY = {-1, 1, -2, 2, -2, 2, -1, 1};
+    /** Number of orthogonal directions in {@link #DX}. */
+    static final int ORTHOGONAL = 4;
+
+    private Directions() {
+    }
+}
+
+/**
+ * Class {@code BoardGeometry}, tables of an empty board of one size: lengths of rays from every cell
+ * along every direction of {@link Directions} and the Knight and King targets that stay on the board.
+ * Tables are built for a size on first use and are shared by all boards, positions and threads.
+ * The tables take 18 bytes a cell, so only the sizes used last are kept and an evicted size is built again.
+ */
+final class BoardGeometry {
+    /** Number of board sizes whose tables are kept, batches usually share a handful of sizes. */
+    private static final int CACHED_SIZES = 4;
+    /** Geometry of the sizes used last, in the order of use, the least recently used size is evicted. */
+    private static final Map<Integer, BoardGeometry> BY_SIZE = new LinkedHashMap<>(2 * CACHED_SIZES, 1, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, BoardGeometry> eldest) {
+            return size() > CACHED_SIZES;
+        }
+    };
+    /** Geometry returned last, boards of a run usually have the same size. */
+    private static volatile BoardGeometry last;
+
+    /** A variable that represents size of a ChessBoard. */
+    private final int size;
+    /** Number of empty cells from every cell to the edge, {@code cell * DX.length + direction}. */
+    private final short[] rayLengths;
+    /** Bits of Knight jumps of every cell that stay on the board, in the order of {@link Directions#KNIGHT_DX}. */
+    private final byte[] knightTargets;
+    /** Bits of King steps of every cell that stay on the board, in the order of {@link Directions#DX}. */
+    private final byte[] kingTargets;
+
+    private BoardGeometry(int boardSize) {
+        this.size = boardSize;
+        int directions = Directions.DX.length;
+        this.rayLengths = new short[boardSize * boardSize * directions];
+        this.knightTargets = new byte[boardSize * boardSize];
+        this.kingTargets = new byte[boardSize * boardSize];
+        for (int y = 1; y <= boardSize; y++) {
+            for (int x = 1; x <= boardSize; x++) {
+                int cell = (y - 1) * boardSize + x - 1;
+                for (int d = 0; d < directions; d++) {
+                    int length = Math.min(distance(x, Directions.DX[d]), distance(y, Directions.DY[d]));
+                    rayLengths[cell * directions + d] = (short) length;
+                    if (length > 0) {
+                        kingTargets[cell] |= 1 << d;
+                    }
+                }
+                for (int k = 0; k < Directions.KNIGHT_DX.length; k++) {
+                    if (isOnBoard(x + Directions.KNIGHT_DX[k]) && isOnBoard(y + Directions.KNIGHT_DY[k])) {
+                        knightTargets[cell] |= 1 << k;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets geometry of the board size.
+     *
+     * @param boardSize the board size
+     * @return the geometry shared by all boards of this size
+     */
+    public static BoardGeometry forSize(int boardSize) {
+        BoardGeometry geometry = last;
+        if (geometry == null || geometry.size != boardSize) {
+            synchronized (BY_SIZE) {
+                geometry = BY_SIZE.get(boardSize);
+            }
+            if (geometry == null) {
+                BoardGeometry built = new BoardGeometry(boardSize);
+                synchronized (BY_SIZE) {
+                    geometry = BY_SIZE.computeIfAbsent(boardSize, key -> built);
+                }
+            }
+            last = geometry;
+        }
+        return geometry;
+    }
+
+    /**
+     * Gets number of cells from the cell to the edge of an empty board.
+     *
+     * @param x         the x
+     * @param y         the y
+     * @param direction the direction of {@link Directions}
+     * @return the length of the ray
+     */
+    public int getRayLength(int x, int y, int direction) {
+        return rayLengths[((y - 1) * size + x - 1) * Directions.DX.length + direction];
+    }
+
+    /**
+     * Is the Knight jump from the cell on the board.
+     *
+     * @param x    the x
+     * @param y    the y
+     * @param jump the jump of {@link Directions#KNIGHT_DX}
+     * @return true if the target is on the board
+     */
+    public boolean isKnightTarget(int x, int y, int jump) {
+        return (knightTargets[(y - 1) * size + x - 1] >> jump & 1) != 0;
+    }
+
+    /**
+     * Is the King step from the cell on the board.
+     *
+     * @param x         the x
+     * @param y         the y
+     * @param direction the direction of {@link Directions}
+     * @return true if the target is on the board
+     */
+    public boolean isKingTarget(int x, int y, int direction) {
+        return (kingTargets[(y - 1) * size + x - 1] >> direction & 1) != 0;
+    }
+
+    private int distance(int coordinate, int step) {
+        if (step > 0) {
+            return size - coordinate;
+        }
+        return step < 0 ? coordinate - 1 : Integer.MAX_VALUE;
+    }
+
+    private boolean isOnBoard(int coordinate) {
+        return coordinate >= 1 && coordinate <= size;
+    }
+}
+
+
+/**
+ * The interface Bishop movement.
+ */
+interface BishopMovement {
+    /** Direction of {@link Directions} to the right and up. */
+    int RIGHT_UP = 4;
+    /** Direction of {@link Directions} to the left and down. */
+    int LEFT_DOWN = 5;
+    /** Direction of {@link Directions} to the right and down. */
+    int RIGHT_DOWN = 6;
+    /** Direction of {@link Directions} to the left and up. */
+    int LEFT_UP = 7;
+
+    /**
+     * Gets diagonal moves count.
+     *
+     * @param position  the position
+     * @param color     the color
+     * @param positions the positions Map
+     * @param boardSize the board size
+     * @return the diagonal moves count
+     */
+    default int getDiagonalMovesCount(PiecePosition position,
+                                     PieceColor color,
+                                     Map<String, ChessPiece> positions,
+                                     int boardSize) {
+        int x = position.getX();
+        int y = position.getY();
+        int leftDownMove = Integer.MAX_VALUE;
+        int rightDownMove = Integer.MAX_VALUE;
+        int leftUpMove = Integer.MAX_VALUE;
         int rightUpMove = Integer.MAX_VALUE;
         int numOfMoves = 0;
         for (Map.Entry<String, ChessPiece> pair: positions.entrySet()) {
@@ -361,750 +1318,7364 @@ interface BishopMovement {
             }
         }
 
+        BoardGeometry geometry = BoardGeometry.forSize(boardSize);
         if (leftDownMove != Integer.MAX_VALUE) {
             numOfMoves += leftDownMove;
         } else {
-            numOfMoves += Math.min(x - 1, y - 1);
+            numOfMoves += geometry.getRayLength(x, y, LEFT_DOWN);
+        }
+        if (leftUpMove != Integer.MAX_VALUE) {
+            numOfMoves += leftUpMove;
+        } else {
+            numOfMoves += geometry.getRayLength(x, y, LEFT_UP);
+        }
+        if (rightDownMove != Integer.MAX_VALUE) {
+            numOfMoves += rightDownMove;
+        } else {
+            numOfMoves += geometry.getRayLength(x, y, RIGHT_DOWN);
+        }
+        if (rightUpMove != Integer.MAX_VALUE) {
+            numOfMoves += rightUpMove;
+        } else {
+            numOfMoves += geometry.getRayLength(x, y, RIGHT_UP);
+        }
+
+        numOfMoves += getDiagonalCapturesCount(position, color, positions, boardSize);
+
+        return numOfMoves;
+    }
+
+
+    /**
+     * Get diagonal captures count int.
+     *
+     * @param position  the position
+     * @param color     the color
+     * @param positions the positions
+     * @param boardSize the board size
+     * @return the diagonal captures count
+     */
+    default int getDiagonalCapturesCount(PiecePosition position,
+                                        PieceColor color,
+                                        Map<String, ChessPiece> positions,
+                                        int boardSize) {
+        int x = position.getX();
+        int y = position.getY();
+        boolean leftDownCapture = false;
+        boolean rightDownCapture = false;
+        boolean leftUpCapture = false;
+        boolean rightUpCapture = false;
+        int minLeftUpDistance = Integer.MAX_VALUE;
+        int minLeftDownDistance = Integer.MAX_VALUE;
+        int minRightUpDistance = Integer.MAX_VALUE;
+        int minRightDownDistance = Integer.MAX_VALUE;
+        int numOfCaptures = 0;
+        for (Map.Entry<String, ChessPiece> pair: positions.entrySet()) {
+            if (color.equals(pair.getValue().getColor())) {
+                int moveX = pair.getValue().getPosition().getX();
+                int moveY = pair.getValue().getPosition().getY();
+                if (x - moveX == y - moveY && x - moveX > 0) {
+                    minLeftDownDistance = Math.min(minLeftDownDistance, x - moveX);
+                }
+                if (x - moveX == moveY - y && x - moveX > 0) {
+                    minLeftUpDistance = Math.min(minLeftUpDistance, x - moveX);
+                }
+                if (moveX - x == y - moveY && moveX - x > 0) {
+                    minRightDownDistance = Math.min(minRightDownDistance, moveX - x);
+                }
+                if (moveX - x == moveY - y && moveX - x > 0) {
+                    minRightUpDistance = Math.min(minRightUpDistance, moveX - x);
+                }
+            }
+        }
+        for (Map.Entry<String, ChessPiece> pair: positions.entrySet()) {
+            if (!color.equals(pair.getValue().getColor())) {
+                int moveX = Integer.parseInt(pair.getKey().split(" ")[0]);
+                int moveY = Integer.parseInt(pair.getKey().split(" ")[1]);
+                if (x - moveX == y - moveY && x - moveX > 0 && x - moveX < minLeftDownDistance) {
+                    leftDownCapture = true;
+                }
+                if (x - moveX == moveY - y && x - moveX > 0 && x - moveX < minLeftUpDistance) {
+                    leftUpCapture = true;
+                }
+                if (moveX - x == y - moveY && moveX - x > 0 && moveX - x < minRightDownDistance) {
+                    rightDownCapture = true;
+                }
+                if (moveX - x == moveY - y && moveX - x > 0 && moveX - x < minRightUpDistance) {
+                    rightUpCapture = true;
+                }
+            }
+        }
+        if (leftUpCapture) {
+            numOfCaptures += 1;
+        }
+        if (rightUpCapture) {
+            numOfCaptures += 1;
+        }
+        if (leftDownCapture) {
+            numOfCaptures += 1;
+        }
+        if (rightDownCapture) {
+            numOfCaptures += 1;
+        }
+        return numOfCaptures;
+    }
+}
+
+/**
+ * The interface Rook movement.
+ */
+interface RookMovement {
+    /** Direction of {@link Directions} to the right. */
+    int RIGHT = 0;
+    /** Direction of {@link Directions} to the left. */
+    int LEFT = 1;
+    /** Direction of {@link Directions} up. */
+    int UP = 2;
+    /** Direction of {@link Directions} down. */
+    int DOWN = 3;
+
+    /**
+     * Gets orthogonal moves count.
+     *
+     * @param position  the position
+     * @param color     the color
+     * @param positions the positions
+     * @param boardSize the board size
+     * @return the orthogonal moves count
+     */
+    default int getOrthogonalMovesCount(PiecePosition position,
+                                               PieceColor color,
+                                               Map<String, ChessPiece> positions,
+                                               int boardSize) {
+        int x = position.getX();
+        int y = position.getY();
+        int upMove = Integer.MAX_VALUE;
+        int downMove = Integer.MAX_VALUE;
+        int leftMove = Integer.MAX_VALUE;
+        int rightMove = Integer.MAX_VALUE;
+        int numOfMoves = 0;
+        for (Map.Entry<String, ChessPiece> pair : positions.entrySet()) {
+            int moveX = pair.getValue().position.getX();
+            int moveY = pair.getValue().position.getY();
+            if (x == moveX) {
+                if (moveY - y > 0) {
+                    upMove = Math.min(upMove, moveY - y - 1);
+                } else if (moveY - y < 0) {
+                    downMove = Math.min(downMove, y - moveY - 1);
+                }
+            } else if (y == moveY) {
+                if (moveX - x > 0) {
+                    rightMove = Math.min(rightMove, moveX - x - 1);
+                } else if (moveX - x < 0) {
+                    leftMove = Math.min(leftMove, x - moveX - 1);
+                }
+            }
+        }
+        BoardGeometry geometry = BoardGeometry.forSize(boardSize);
+        if (upMove != Integer.MAX_VALUE) {
+            numOfMoves += upMove;
+        } else {
+            numOfMoves += geometry.getRayLength(x, y, UP);
+        }
+        if (rightMove != Integer.MAX_VALUE) {
+            numOfMoves += rightMove;
+        } else {
+            numOfMoves += geometry.getRayLength(x, y, RIGHT);
+        }
+        if (leftMove != Integer.MAX_VALUE) {
+            numOfMoves += leftMove;
+        } else {
+            numOfMoves += geometry.getRayLength(x, y, LEFT);
+        }
+        if (downMove != Integer.MAX_VALUE) {
+            numOfMoves += downMove;
+        } else {
+            numOfMoves += geometry.getRayLength(x, y, DOWN);
+        }
+
+        numOfMoves += getOrthogonalCapturesCount(position, color, positions, boardSize);
+
+        return numOfMoves;
+    }
+
+
+    /**
+     * Gets orthogonal captures count.
+     *
+     * @param position  the position
+     * @param color     the color
+     * @param positions the positions
+     * @param boardSize the board size
+     * @return the orthogonal captures count
+     */
+    default int getOrthogonalCapturesCount(PiecePosition position,
+                                                  PieceColor color,
+                                                  Map<String, ChessPiece> positions,
+                                                  int boardSize) {
+        int x = position.getX();
+        int y = position.getY();
+        boolean leftCapture = false;
+        boolean rightCapture = false;
+        boolean upCapture = false;
+        boolean downCapture = false;
+        int minDistanceUp = Integer.MAX_VALUE;
+        int minDistanceDown = Integer.MAX_VALUE;
+        int minDistanceLeft = Integer.MAX_VALUE;
+        int minDistanceRight = Integer.MAX_VALUE;
+        for (Map.Entry<String, ChessPiece> pair: positions.entrySet()) {
+            if (pair.getValue().getColor().equals(color)) {
+                int moveX = pair.getValue().getPosition().getX();
+                int moveY = pair.getValue().getPosition().getY();
+                if (moveX == x) {
+                    if (moveY - y > 0) {
+                        minDistanceUp = Math.min(minDistanceUp, moveY - y);
+                    } else if (moveY - y < 0) {
+                        minDistanceDown = Math.min(minDistanceDown, y - moveY);
+                    }
+                }
+                if (moveY == y) {
+                    if (moveX - x > 0) {
+                        minDistanceRight = Math.min(minDistanceRight, moveX - x);
+                    } else if (moveX - x < 0) {
+                        minDistanceLeft = Math.min(minDistanceLeft, x - moveX);
+                    }
+                }
+            }
+        }
+        int numOfCaptures = 0;
+        for (Map.Entry<String, ChessPiece> pair : positions.entrySet()) {
+            if (!pair.getValue().getColor().equals(color)) {
+                int moveX = pair.getValue().getPosition().getX();
+                int moveY = pair.getValue().getPosition().getY();
+                if (moveX == x) {
+                    if (moveY - y > 0 && moveY - y < minDistanceUp) {
+                        upCapture = true;
+                    } else if (moveY - y < 0 && y - moveY < minDistanceDown) {
+                        downCapture = true;
+                    }
+                } else if (moveY == y) {
+                    if (moveX - x > 0 && moveX - x < minDistanceRight) {
+                        rightCapture = true;
+                    } else if (moveX - x < 0 && x - moveX < minDistanceLeft) {
+                        leftCapture = true;
+                    }
+                }
+            }
+        }
+        if (leftCapture) {
+            numOfCaptures += 1;
+        }
+        if (rightCapture) {
+            numOfCaptures += 1;
+        }
+        if (upCapture) {
+            numOfCaptures += 1;
+        }
+        if (downCapture) {
+            numOfCaptures += 1;
+        }
+
+        return numOfCaptures;
+    }
+}
+
+/**
+ * Class {@code ChessPiece}, super class for all Pieces.
+ */
+abstract class ChessPiece {
+    /**
+     * The Position variable, describes coordinates of {@link ChessPiece}.
+     */
+    protected PiecePosition position;
+    /**
+     * The Color, describes color of {@link ChessPiece}.
+     */
+    protected PieceColor color;
+
+    /**
+     * Instantiates a new Chess piece.
+     *
+     * @param piecePosition the piece position
+     * @param pieceColor    the color
+     */
+    ChessPiece(PiecePosition piecePosition, PieceColor pieceColor) {
+        this.position = piecePosition;
+        this.color = pieceColor;
+    }
+
+    /**
+     * Get position piece position.
+     *
+     * @return the piece position
+     */
+    public PiecePosition getPosition() {
+        return position;
+    }
+
+    /**
+     * Get color piece color.
+     *
+     * @return the piece color
+     */
+    public PieceColor getColor() {
+        return color;
+    }
+
+    /**
+     * Gets moves count.
+     *
+     * @param positions the positions
+     * @param boardSize the board size
+     * @return the moves count
+     */
+    public abstract int getMovesCount(Map<String, ChessPiece> positions, int boardSize);
+
+    /**
+     * Gets captures count.
+     *
+     * @param positions the positions
+     * @param boardSize the board size
+     * @return the captures count
+     */
+    public abstract int getCapturesCount(Map<String, ChessPiece> positions, int boardSize);
+
+    /**
+     * Get type piece type.
+     *
+     * @return the piece type
+     */
+    public abstract PieceType getType();
+
+}
+
+/**
+ * Class Knight of type {@link ChessPiece}.
+ */
+class Knight extends ChessPiece {
+    /**
+     * Instantiates a new Knight.
+     *
+     * @param position the position
+     * @param color    the color
+     */
+    Knight(PiecePosition position, PieceColor color) {
+        super(position, color);
+    }
+
+    /** function that returns type of Knight. */
+    @Override
+    public PieceType getType() {
+        return PieceType.KNIGHT;
+    }
+
+    /** function that counts possible moves for Knight. */
+    @Override
+    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
+        int numOfMoves = 0;
+        int coordX = this.position.getX();
+        int coordY = this.position.getY();
+        BoardGeometry geometry = BoardGeometry.forSize(boardSize);
+        for (int k = 0; k < Directions.KNIGHT_DX.length; k++) {
+            if (geometry.isKnightTarget(coordX, coordY, k)
+                    && !positions.containsKey(coordX + Directions.KNIGHT_DX[k] + " "
+                                              + (coordY + Directions.KNIGHT_DY[k]))) {
+                numOfMoves += 1;
+            }
+        }
+
+        numOfMoves += getCapturesCount(positions, boardSize);
+
+        return numOfMoves;
+    }
+
+    /** function that counts possible captures for Knight. */
+    @Override
+    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
+        int coordX = this.position.getX();
+        int coordY = this.position.getY();
+        int numOfCaptures = 0;
+        for (Map.Entry<String, ChessPiece> pair: positions.entrySet()) {
+            int moveX = Integer.parseInt(pair.getKey().split(" ")[0]);
+            int moveY = Integer.parseInt(pair.getKey().split(" ")[1]);
+            if (!(pair.getValue().getColor().equals(this.color))) {
+                if (moveX == coordX - 2) {
+                    if (moveY == coordY - 1) {
+                        numOfCaptures += 1;
+                    }
+                    if (moveY == coordY + 1) {
+                        numOfCaptures += 1;
+                    }
+                } else if (moveX == coordX - 1) {
+                    if (moveY == coordY - 2) {
+                        numOfCaptures += 1;
+                    }
+                    if (moveY == coordY + 2) {
+                        numOfCaptures += 1;
+                    }
+                } else if (moveX == coordX + 1) {
+                    if (moveY == coordY - 2) {
+                        numOfCaptures += 1;
+                    }
+                    if (moveY == coordY + 2) {
+                        numOfCaptures += 1;
+                    }
+                } else if (moveX == coordX + 2) {
+                    if (moveY == coordY - 1) {
+                        numOfCaptures += 1;
+                    }
+                    if (moveY == coordY + 1) {
+                        numOfCaptures += 1;
+                    }
+                }
+            }
+        }
+        return numOfCaptures;
+    }
+}
+
+/**
+ * Class King of type {@link ChessPiece}.
+ */
+class King extends ChessPiece {
+    /**
+     * Instantiates a new King.
+     *
+     * @param position the position
+     * @param color    the color
+     */
+    King(PiecePosition position, PieceColor color) {
+        super(position, color);
+    }
+
+    /** function that returns type of King. */
+    @Override
+    public PieceType getType() {
+        return PieceType.KING;
+    }
+
+    /** function that counts possible moves for King. */
+    @Override
+    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
+        int numOfMoves = 0;
+        int x = this.position.getX();
+        int y = this.position.getY();
+        BoardGeometry geometry = BoardGeometry.forSize(boardSize);
+        for (int d = 0; d < Directions.DX.length; d++) {
+            if (geometry.isKingTarget(x, y, d)
+                    && !(positions.containsKey(x + Directions.DX[d] + " " + (y + Directions.DY[d])))) {
+                numOfMoves += 1;
+            }
+        }
+
+        numOfMoves += getCapturesCount(positions, boardSize);
+
+        return numOfMoves;
+    }
+
+    /** function that counts possible captures for King. */
+    @Override
+    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
+        int numOfCaptures = 0;
+        int coordX = this.position.getX();
+        int coordY = this.position.getY();
+        for (Map.Entry<String, ChessPiece> pair: positions.entrySet()) {
+            if (!(pair.getValue().getColor().equals(this.color))) {
+                int moveX = Integer.parseInt(pair.getKey().split(" ")[0]);
+                int moveY = Integer.parseInt(pair.getKey().split(" ")[1]);
+                if (moveX == coordX - 1) {
+                    if (moveY == coordY - 1) {
+                        numOfCaptures += 1;
+                    }
+                    if (moveY == coordY + 1) {
+                        numOfCaptures += 1;
+                    }
+                    if (moveY == coordY) {
+                        numOfCaptures += 1;
+                    }
+                } else if (moveX == coordX + 1) {
+                    if (moveY == coordY - 1) {
+                        numOfCaptures += 1;
+                    }
+                    if (moveY == coordY + 1) {
+                        numOfCaptures += 1;
+                    }
+                    if (moveY == coordY) {
+                        numOfCaptures += 1;
+                    }
+                } else if (moveX == coordX) {
+                    if (moveY == coordY - 1) {
+                        numOfCaptures += 1;
+                    }
+                    if (moveY == coordY + 1) {
+                        numOfCaptures += 1;
+                    }
+                }
+            }
+        }
+        return numOfCaptures;
+    }
+}
+
+/**
+ * Class Pawn of type {@link ChessPiece}.
+ */
+class Pawn extends ChessPiece {
+    /**
+     * Instantiates a new Pawn.
+     *
+     * @param position the position
+     * @param color    the color
+     */
+    Pawn(PiecePosition position, PieceColor color) {
+        super(position, color);
+    }
+
+    /** function that returns type of Pawn. */
+    @Override
+    public PieceType getType() {
+        return PieceType.PAWN;
+    }
+
+    /** function that counts possible moves for Pawn. */
+    @Override
+    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
+        int coordX = this.position.getX();
+        int coordY = this.position.getY();
+        int numOfMoves = 0;
+        if (color == PieceColor.WHITE) {
+            if (coordY + 1 < boardSize + 1
+            && !positions.containsKey(String.valueOf(coordX) + " " + String.valueOf(coordY + 1))) {
+                numOfMoves += 1;
+            }
+        } else if (color == PieceColor.BLACK) {
+            if (coordY - 1 > 0
+            && !positions.containsKey(String.valueOf(coordX) + " " + String.valueOf(coordY - 1))) {
+                numOfMoves += 1;
+            }
+        }
+        numOfMoves += getCapturesCount(positions, boardSize);
+        return numOfMoves;
+    }
+
+    /** function that counts possible captures for Pawn. */
+    @Override
+    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
+        int coordX = this.position.getX();
+        int coordY = this.position.getY();
+        int numOfCaptures = 0;
+        for (Map.Entry<String, ChessPiece> pair: positions.entrySet()) {
+            String moveY = pair.getKey().split(" ")[1];
+            String moveX = pair.getKey().split(" ")[0];
+            if (!pair.getValue().getColor().equals(this.color)) {
+                if (this.color.equals(PieceColor.WHITE)) {
+                    if (moveX.equals(String.valueOf(coordX + 1)) && moveY.equals(String.valueOf(coordY + 1))) {
+                        numOfCaptures += 1;
+                    }
+                    if (moveX.equals(String.valueOf(coordX - 1)) && moveY.equals(String.valueOf(coordY + 1))) {
+                        numOfCaptures += 1;
+                    }
+                } else if (this.color.equals(PieceColor.BLACK)) {
+                    if (moveX.equals(String.valueOf(coordX + 1)) && moveY.equals(String.valueOf(coordY - 1))) {
+                        numOfCaptures += 1;
+                    }
+                    if (moveX.equals(String.valueOf(coordX - 1)) && moveY.equals(String.valueOf(coordY - 1))) {
+                        numOfCaptures += 1;
+                    }
+                }
+            }
+        }
+        return numOfCaptures;
+    }
+}
+
+/**
+ * Class Bishop of type {@link ChessPiece}.
+ */
+class Bishop extends ChessPiece implements BishopMovement {
+    /**
+     * Instantiates a new Bishop.
+     *
+     * @param position the position
+     * @param color    the color
+     */
+    Bishop(PiecePosition position, PieceColor color) {
+        super(position, color);
+    }
+
+    /** function that returns type of Bishop. */
+    @Override
+    public PieceType getType() {
+        return PieceType.BISHOP;
+    }
+
+
+    /** function that calls implementation of possible moves counter for Bishop. */
+    @Override
+    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
+        return getDiagonalMovesCount(this.position, this.color, positions, boardSize);
+    }
+
+    /** function that calls implementation of possible captures counter for Bishop. */
+    @Override
+    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
+        return getDiagonalCapturesCount(this.position, this.color, positions, boardSize);
+    }
+}
+
+
+/**
+ * Class Rook of type {@link ChessPiece}.
+ */
+class Rook extends ChessPiece implements RookMovement {
+    /**
+     * Instantiates a new Rook.
+     *
+     * @param position the position
+     * @param color    the color
+     */
+    Rook(PiecePosition position, PieceColor color) {
+        super(position, color);
+    }
+
+    /** function that returns type of Rook. */
+    @Override
+    public PieceType getType() {
+        return PieceType.ROOK;
+    }
+
+    /** function that calls implementation of possible moves counter for Rook. */
+    @Override
+    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
+        return getOrthogonalMovesCount(this.position, this.color, positions, boardSize);
+    }
+
+    /** function that calls implementation of possible captures counter for Rook. */
+    @Override
+    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
+        return getOrthogonalCapturesCount(this.position, this.color, positions, boardSize);
+    }
+}
+
+/**
+ * Class Queen of type {@link ChessPiece}.
+ */
+class Queen extends ChessPiece implements BishopMovement, RookMovement {
+    /**
+     * Instantiates a new Queen.
+     *
+     * @param position the position
+     * @param color    the color
+     */
+    Queen(PiecePosition position, PieceColor color) {
+        super(position, color);
+    }
+
+    /** function that returns type of Queen. */
+    @Override
+    public PieceType getType() {
+        return PieceType.QUEEN;
+    }
+
+    /** function that calls implementation of possible moves counter for Queen. */
+    @Override
+    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
+        return getDiagonalMovesCount(this.position, this.color, positions, boardSize)
+               + getOrthogonalMovesCount(this.position, this.color, positions, boardSize);
+    }
+
+    /** function that calls implementation of possible captures counter for Queen. */
+    @Override
+    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
+        return getDiagonalCapturesCount(this.position, this.color, positions, boardSize)
+               + getOrthogonalCapturesCount(this.position, this.color, positions, boardSize);
+    }
+}
+
+/**
+ * Class Board that interconnects instances of {@link ChessPiece}.
+ */
+class Board {
+
+    /**
+     * Instance of class {@link ErrorWriter}.
+     * Used to throw exceptions
+     */
+    private ErrorWriter err;
+    /**
+     * The Positions to pieces {@link HashMap} - used to bind {@link ChessPiece} with {@link PiecePosition}.
+     */
+    private Map<String, ChessPiece> positionsToPieces = new HashMap();
+
+    /** A variable that represents size of a ChessBoard. */
+    private int size;
+
+    /** Keys of pieces on cells of this board size. */
+    private ZobristKeys keys;
+
+    /** Zobrist hash of the pieces on the board, updated by every change of the board. */
+    private long hash;
+
+    /** Counts of queried pieces, dropped by every change of the board. */
+    private PieceQuery query;
+
+    /**
+     * Instantiates a new Board.
+     *
+     * @param boardSize the board size
+     */
+    Board(int boardSize) {
+        this(boardSize, new ErrorWriter());
+    }
+
+    /**
+     * Instantiates a new Board.
+     *
+     * @param boardSize   the board size
+     * @param errorWriter the error writer
+     */
+    Board(int boardSize, ErrorWriter errorWriter) {
+        this.size = boardSize;
+        this.err = errorWriter;
+        this.keys = ZobristKeys.forSize(boardSize);
+    }
+
+    /**
+     * Gets size.
+     *
+     * @return the size of Board
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Gets hash of the position, equal positions of the same board size have equal hashes.
+     *
+     * @return the Zobrist hash
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * Gets piece possible moves count.
+     *
+     * @param piece the piece
+     * @return the piece possible moves count
+     */
+    public int getPiecePossibleMovesCount(ChessPiece piece) {
+        return piece.getMovesCount(positionsToPieces, size);
+    }
+
+    /**
+     * Gets piece possible captures count.
+     *
+     * @param piece the piece
+     * @return the piece possible captures count
+     */
+    public int getPiecePossibleCapturesCount(ChessPiece piece) {
+        return piece.getCapturesCount(positionsToPieces, size);
+    }
+
+    /**
+     * Gets view of the pieces that counts the entries read through it.
+     *
+     * @return the view
+     */
+    public ScanCountingMap getCountingView() {
+        return new ScanCountingMap(positionsToPieces);
+    }
+
+    /**
+     * Gets query of counts of chosen pieces, it is kept until the board changes.
+     *
+     * @return the query
+     */
+    public PieceQuery query() {
+        if (query == null) {
+            query = new PieceQuery(positionsToPieces, size);
+        }
+        return query;
+    }
+
+    /**
+     * Add piece.
+     *
+     * @param piece the piece
+     */
+    public void addPiece(ChessPiece piece) {
+        String coordinates = piece.position.getX() + " " + piece.position.getY();
+        if (positionsToPieces.containsKey(coordinates)) {
+            err.reportFatalError(new InvalidPiecePositionException());
+        }
+        positionsToPieces.put(coordinates, piece);
+        hash ^= keyOf(piece);
+        query = null;
+    }
+
+    /**
+     * Remove piece.
+     *
+     * @param position the position
+     * @return the removed piece, null if the cell was empty
+     */
+    public ChessPiece removePiece(PiecePosition position) {
+        ChessPiece piece = positionsToPieces.remove(position.toString());
+        if (piece != null) {
+            hash ^= keyOf(piece);
+            query = null;
+        }
+        return piece;
+    }
+
+    private long keyOf(ChessPiece piece) {
+        return keys.get(piece.position.getX(), piece.position.getY(), piece.getType(), piece.getColor());
+    }
+
+    /**
+     * Gets piece.
+     *
+     * @param position the position
+     * @return the piece
+     */
+    public ChessPiece getPiece(PiecePosition position) {
+        return positionsToPieces.get(position.toString());
+    }
+}
+
+/**
+ * Class {@code PieceQuery} that counts moves and captures of chosen pieces of a {@link Board} on demand.
+ * A piece is counted on a map of only the pieces that can stop it or be captured by it:
+ * the cells around a Knight, King or Pawn, the lines through a Rook, Bishop or Queen.
+ * Only the lines through queried pieces are collected, by probing their cells, and kept for later queries,
+ * the counts of every queried piece are kept, so a repeated query reads them back.
+ */
+final class PieceQuery {
+    /** Farthest cell a Knight, King or Pawn reaches along a coordinate. */
+    private static final int REACH = 2;
+
+    /** Pieces of the board by their cells. */
+    private final Map<String, ChessPiece> positionsToPieces;
+    /** A variable that represents size of a ChessBoard. */
+    private final int size;
+    /** Pieces of the rows of queried Rooks and Queens by y. */
+    private final Map<Integer, List<ChessPiece>> rows = new HashMap<>();
+    /** Pieces of the columns of queried Rooks and Queens by x. */
+    private final Map<Integer, List<ChessPiece>> columns = new HashMap<>();
+    /** Pieces of the diagonals of queried Bishops and Queens by x - y. */
+    private final Map<Integer, List<ChessPiece>> diagonals = new HashMap<>();
+    /** Pieces of the anti-diagonals of queried Bishops and Queens by x + y. */
+    private final Map<Integer, List<ChessPiece>> antiDiagonals = new HashMap<>();
+    /** Moves and captures of the queried pieces by their cells. */
+    private final Map<String, int[]> counts = new HashMap<>();
+
+    /**
+     * Instantiates a new Piece query.
+     *
+     * @param pieces    the pieces of the board by their cells
+     * @param boardSize the board size
+     */
+    PieceQuery(Map<String, ChessPiece> pieces, int boardSize) {
+        this.positionsToPieces = pieces;
+        this.size = boardSize;
+    }
+
+    /**
+     * Count moves and captures of the pieces on the cells.
+     *
+     * @param squares  the cells of the pieces
+     * @param moves    the array to store moves count of the piece on every cell
+     * @param captures the array to store captures count of the piece on every cell
+     */
+    public void evaluate(List<PiecePosition> squares, int[] moves, int[] captures) {
+        for (int k = 0; k < squares.size(); k++) {
+            int[] result = countsOf(squares.get(k));
+            moves[k] = result[0];
+            captures[k] = result[1];
+        }
+    }
+
+    /**
+     * Gets moves count of the piece on the cell.
+     *
+     * @param square the cell of the piece
+     * @return the moves count
+     */
+    public int getMovesCount(PiecePosition square) {
+        return countsOf(square)[0];
+    }
+
+    /**
+     * Gets captures count of the piece on the cell.
+     *
+     * @param square the cell of the piece
+     * @return the captures count
+     */
+    public int getCapturesCount(PiecePosition square) {
+        return countsOf(square)[1];
+    }
+
+    /**
+     * Gets number of queried pieces whose counts are kept.
+     *
+     * @return the number of pieces
+     */
+    public int getCountedPieces() {
+        return counts.size();
+    }
+
+    private int[] countsOf(PiecePosition square) {
+        String key = square.toString();
+        int[] result = counts.get(key);
+        if (result == null) {
+            ChessPiece piece = positionsToPieces.get(key);
+            if (piece == null) {
+                throw new IllegalArgumentException("no piece on " + key);
+            }
+            Map<String, ChessPiece> reachable = reachableFrom(piece);
+            result = new int[] {piece.getMovesCount(reachable, size), piece.getCapturesCount(reachable, size)};
+            counts.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Collect the pieces that the counts of the piece depend on.
+     *
+     * @param piece the piece
+     * @return the pieces by their cells
+     */
+    private Map<String, ChessPiece> reachableFrom(ChessPiece piece) {
+        int x = piece.getPosition().getX();
+        int y = piece.getPosition().getY();
+        Map<String, ChessPiece> result = new HashMap<>();
+        if (piece instanceof RookMovement) {
+            addAll(result, rows.computeIfAbsent(y, row -> line(1, row, 1, 0)));
+            addAll(result, columns.computeIfAbsent(x, column -> line(column, 1, 0, 1)));
+        }
+        if (piece instanceof BishopMovement) {
+            addAll(result, diagonals.computeIfAbsent(x - y,
+                    d -> line(Math.max(1, 1 + d), Math.max(1, 1 - d), 1, 1)));
+            addAll(result, antiDiagonals.computeIfAbsent(x + y,
+                    sum -> line(Math.max(1, sum - size), Math.min(size, sum - 1), 1, -1)));
+        }
+        if (!(piece instanceof RookMovement) && !(piece instanceof BishopMovement)) {
+            for (int dx = -REACH; dx <= REACH; dx++) {
+                for (int dy = -REACH; dy <= REACH; dy++) {
+                    String key = (x + dx) + " " + (y + dy);
+                    ChessPiece near = positionsToPieces.get(key);
+                    if (near != null) {
+                        result.put(key, near);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Collect the pieces of one line by probing its cells, at most the board size of them.
+     *
+     * @param fromX the x of the first cell of the line
+     * @param fromY the y of the first cell of the line
+     * @param dx    the step along x
+     * @param dy    the step along y
+     * @return the pieces of the line
+     */
+    private List<ChessPiece> line(int fromX, int fromY, int dx, int dy) {
+        List<ChessPiece> result = new ArrayList<>();
+        for (int x = fromX, y = fromY; x >= 1 && x <= size && y >= 1 && y <= size; x += dx, y += dy) {
+            ChessPiece piece = positionsToPieces.get(x + " " + y);
+            if (piece != null) {
+                result.add(piece);
+            }
+        }
+        return result;
+    }
+
+    private static void addAll(Map<String, ChessPiece> result, List<ChessPiece> line) {
+        for (ChessPiece piece: line) {
+            result.put(piece.getPosition().toString(), piece);
+        }
+    }
+}
+
+/**
+ * Class {@code PieceRecords}, pieces of consecutive lines of the input kept in primitive arrays.
+ */
+class PieceRecords {
+    /** Types of pieces, {@link PieceType#values()} copies the array on every call. */
+    private static final PieceType[] TYPES = PieceType.values();
+    /** Colors of pieces. */
+    private static final PieceColor[] COLORS = PieceColor.values();
+
+    /** Index of the first piece in the input order. */
+    private final int firstIndex;
+    /** Types of pieces as {@link PieceType#ordinal()}. */
+    private byte[] types;
+    /** Colors of pieces as {@link PieceColor#ordinal()}. */
+    private byte[] colors;
+    /** X coordinates of pieces. */
+    private int[] xs;
+    /** Y coordinates of pieces. */
+    private int[] ys;
+    /** Number of pieces. */
+    private int size;
+
+    /**
+     * Instantiates new empty Piece records.
+     *
+     * @param first    the index of the first piece in the input order
+     * @param capacity the expected number of pieces
+     */
+    PieceRecords(int first, int capacity) {
+        this.firstIndex = first;
+        this.types = new byte[Math.max(1, capacity)];
+        this.colors = new byte[types.length];
+        this.xs = new int[types.length];
+        this.ys = new int[types.length];
+    }
+
+    /**
+     * Add piece.
+     *
+     * @param type  the type
+     * @param color the color
+     * @param x     the x
+     * @param y     the y
+     */
+    public void add(PieceType type, PieceColor color, int x, int y) {
+        if (size == types.length) {
+            types = Arrays.copyOf(types, size * 2);
+            colors = Arrays.copyOf(colors, size * 2);
+            xs = Arrays.copyOf(xs, size * 2);
+            ys = Arrays.copyOf(ys, size * 2);
+        }
+        types[size] = (byte) type.ordinal();
+        colors[size] = (byte) color.ordinal();
+        xs[size] = x;
+        ys[size] = y;
+        size += 1;
+    }
+
+    /**
+     * Create the piece of the record.
+     *
+     * @param i the index of record
+     * @return the chess piece
+     */
+    public ChessPiece newPiece(int i) {
+        return getType(i).newPiece(new PiecePosition(xs[i], ys[i]), getColor(i));
+    }
+
+    /**
+     * Gets type.
+     *
+     * @param i the index of record
+     * @return the piece type
+     */
+    public PieceType getType(int i) {
+        return TYPES[types[i]];
+    }
+
+    /**
+     * Gets color.
+     *
+     * @param i the index of record
+     * @return the piece color
+     */
+    public PieceColor getColor(int i) {
+        return COLORS[colors[i]];
+    }
+
+    /**
+     * Gets x.
+     *
+     * @param i the index of record
+     * @return the x
+     */
+    public int getX(int i) {
+        return xs[i];
+    }
+
+    /**
+     * Gets y.
+     *
+     * @param i the index of record
+     * @return the y
+     */
+    public int getY(int i) {
+        return ys[i];
+    }
+
+    /**
+     * Remove every record, the arrays are kept for the next ones.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Gets index of the first piece in the input order.
+     *
+     * @return the index
+     */
+    public int getFirstIndex() {
+        return firstIndex;
+    }
+
+    /**
+     * Gets number of pieces.
+     *
+     * @return the number of pieces
+     */
+    public int size() {
+        return size;
+    }
+}
+
+/**
+ * Class {@code PieceLineParser} that checks lines of pieces in the input order and counts Kings,
+ * the errors of a line are reported in the order of priority.
+ */
+class PieceLineParser {
+    /** Number of values in a line of piece. */
+    private static final int NUM_OF_ARGUMENTS = 4;
+
+    /** The parser of values. */
+    private final Parse parser;
+    /** The error writer. */
+    private final ErrorWriter err;
+    /** A variable that represents size of a ChessBoard. */
+    private final int size;
+    /** Are Kings counted, lines parsed out of the input order leave the count to the caller. */
+    private final boolean countsKings;
+    /** Are pieces of every {@link PieceDescriptor} accepted, not only of every {@link PieceType}. */
+    private final boolean variants;
+    /** Number of White Kings. */
+    private int whiteK;
+    /** Number of Black Kings. */
+    private int blackK;
+    /** Type of the last line, null if its name is not valid. */
+    private PieceType lineType;
+    /** Color of the last line, null if its color is not valid. */
+    private PieceColor lineColor;
+    /** Descriptor of the last line, null if its name is not valid. */
+    private PieceDescriptor lineDescriptor;
+    /** X of the last line. */
+    private int lineX;
+    /** Y of the last line. */
+    private int lineY;
+
+    /**
+     * Instantiates a new Piece line parser.
+     *
+     * @param boardSize   the board size
+     * @param errorWriter the error writer
+     */
+    PieceLineParser(int boardSize, ErrorWriter errorWriter) {
+        this(boardSize, errorWriter, true);
+    }
+
+    /**
+     * Instantiates a new Piece line parser.
+     *
+     * @param boardSize   the board size
+     * @param errorWriter the error writer
+     * @param kings       true if the parser counts Kings
+     */
+    PieceLineParser(int boardSize, ErrorWriter errorWriter, boolean kings) {
+        this(boardSize, errorWriter, kings, false);
+    }
+
+    /**
+     * Instantiates a new Piece line parser.
+     *
+     * @param boardSize    the board size
+     * @param errorWriter  the error writer
+     * @param kings        true if the parser counts Kings
+     * @param variantNames true if the names of every descriptor are accepted
+     */
+    PieceLineParser(int boardSize, ErrorWriter errorWriter, boolean kings, boolean variantNames) {
+        this.parser = new Parse(errorWriter);
+        this.err = errorWriter;
+        this.size = boardSize;
+        this.countsKings = kings;
+        this.variants = variantNames;
+    }
+
+    /**
+     * Parse the line of piece and add it to the records.
+     *
+     * @param line    the line
+     * @param records the records
+     */
+    public void parse(String line, PieceRecords records) {
+        parse(line);
+        records.add(lineType, lineColor, lineX, lineY);
+    }
+
+    /**
+     * Parse the line of piece, its values are kept until the next line.
+     *
+     * @param line the line
+     */
+    public void parse(String line) {
+        lineType = null;
+        lineDescriptor = null;
+        lineColor = null;
+        String[] arr = line.split(" ");
+        if (arr.length != NUM_OF_ARGUMENTS) {
+            err.reportFatalError(new InvalidInputException());
+        }
+        String pieceName;
+        if (variants) {
+            lineDescriptor = PieceDescriptor.forName(arr[0]);
+            if (lineDescriptor == null) {
+                err.reportFatalError(new InvalidPieceNameException());
+            }
+            pieceName = arr[0];
+        } else {
+            pieceName = parser.parsePieceType(arr[0]);
+            lineType = PieceType.fromName(pieceName);
+            lineDescriptor = PieceDescriptor.of(lineType);
+        }
+        PieceColor color = PieceColor.parse(arr[1], err);
+        lineColor = color;
+        if (countsKings && pieceName.equals("King")) {
+            if (whiteK >= 1 && color.equals(PieceColor.WHITE)) {
+                err.reportFatalError(new InvalidGivenKingsException());
+            } else if (blackK >= 1 && color.equals(PieceColor.BLACK)) {
+                err.reportFatalError(new InvalidGivenKingsException());
+            } else if (color.equals(PieceColor.WHITE)) {
+                whiteK += 1;
+            } else if (color.equals(PieceColor.BLACK)) {
+                blackK += 1;
+            }
+        }
+        lineX = parser.parsePosition(arr[2], size);
+        lineY = parser.parsePosition(arr[2 + 1], size);
+    }
+
+    /**
+     * Gets type of the last parsed line.
+     *
+     * @return the piece type, null if the name of the line is not valid
+     */
+    public PieceType getLineType() {
+        return lineType;
+    }
+
+    /**
+     * Gets color of the last parsed line.
+     *
+     * @return the piece color, null if the color of the line is not valid
+     */
+    public PieceColor getLineColor() {
+        return lineColor;
+    }
+
+    /**
+     * Gets descriptor of the last parsed line.
+     *
+     * @return the descriptor, null if the name of the line is not valid
+     */
+    public PieceDescriptor getLineDescriptor() {
+        return lineDescriptor;
+    }
+
+    /**
+     * Gets x of the last parsed line.
+     *
+     * @return the x
+     */
+    public int getLineX() {
+        return lineX;
+    }
+
+    /**
+     * Gets y of the last parsed line.
+     *
+     * @return the y
+     */
+    public int getLineY() {
+        return lineY;
+    }
+
+    /**
+     * Check that every side has its King, after all lines are parsed.
+     */
+    public void checkKings() {
+        if (whiteK == 0 || blackK == 0) {
+            err.reportFatalError(new InvalidGivenKingsException());
+        }
+    }
+}
+
+/**
+ * Class {@code Position}, a {@link Board} loaded from the input together with its pieces in the input order.
+ */
+class Position {
+    /** The board. */
+    private final Board board;
+    /** Pieces in the input order. */
+    private final ChessPiece[] pieces;
+
+    private Position(Board chessBoard, ChessPiece[] piecesInOrder) {
+        this.board = chessBoard;
+        this.pieces = piecesInOrder;
+    }
+
+    /**
+     * Instantiates a new Position from a board that already holds the pieces.
+     *
+     * @param chessBoard    the board
+     * @param piecesInOrder the pieces in the input order
+     * @return the position
+     */
+    static Position of(Board chessBoard, ChessPiece[] piecesInOrder) {
+        return new Position(chessBoard, piecesInOrder);
+    }
+
+    /**
+     * Instantiates a new Position from records that are already validated.
+     *
+     * @param boardSize the board size
+     * @param records   the records of pieces in the input order
+     * @param err       the error writer
+     * @return the position
+     */
+    static Position of(int boardSize, PieceRecords records, ErrorWriter err) {
+        BoardBuildEvent event = new BoardBuildEvent();
+        event.begin();
+        Board chessBoard = new Board(boardSize, err);
+        ChessPiece[] pieces = new ChessPiece[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            pieces[i] = records.newPiece(i);
+            chessBoard.addPiece(pieces[i]);
+        }
+        event.tag(boardSize, records.size());
+        event.commit();
+        return new Position(chessBoard, pieces);
+    }
+
+    /**
+     * Load position from lines of the input, errors are reported in the order of priority.
+     *
+     * @param lines the lines of the input
+     * @param err   the error writer
+     * @return the position
+     */
+    public static Position load(List<String> lines, ErrorWriter err) {
+        ParseEvent parseEvent = new ParseEvent();
+        parseEvent.begin();
+        Parse parser = new Parse(err);
+
+        int n = parser.parseBoardSize(lines);
+
+        int m = parser.parseNumberOfPieces(lines, n);
+
+        // Check on number of pieces
+        if (m != lines.size() - 2) {
+            err.reportFatalError(new InvalidNumberOfPiecesException());
+        }
+
+        PieceRecords records = new PieceRecords(0, m);
+        Exception lineError = parsePieces(lines, n, records);
+        parseEvent.tag(n, m);
+        parseEvent.commit();
+
+        // Pieces before the first line error are placed first, a taken cell among them is the earlier error
+        Position position = of(n, records, err);
+        if (lineError != null) {
+            err.reportFatalError(lineError);
+        }
+        return position;
+    }
+
+    private static Exception parsePieces(List<String> lines, int boardSize, PieceRecords records) {
+        PieceLineParser lineParser = new PieceLineParser(boardSize, new StopOnErrorWriter());
+        try {
+            for (int i = 2; i < lines.size(); i++) {
+                lineParser.parse(lines.get(i), records);
+            }
+            lineParser.checkKings();
+        } catch (RejectedInputException e) {
+            return e.getError();
+        }
+        return null;
+    }
+
+    /**
+     * Count moves and captures of every piece.
+     *
+     * @param options  the run options that choose legal moves or the engine
+     * @param moves    the array to store moves count of each piece
+     * @param captures the array to store captures count of each piece
+     */
+    public void evaluate(RunOptions options, int[] moves, int[] captures) {
+        if (options.isLegalMoves()) {
+            new LegalMoveCounter(getSize(), pieces, pieces.length).count(moves, captures);
+        } else if (options.getEngine().equals("auto")) {
+            new AdaptiveEngine(options.getTraceFile() != null).evaluate(this, moves, captures);
+        } else {
+            EvaluationEngine.forName(options.getEngine()).evaluate(this, moves, captures);
+        }
+    }
+
+    /**
+     * Count moves and captures of only the chosen pieces. Legal moves depend on pins and checks
+     * of the whole position, so they are counted for every piece and the chosen ones are kept.
+     *
+     * @param options  the run options that choose legal moves
+     * @param indices  the indices of the pieces in the input order
+     * @param moves    the array to store moves count of every chosen piece
+     * @param captures the array to store captures count of every chosen piece
+     */
+    public void evaluate(RunOptions options, int[] indices, int[] moves, int[] captures) {
+        if (!options.isLegalMoves()) {
+            evaluate(indices, moves, captures);
+            return;
+        }
+        int[] allMoves = new int[pieces.length];
+        int[] allCaptures = new int[pieces.length];
+        new LegalMoveCounter(getSize(), pieces, pieces.length).count(allMoves, allCaptures);
+        for (int k = 0; k < indices.length; k++) {
+            moves[k] = allMoves[indices[k]];
+            captures[k] = allCaptures[indices[k]];
+        }
+    }
+
+    /**
+     * Count moves and captures of only the chosen pieces, see {@link Board#query()}.
+     *
+     * @param indices  the indices of the pieces in the input order
+     * @param moves    the array to store moves count of every chosen piece
+     * @param captures the array to store captures count of every chosen piece
+     */
+    public void evaluate(int[] indices, int[] moves, int[] captures) {
+        List<PiecePosition> squares = new ArrayList<>(indices.length);
+        for (int i: indices) {
+            squares.add(pieces[i].getPosition());
+        }
+        board.query().evaluate(squares, moves, captures);
+    }
+
+    /**
+     * Does the other position have the same pieces on the same cells, the order of input may differ.
+     *
+     * @param other the other position
+     * @return true if the positions are equal
+     */
+    public boolean hasSamePieces(Position other) {
+        if (getSize() != other.getSize() || getCount() != other.getCount()
+                || board.getHash() != other.board.getHash()) {
+            return false;
+        }
+        for (ChessPiece piece: other.pieces) {
+            ChessPiece same = board.getPiece(piece.getPosition());
+            if (same == null || same.getType() != piece.getType() || same.getColor() != piece.getColor()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets board.
+     *
+     * @return the board
+     */
+    public Board getBoard() {
+        return board;
+    }
+
+    /**
+     * Gets pieces in the input order.
+     *
+     * @return the pieces
+     */
+    public ChessPiece[] getPieces() {
+        return pieces;
+    }
+
+    /**
+     * Gets size of board.
+     *
+     * @return the size
+     */
+    public int getSize() {
+        return board.getSize();
+    }
+
+    /**
+     * Gets number of pieces.
+     *
+     * @return the number of pieces
+     */
+    public int getCount() {
+        return pieces.length;
+    }
+}
+
+/**
+ * Class {@code InputValidator} that checks the bytes of the input in a single scan before anything is built.
+ * It checks board size, number of pieces against number of lines, names, colors, Kings, coordinates
+ * and taken cells, the first error is reported in the same order of priority as {@link Position#load(List, ErrorWriter)}.
+ * Valid lines are kept as {@link PieceRecords}, the position is built from them only when the input is valid.
+ * The records and the bits of taken cells are reused by the next input of the same validator,
+ * only the bits of the cells that were taken are cleared.
+ */
+class InputValidator {
+    /** Number of lines before the lines of pieces. */
+    private static final int HEADER_LINES = 2;
+    /** Number of spaces between the values of a line of piece. */
+    private static final int SEPARATORS = 3;
+    /** Value of a number that {@link Integer#parseInt(String)} rejects. */
+    private static final int NOT_A_NUMBER = Integer.MIN_VALUE;
+    /** Base of numbers. */
+    private static final int DECIMAL = 10;
+    /** Smallest board size. */
+    private static final int MIN_BOARD_SIZE = Parse.MIN_BOARD_SIZE;
+    /** Largest board size. */
+    private static final int MAX_BOARD_SIZE = Parse.MAX_BOARD_SIZE;
+    /** Smallest number of pieces. */
+    private static final int MIN_PIECES = 2;
+    /** Types of pieces, {@link PieceType#values()} copies the array on every call. */
+    private static final PieceType[] TYPES = PieceType.values();
+    /** Names of piece types as bytes, in the order of {@link PieceType}. */
+    private static final byte[][] NAMES = new byte[TYPES.length][];
+    /** Name of White color as bytes. */
+    private static final byte[] WHITE = "White".getBytes(StandardCharsets.US_ASCII);
+    /** Name of Black color as bytes. */
+    private static final byte[] BLACK = "Black".getBytes(StandardCharsets.US_ASCII);
+
+    static {
+        for (String name: new String[] {"Pawn", "King", "Knight", "Rook", "Queen", "Bishop"}) {
+            NAMES[PieceType.fromName(name).ordinal()] = name.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /** The error writer. */
+    private final ErrorWriter err;
+    /** The bytes of the input. */
+    private byte[] input;
+    /** Number of bytes of the input, the array may be longer. */
+    private int length;
+    /** A variable that represents size of a ChessBoard, valid after the header. */
+    private int boardSize;
+    /** Number of pieces, valid after the header. */
+    private int numOfPieces;
+    /** Error of the first two lines, null if there is none. */
+    private Exception headerError;
+    /** First error of the lines of pieces, null if there is none. */
+    private Exception lineError;
+    /** Number of Kings by color. */
+    private final int[] kings = new int[PieceColor.values().length];
+    /** Bits of taken cells. */
+    private long[] taken;
+    /** Records of valid lines. */
+    private PieceRecords records;
+    /** Offsets of the spaces around the values of the current line. */
+    private final int[] bounds = new int[SEPARATORS + 2];
+    /** Position of the last input that is shorter than the header, as loaded by {@link Position#load}. */
+    private Position shortInput;
+
+    /**
+     * Instantiates a new Input validator.
+     *
+     * @param errorWriter the error writer
+     */
+    InputValidator(ErrorWriter errorWriter) {
+        this.err = errorWriter;
+    }
+
+    /**
+     * Validate the input and load the position, errors are reported in the order of priority.
+     *
+     * @param bytes the bytes of the input
+     * @return the position
+     * @throws IOException if the input is not valid UTF-8
+     */
+    public Position load(byte[] bytes) throws IOException {
+        PieceRecords valid = check(bytes, bytes.length);
+        return valid != null ? Position.of(boardSize, valid, err) : shortInput;
+    }
+
+    /**
+     * Validate the input, errors are reported in the order of priority.
+     * An input of fewer than two lines is handed to {@link Position#load(List, ErrorWriter)} that reports its error.
+     *
+     * @param bytes       the bytes of the input
+     * @param inputLength the number of bytes of the input
+     * @return the records of pieces, valid until the next input, or null for an input shorter than the header
+     * @throws IOException if the input is not valid UTF-8
+     */
+    public PieceRecords check(byte[] bytes, int inputLength) throws IOException {
+        ParseEvent event = new ParseEvent();
+        event.begin();
+        releaseTaken();
+        this.input = bytes;
+        this.length = inputLength;
+        boardSize = 0;
+        numOfPieces = 0;
+        headerError = null;
+        lineError = null;
+        shortInput = null;
+        Arrays.fill(kings, 0);
+        boolean ascii = true;
+        int lineCount = 0;
+        int firstLineEnd = 0;
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && input[end] != '\n' && input[end] != '\r') {
+                ascii &= input[end] >= 0;
+                end++;
+            }
+            if (lineCount == 0) {
+                firstLineEnd = end;
+            } else if (lineCount == 1) {
+                checkHeader(0, firstLineEnd, start, end);
+            } else if (headerError == null && lineError == null && lineCount - HEADER_LINES < numOfPieces) {
+                checkPiece(start, end);
+            }
+            lineCount += 1;
+            if (end + 1 < length && input[end] == '\r' && input[end + 1] == '\n') {
+                end++;
+            }
+            start = end + 1;
+        }
+
+        if (!ascii) {
+            // Only a byte outside of ASCII can make the input not valid UTF-8
+            StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(input, 0, length));
+        }
+        event.tag(boardSize, Math.max(0, lineCount - HEADER_LINES));
+        event.commit();
+        if (lineCount < HEADER_LINES) {
+            // Too short to be checked here, the loader decides what happens
+            List<String> lines = new ArrayList<>();
+            if (lineCount == 1) {
+                lines.add(new String(input, 0, firstLineEnd, StandardCharsets.UTF_8));
+            }
+            shortInput = Position.load(lines, err);
+            return null;
+        }
+        if (headerError != null) {
+            err.reportFatalError(headerError);
+        } else if (numOfPieces != lineCount - HEADER_LINES) {
+            err.reportFatalError(new InvalidNumberOfPiecesException());
+        } else if (lineError != null) {
+            err.reportFatalError(lineError);
+        } else if (kings[PieceColor.WHITE.ordinal()] == 0 || kings[PieceColor.BLACK.ordinal()] == 0) {
+            err.reportFatalError(new InvalidGivenKingsException());
+        }
+        return records;
+    }
+
+    /**
+     * Gets board size of the last input.
+     *
+     * @return the board size
+     */
+    public int getBoardSize() {
+        return boardSize;
+    }
+
+    private void releaseTaken() {
+        if (records == null) {
+            return;
+        }
+        // Only the cells of valid lines were taken
+        for (int i = 0; i < records.size(); i++) {
+            int cell = (records.getY(i) - 1) * boardSize + records.getX(i) - 1;
+            taken[cell / Long.SIZE] &= ~(1L << cell);
+        }
+        records.clear();
+    }
+
+    private void checkHeader(int sizeStart, int sizeEnd, int countStart, int countEnd) {
+        boardSize = parseNumber(sizeStart, sizeEnd);
+        if (boardSize < MIN_BOARD_SIZE || boardSize > MAX_BOARD_SIZE) {
+            headerError = new InvalidBoardSizeException();
+            return;
+        }
+        numOfPieces = parseNumber(countStart, countEnd);
+        if (numOfPieces < MIN_PIECES || numOfPieces > boardSize * boardSize) {
+            headerError = new InvalidNumberOfPiecesException();
+            return;
+        }
+        int words = (boardSize * boardSize + Long.SIZE - 1) / Long.SIZE;
+        if (taken == null || taken.length < words) {
+            taken = new long[words];
+        }
+        if (records == null) {
+            records = new PieceRecords(0, numOfPieces);
+        }
+    }
+
+    /**
+     * Check the line of piece in the order of {@link PieceLineParser#parse(String, PieceRecords)},
+     * values are separated by single spaces and spaces at the end of the line are ignored.
+     *
+     * @param start the start of the line
+     * @param end   the end of the line
+     */
+    private void checkPiece(int start, int end) {
+        int last = end;
+        while (last > start && input[last - 1] == ' ') {
+            last--;
+        }
+        int values = 1;
+        bounds[0] = start - 1;
+        for (int i = start; i < last && values <= SEPARATORS + 1; i++) {
+            if (input[i] == ' ') {
+                bounds[values++] = i;
+            }
+        }
+        if (last == start || values != SEPARATORS + 1) {
+            lineError = new InvalidInputException();
+            return;
+        }
+        bounds[values] = last;
+
+        PieceType type = parseName(bounds[0] + 1, bounds[1]);
+        if (type == null) {
+            lineError = new InvalidPieceNameException();
+            return;
+        }
+        PieceColor color = parseColor(bounds[1] + 1, bounds[2]);
+        if (color == null) {
+            lineError = new InvalidPieceColorException();
+            return;
+        }
+        if (type == PieceType.KING && kings[color.ordinal()]++ >= 1) {
+            lineError = new InvalidGivenKingsException();
+            return;
+        }
+        int x = parseNumber(bounds[2] + 1, bounds[2 + 1]);
+        int y = x < 1 || x > boardSize ? NOT_A_NUMBER : parseNumber(bounds[2 + 1] + 1, bounds[2 + 2]);
+        if (y < 1 || y > boardSize) {
+            lineError = new InvalidPiecePositionException();
+            return;
+        }
+        int cell = (y - 1) * boardSize + x - 1;
+        if ((taken[cell / Long.SIZE] & 1L << cell) != 0) {
+            lineError = new InvalidPiecePositionException();
+            return;
+        }
+        taken[cell / Long.SIZE] |= 1L << cell;
+        records.add(type, color, x, y);
+    }
+
+    private PieceType parseName(int start, int end) {
+        for (int t = 0; t < NAMES.length; t++) {
+            if (matches(NAMES[t], start, end)) {
+                return TYPES[t];
+            }
+        }
+        return null;
+    }
+
+    private PieceColor parseColor(int start, int end) {
+        if (matches(WHITE, start, end)) {
+            return PieceColor.WHITE;
+        }
+        return matches(BLACK, start, end) ? PieceColor.BLACK : null;
+    }
+
+    private boolean matches(byte[] name, int start, int end) {
+        return Arrays.equals(input, start, end, name, 0, name.length);
+    }
+
+    /**
+     * Parse the number the way {@link Integer#parseInt(String)} does, numbers larger than an int
+     * are rejected by every range, so they are kept as {@link Integer#MAX_VALUE}.
+     *
+     * @param start the start of the number
+     * @param end   the end of the number
+     * @return the number, or {@link #NOT_A_NUMBER} if it is not a number
+     */
+    private int parseNumber(int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (input[i] == '+' || input[i] == '-')) {
+            negative = input[i] == '-';
+            i++;
+        }
+        if (i == end) {
+            return NOT_A_NUMBER;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            if (input[i] < 0) {
+                return parseText(start, end);
+            }
+            if (input[i] < '0' || input[i] > '9') {
+                return NOT_A_NUMBER;
+            }
+            value = Math.min(Integer.MAX_VALUE, value * DECIMAL + input[i] - '0');
+        }
+        return negative ? (int) -value : (int) value;
+    }
+
+    private int parseText(int start, int end) {
+        // Digits of other scripts are rare, they are left to the parser of Integer
+        try {
+            return Integer.parseInt(new String(input, start, end - start, StandardCharsets.UTF_8));
+        } catch (NumberFormatException e) {
+            return NOT_A_NUMBER;
+        }
+    }
+}
+
+/**
+ * Class {@code ParallelPieceParser} that loads a {@link Position} from the bytes of the input.
+ * The section of pieces is split at line boundaries and the chunks are decoded and parsed in parallel
+ * into {@link PieceRecords}, then a merge in the input order finds repeated cells and extra or missing Kings.
+ * The error reported is the one {@link Position#load(List, ErrorWriter)} reports for the same input.
+ */
+class ParallelPieceParser {
+    /** Smallest number of bytes in a chunk. */
+    private static final int MIN_CHUNK_BYTES = 1 << 16;
+    /** Number of chunks for every worker, so that workers finish together. */
+    private static final int CHUNKS_PER_WORKER = 4;
+    /** Number of lines before the lines of pieces. */
+    private static final int HEADER_LINES = 2;
+
+    /** The error writer. */
+    private final ErrorWriter err;
+    /** Smallest number of bytes in a chunk of this parser. */
+    private final int minChunkBytes;
+
+    /**
+     * Instantiates a new Parallel piece parser.
+     *
+     * @param errorWriter the error writer
+     */
+    ParallelPieceParser(ErrorWriter errorWriter) {
+        this(errorWriter, MIN_CHUNK_BYTES);
+    }
+
+    /**
+     * Instantiates a new Parallel piece parser with small chunks, so that small inputs are split too.
+     *
+     * @param errorWriter the error writer
+     * @param chunkBytes  the smallest number of bytes in a chunk
+     */
+    ParallelPieceParser(ErrorWriter errorWriter, int chunkBytes) {
+        this.err = errorWriter;
+        this.minChunkBytes = Math.max(1, chunkBytes);
+    }
+
+    /**
+     * Load position from the bytes of the input, errors are reported in the order of priority.
+     *
+     * @param input the bytes of the input
+     * @return the position
+     * @throws IOException if the input is not valid UTF-8
+     */
+    public Position load(byte[] input) throws IOException {
+        ParseEvent parseEvent = new ParseEvent();
+        parseEvent.begin();
+        int start = skipLines(input, 0, HEADER_LINES);
+        List<String> header = splitLines(decode(input, 0, start));
+        int[] bounds = chunkBounds(input, start, minChunkBytes);
+        List<List<String>> chunks = new ArrayList<>(bounds.length - 1);
+        for (int c = 0; c + 1 < bounds.length; c++) {
+            chunks.add(null);
+        }
+        try {
+            IntStream.range(0, chunks.size()).parallel().forEach(c -> {
+                try {
+                    chunks.set(c, splitLines(decode(input, bounds[c], bounds[c + 1])));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        if (header.size() < HEADER_LINES) {
+            return Position.load(header, err);
+        }
+        Parse parser = new Parse(err);
+        int n = parser.parseBoardSize(header);
+        int m = parser.parseNumberOfPieces(header, n);
+
+        int[] firstIndex = new int[chunks.size() + 1];
+        for (int c = 0; c < chunks.size(); c++) {
+            firstIndex[c + 1] = firstIndex[c] + chunks.get(c).size();
+        }
+        // Check on number of pieces
+        if (m != firstIndex[chunks.size()]) {
+            err.reportFatalError(new InvalidNumberOfPiecesException());
+        }
+
+        ParsedChunk[] parsed = new ParsedChunk[chunks.size()];
+        IntStream.range(0, parsed.length).parallel()
+                .forEach(c -> parsed[c] = parseChunk(chunks.get(c), firstIndex[c], n));
+
+        Exception error = merge(parsed, n);
+        parseEvent.tag(n, m);
+        parseEvent.commit();
+        if (error != null) {
+            err.reportFatalError(error);
+        }
+
+        BoardBuildEvent buildEvent = new BoardBuildEvent();
+        buildEvent.begin();
+        Board chessBoard = new Board(n, err);
+        ChessPiece[] pieces = new ChessPiece[m];
+        for (ParsedChunk chunk: parsed) {
+            PieceRecords records = chunk.records;
+            for (int r = 0; r < records.size(); r++) {
+                ChessPiece piece = records.newPiece(r);
+                chessBoard.addPiece(piece);
+                pieces[records.getFirstIndex() + r] = piece;
+            }
+        }
+        buildEvent.tag(n, m);
+        buildEvent.commit();
+        return Position.of(chessBoard, pieces);
+    }
+
+    private static ParsedChunk parseChunk(List<String> lines, int first, int boardSize) {
+        PieceLineParser lineParser = new PieceLineParser(boardSize, new StopOnErrorWriter(), false);
+        PieceRecords records = new PieceRecords(first, lines.size());
+        for (String line: lines) {
+            try {
+                lineParser.parse(line, records);
+            } catch (RejectedInputException e) {
+                return new ParsedChunk(records, e.getError(), lineParser.getLineType(), lineParser.getLineColor());
+            }
+        }
+        return new ParsedChunk(records, null, null, null);
+    }
+
+    /**
+     * Walk the chunks in the input order and find the first error: a line that is not valid,
+     * a King after the King of its color or a piece on a taken cell.
+     *
+     * @param chunks    the parsed chunks
+     * @param boardSize the board size
+     * @return the error, null if the pieces are valid
+     */
+    private static Exception merge(ParsedChunk[] chunks, int boardSize) {
+        int[] kings = new int[PieceColor.values().length];
+        boolean[] taken = new boolean[boardSize * boardSize];
+        for (ParsedChunk chunk: chunks) {
+            PieceRecords records = chunk.records;
+            for (int r = 0; r < records.size(); r++) {
+                if (records.getType(r) == PieceType.KING && kings[records.getColor(r).ordinal()]++ >= 1) {
+                    return new InvalidGivenKingsException();
+                }
+                int cell = (records.getY(r) - 1) * boardSize + records.getX(r) - 1;
+                if (taken[cell]) {
+                    return new InvalidPiecePositionException();
+                }
+                taken[cell] = true;
+            }
+            if (chunk.error != null) {
+                // Kings are counted before the coordinates of the line are parsed
+                if (chunk.lineType == PieceType.KING && chunk.lineColor != null
+                        && kings[chunk.lineColor.ordinal()] >= 1) {
+                    return new InvalidGivenKingsException();
+                }
+                return chunk.error;
+            }
+        }
+        if (kings[PieceColor.WHITE.ordinal()] == 0 || kings[PieceColor.BLACK.ordinal()] == 0) {
+            return new InvalidGivenKingsException();
+        }
+        return null;
+    }
+
+    /**
+     * Find the end of lines, a line ends with {@code \n}, {@code \r} or {@code \r\n}.
+     *
+     * @param input the bytes of the input
+     * @param from  the start of the first line
+     * @param count the number of lines
+     * @return the offset after the lines, or the length of the input if it has fewer lines
+     */
+    private static int skipLines(byte[] input, int from, int count) {
+        int i = from;
+        for (int line = 0; line < count && i < input.length; line++) {
+            while (i < input.length && input[i] != '\n' && input[i] != '\r') {
+                i++;
+            }
+            if (i + 1 < input.length && input[i] == '\r' && input[i + 1] == '\n') {
+                i++;
+            }
+            i = Math.min(input.length, i + 1);
+        }
+        return i;
+    }
+
+    /**
+     * Split the bytes after the start into chunks that end after a {@code \n}.
+     * A byte {@code \n} never occurs inside a multi-byte character of UTF-8.
+     *
+     * @param input      the bytes of the input
+     * @param start      the start of the first chunk
+     * @param chunkBytes the smallest number of bytes in a chunk
+     * @return the bounds of chunks, chunk {@code c} is between {@code c} and {@code c + 1}
+     */
+    private static int[] chunkBounds(byte[] input, int start, int chunkBytes) {
+        int workers = ForkJoinPool.getCommonPoolParallelism() * CHUNKS_PER_WORKER;
+        int count = Math.max(1, Math.min(workers, (input.length - start) / chunkBytes));
+        int[] bounds = new int[count + 1];
+        int size = 1;
+        bounds[0] = start;
+        for (int k = 1; k < count; k++) {
+            int i = Math.max(bounds[size - 1], start + (int) ((long) (input.length - start) * k / count));
+            while (i < input.length && input[i] != '\n') {
+                i++;
+            }
+            if (i + 1 >= input.length) {
+                break;
+            }
+            bounds[size++] = i + 1;
+        }
+        bounds[size++] = input.length;
+        return Arrays.copyOf(bounds, size);
+    }
+
+    private static String decode(byte[] input, int from, int to) throws CharacterCodingException {
+        return StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(input, from, to - from)).toString();
+    }
+
+    /**
+     * Split the text into lines the way {@link Files#readAllLines(Path, java.nio.charset.Charset)} does.
+     *
+     * @param text the text
+     * @return the lines
+     */
+    private static List<String> splitLines(String text) {
+        List<String> lines = new ArrayList<>();
+        int begin = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (ch == '\n' || ch == '\r') {
+                lines.add(text.substring(begin, i));
+                if (ch == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                begin = i + 1;
+            }
+        }
+        if (begin < text.length()) {
+            lines.add(text.substring(begin));
+        }
+        return lines;
+    }
+
+    /**
+     * Records of a chunk and the error of its first line that is not valid.
+     */
+    private static final class ParsedChunk {
+        /** Records of the valid lines before the error. */
+        private final PieceRecords records;
+        /** The error, null if every line is valid. */
+        private final Exception error;
+        /** Type of the line of the error, null if not parsed. */
+        private final PieceType lineType;
+        /** Color of the line of the error, null if not parsed. */
+        private final PieceColor lineColor;
+
+        ParsedChunk(PieceRecords pieceRecords, Exception lineError, PieceType type, PieceColor color) {
+            this.records = pieceRecords;
+            this.error = lineError;
+            this.lineType = type;
+            this.lineColor = color;
+        }
+    }
+}
+
+/**
+ * Class {@code OccupancyGrid}, cells of {@link Board} as bytes surrounded by a border of
+ * {@link #OFF_BOARD} cells, so that Knight and King jumps never need bound checks.
+ * A piece is coded as {@code type.ordinal() + 1}, with {@link #BLACK_BIT} set for Black pieces.
+ */
+final class OccupancyGrid {
+    /** Width of the border, the longest jump is two cells. */
+    static final int BORDER = 2;
+    /** Code of an empty cell. */
+    static final byte EMPTY = 0;
+    /** Code of a cell outside of the board. */
+    static final byte OFF_BOARD = (byte) 0x80;
+    /** Bit of code that is set for Black pieces. */
+    static final int BLACK_BIT = 8;
+
+    /** A variable that represents size of a ChessBoard. */
+    private final int size;
+    /** Distance between vertically adjacent cells. */
+    private final int stride;
+    /** Codes of cells, row by row. */
+    private final byte[] cells;
+    /** Indices of cells taken since the grid was empty. */
+    private int[] touched = new int[0];
+    /** Number of taken cells. */
+    private int touchedCount;
+    /** Offsets of Knight jumps. */
+    private final int[] knightOffsets;
+    /** Offsets of King steps, the first step along every direction of {@link Directions}. */
+    private final int[] kingOffsets;
+    /** Offsets of Pawn captures by color. */
+    private final int[][] pawnCaptureOffsets = new int[PieceColor.values().length][];
+    /** Offsets of Pawn moves by color. */
+    private final int[][] pawnMoveOffsets = new int[PieceColor.values().length][];
+
+    /**
+     * Instantiates a new empty Occupancy grid.
+     *
+     * @param boardSize the board size
+     */
+    OccupancyGrid(int boardSize) {
+        this.size = boardSize;
+        this.stride = boardSize + 2 * BORDER;
+        this.cells = new byte[stride * stride];
+        Arrays.fill(cells, OFF_BOARD);
+        for (int y = 1; y <= boardSize; y++) {
+            Arrays.fill(cells, index(1, y), index(boardSize, y) + 1, EMPTY);
+        }
+        this.knightOffsets = offsets(Directions.KNIGHT_DX, Directions.KNIGHT_DY);
+        this.kingOffsets = offsets(Directions.DX, Directions.DY);
+        for (PieceColor color: PieceColor.values()) {
+            int forward = color.forward() * stride;
+            pawnCaptureOffsets[color.ordinal()] = new int[] {forward - 1, forward + 1};
+            pawnMoveOffsets[color.ordinal()] = new int[] {forward};
+        }
+    }
+
+    /**
+     * Instantiates a new Occupancy grid with the pieces.
+     *
+     * @param boardSize the board size
+     * @param pieces    the pieces
+     */
+    OccupancyGrid(int boardSize, ChessPiece[] pieces) {
+        this(boardSize);
+        for (ChessPiece piece: pieces) {
+            put(piece.getPosition().getX(), piece.getPosition().getY(), piece.getType(), piece.getColor());
+        }
+    }
+
+    /**
+     * Put piece on the cell.
+     *
+     * @param x     the x
+     * @param y     the y
+     * @param type  the type of piece
+     * @param color the color of piece
+     */
+    public void put(int x, int y, PieceType type, PieceColor color) {
+        if (touchedCount == touched.length) {
+            touched = Arrays.copyOf(touched, Math.max(size, touchedCount * 2));
+        }
+        touched[touchedCount++] = index(x, y);
+        cells[index(x, y)] = code(type, color);
+    }
+
+    /**
+     * Remove all pieces, only the taken cells are visited.
+     */
+    public void clear() {
+        for (int k = 0; k < touchedCount; k++) {
+            cells[touched[k]] = EMPTY;
+        }
+        touchedCount = 0;
+    }
+
+    /**
+     * Gets offsets of Knight jumps.
+     *
+     * @return the offsets of indices
+     */
+    public int[] getKnightOffsets() {
+        return knightOffsets;
+    }
+
+    /**
+     * Gets offsets of King steps, in the order of directions of {@link Directions}.
+     *
+     * @return the offsets of indices
+     */
+    public int[] getKingOffsets() {
+        return kingOffsets;
+    }
+
+    /**
+     * Gets offsets of Pawn captures.
+     *
+     * @param color the color of Pawn
+     * @return the offsets of indices
+     */
+    public int[] getPawnCaptureOffsets(PieceColor color) {
+        return pawnCaptureOffsets[color.ordinal()];
+    }
+
+    /**
+     * Gets offsets of Pawn moves.
+     *
+     * @param color the color of Pawn
+     * @return the offsets of indices
+     */
+    public int[] getPawnMoveOffsets(PieceColor color) {
+        return pawnMoveOffsets[color.ordinal()];
+    }
+
+    /**
+     * Gets index of the cell in {@link #getCells()}.
+     *
+     * @param x the x
+     * @param y the y
+     * @return the index
+     */
+    public int index(int x, int y) {
+        return (y - 1 + BORDER) * stride + x - 1 + BORDER;
+    }
+
+    /**
+     * Gets codes of cells.
+     *
+     * @return the codes, indexed by {@link #index(int, int)}
+     */
+    public byte[] getCells() {
+        return cells;
+    }
+
+    /**
+     * Gets distance between vertically adjacent cells.
+     *
+     * @return the stride
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Gets size.
+     *
+     * @return the size of Board
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Gets code of the piece.
+     *
+     * @param type  the type
+     * @param color the color
+     * @return the code
+     */
+    static byte code(PieceType type, PieceColor color) {
+        return (byte) (type.ordinal() + 1 | (color == PieceColor.BLACK ? BLACK_BIT : 0));
+    }
+
+    private int[] offsets(int[] dx, int[] dy) {
+        int[] result = new int[dx.length];
+        for (int k = 0; k < dx.length; k++) {
+            result[k] = dy[k] * stride + dx[k];
+        }
+        return result;
+    }
+
+    /**
+     * Is the code an enemy of the piece of the color.
+     *
+     * @param code  the code of cell
+     * @param color the color of piece
+     * @return true if the cell holds a piece of the other color
+     */
+    static boolean isEnemy(byte code, PieceColor color) {
+        return code > 0 && ((code & BLACK_BIT) != 0) != (color == PieceColor.BLACK);
+    }
+}
+
+/**
+ * Class {@code LeaperKernel} that counts moves and captures of Knights, Kings and Pawns on
+ * {@link OccupancyGrid}. The scalar kernel handles one piece at a time and is the kernel of {@code grid}.
+ * The lane kernel handles pieces of the same type and color in batches of {@link #LANES}: every jump
+ * is applied to all pieces of the batch and every cell is counted by one lookup of a packed moves and
+ * captures counter instead of branches. It is a plain loop that is not compiled to vector instructions,
+ * once warmed up it takes about the time of the scalar kernel, {@code grid-lanes} keeps it for comparison.
+ */
+final class LeaperKernel {
+    /** Number of pieces handled together. */
+    static final int LANES = 8;
+    /** Number of distinct byte values. */
+    private static final int CODES = 256;
+    /** Count of captures in a packed lane counter, moves take the low byte. */
+    private static final int CAPTURE = 1 << 8;
+    /** Mask of moves in a packed lane counter. */
+    private static final int MOVES_MASK = CAPTURE - 1;
+    /** Packed counts of a move to the cell, indexed by color of the piece. */
+    private static final int[][] MOVE_CELL = new int[2][CODES];
+    /** Packed counts of a capture-only move to the cell, indexed by color of the piece. */
+    private static final int[][] CAPTURE_CELL = new int[2][CODES];
+    /** Packed counts of a quiet move to the cell. */
+    private static final int[] QUIET_CELL = new int[CODES];
+
+    static {
+        QUIET_CELL[OccupancyGrid.EMPTY & 0xFF] = 1;
+        for (PieceColor color: PieceColor.values()) {
+            for (int code = 0; code < CODES; code++) {
+                boolean enemy = OccupancyGrid.isEnemy((byte) code, color);
+                CAPTURE_CELL[color.ordinal()][code] = enemy ? 1 + CAPTURE : 0;
+                MOVE_CELL[color.ordinal()][code] = enemy ? 1 + CAPTURE : QUIET_CELL[code];
+            }
+        }
+    }
+
+    /** Should pieces be counted in lanes. */
+    private final boolean laned;
+
+    /**
+     * Instantiates a new Leaper kernel.
+     *
+     * @param inLanes true to count pieces in lanes, false to count them one by one
+     */
+    LeaperKernel(boolean inLanes) {
+        this.laned = inLanes;
+    }
+
+    /**
+     * Are pieces counted in lanes.
+     *
+     * @return true for the lane kernel, false for the scalar one
+     */
+    public boolean isLaned() {
+        return laned;
+    }
+
+    /**
+     * Count moves and captures of pieces of the same color that jump to the target offsets,
+     * moves to the quiet offsets are counted only when the cell is empty and are never captures.
+     * Counts of the piece at {@code cellIndices[k]} are stored at {@code moves[k]} and {@code captures[k]}.
+     *
+     * @param grid         the occupancy grid
+     * @param color        the color of pieces
+     * @param cellIndices  the grid indices of pieces
+     * @param from         the first index of the pieces in {@code cellIndices}
+     * @param to           the index after the last piece
+     * @param jumpOffsets  the offsets of cells where the pieces move or capture
+     * @param captureOnly  true if the pieces can only capture on {@code jumpOffsets}
+     * @param quietOffsets the offsets of cells where the pieces only move
+     * @param moves        the moves counts
+     * @param captures     the captures counts
+     */
+    public void count(OccupancyGrid grid, PieceColor color, int[] cellIndices, int from, int to,
+                      int[] jumpOffsets, boolean captureOnly, int[] quietOffsets,
+                      int[] moves, int[] captures) {
+        if (laned) {
+            int[] jumpCell = (captureOnly ? CAPTURE_CELL : MOVE_CELL)[color.ordinal()];
+            int[] lanes = EvaluationScratch.forThread().ints(EvaluationScratch.LANES, LANES);
+            countInLanes(grid.getCells(), jumpCell, lanes, cellIndices, from, to,
+                         jumpOffsets, quietOffsets, moves, captures);
+        } else {
+            countOneByOne(grid.getCells(), color, cellIndices, from, to,
+                          jumpOffsets, captureOnly, quietOffsets, moves, captures);
+        }
+    }
+
+    private static void countInLanes(byte[] cells, int[] jumpCell, int[] lanes, int[] cellIndices, int from, int to,
+                                     int[] jumpOffsets, int[] quietOffsets, int[] moves, int[] captures) {
+        for (int start = from; start < to; start += LANES) {
+            int width = Math.min(LANES, to - start);
+            Arrays.fill(lanes, 0, width, 0);
+            for (int offset: jumpOffsets) {
+                for (int lane = 0; lane < width; lane++) {
+                    lanes[lane] += jumpCell[cells[cellIndices[start + lane] + offset] & 0xFF];
+                }
+            }
+            for (int offset: quietOffsets) {
+                for (int lane = 0; lane < width; lane++) {
+                    lanes[lane] += QUIET_CELL[cells[cellIndices[start + lane] + offset] & 0xFF];
+                }
+            }
+            for (int lane = 0; lane < width; lane++) {
+                moves[start + lane] = lanes[lane] & MOVES_MASK;
+                captures[start + lane] = lanes[lane] / CAPTURE;
+            }
+        }
+    }
+
+    private static void countOneByOne(byte[] cells, PieceColor color, int[] cellIndices, int from, int to,
+                                      int[] jumpOffsets, boolean captureOnly, int[] quietOffsets,
+                                      int[] moves, int[] captures) {
+        for (int i = from; i < to; i++) {
+            int numOfMoves = 0;
+            int numOfCaptures = 0;
+            for (int offset: jumpOffsets) {
+                byte code = cells[cellIndices[i] + offset];
+                if (code == OccupancyGrid.EMPTY) {
+                    if (!captureOnly) {
+                        numOfMoves += 1;
+                    }
+                } else if (OccupancyGrid.isEnemy(code, color)) {
+                    numOfMoves += 1;
+                    numOfCaptures += 1;
+                }
+            }
+            for (int offset: quietOffsets) {
+                if (cells[cellIndices[i] + offset] == OccupancyGrid.EMPTY) {
+                    numOfMoves += 1;
+                }
+            }
+            moves[i] = numOfMoves;
+            captures[i] = numOfCaptures;
+        }
+    }
+}
+
+/**
+ * Class {@code EvaluationOrder} that schedules pieces of a large board so that pieces close on the board
+ * are evaluated one after another and their neighbor cells stay in cache. The board is cut into tiles of
+ * {@link #TILE} x {@link #TILE} cells, tiles are visited in Morton (Z-order) of their coordinates and
+ * pieces of a tile keep the input order.
+ */
+final class EvaluationOrder {
+    /** Side of a tile in cells. */
+    static final int TILE = 32;
+
+    private EvaluationOrder() {
+    }
+
+    /**
+     * Gets indices of pieces sorted by the Z-order of their tiles, by counting sort.
+     *
+     * @param boardSize the board size
+     * @param xs        the x of every piece
+     * @param ys        the y of every piece
+     * @param count     the number of pieces
+     * @param scratch   the scratch of the thread that keeps the arrays
+     * @return the indices in the order of evaluation, the array may be longer than the number of pieces
+     */
+    static int[] zOrder(int boardSize, int[] xs, int[] ys, int count, EvaluationScratch scratch) {
+        int tiles = (boardSize + TILE - 1) / TILE;
+        int keysCount = (int) morton(tiles - 1, tiles - 1) + 2;
+        int[] start = scratch.ints(EvaluationScratch.TILE_START, keysCount);
+        Arrays.fill(start, 0, keysCount, 0);
+        int[] keys = scratch.ints(EvaluationScratch.TILE_KEYS, count);
+        for (int i = 0; i < count; i++) {
+            keys[i] = (int) morton((xs[i] - 1) / TILE, (ys[i] - 1) / TILE);
+            start[keys[i] + 1] += 1;
+        }
+        for (int k = 1; k < keysCount; k++) {
+            start[k] += start[k - 1];
+        }
+        int[] order = scratch.ints(EvaluationScratch.ORDER, count);
+        for (int i = 0; i < count; i++) {
+            order[start[keys[i]]++] = i;
+        }
+        return order;
+    }
+
+    /**
+     * Interleave bits of the coordinates, x takes the even bits.
+     *
+     * @param x the zero-based x, below 2^16
+     * @param y the zero-based y, below 2^16
+     * @return the Morton key
+     */
+    static long morton(int x, int y) {
+        return spread(x) | spread(y) << 1;
+    }
+
+    private static long spread(int value) {
+        long v = value & 0xFFFFL;
+        v = (v | v << 8) & 0x00FF00FFL;
+        v = (v | v << 4) & 0x0F0F0F0FL;
+        v = (v | v << 2) & 0x33333333L;
+        v = (v | v << 1) & 0x55555555L;
+        return v;
+    }
+}
+
+/**
+ * Class {@code EvaluationScratch}, arrays and grids reused by the evaluations of one thread,
+ * so that evaluating positions one after another allocates only when a position is larger than those before.
+ * Arrays are taken by slot and keep the values of the last evaluation, the caller fills what it reads.
+ */
+final class EvaluationScratch {
+    /** Slot of x coordinates of pieces. */
+    static final int XS = 0;
+    /** Slot of y coordinates of pieces. */
+    static final int YS = 1;
+    /** Slot of groups of pieces. */
+    static final int GROUP_OF = 2;
+    /** Slot of the first slot of every group. */
+    static final int GROUP_START = 3;
+    /** Slot of the next free slot of every group. */
+    static final int NEXT = 4;
+    /** Slot of grid indices of pieces. */
+    static final int CELLS = 5;
+    /** Slot of input indices of pieces. */
+    static final int INPUT_INDEX = 6;
+    /** Slot of moves counts. */
+    static final int MOVES = 7;
+    /** Slot of captures counts. */
+    static final int CAPTURES = 8;
+    /** Slot of lanes of {@link LeaperKernel}. */
+    static final int LANES = 9;
+    /** Slot of the first index of every tile key of {@link EvaluationOrder}. */
+    static final int TILE_START = 10;
+    /** Slot of tile keys of pieces. */
+    static final int TILE_KEYS = 11;
+    /** Slot of the evaluation order of pieces. */
+    static final int ORDER = 12;
+    /** Number of slots. */
+    private static final int SLOTS = 13;
+    /** Number of grids of different sizes kept by a thread. */
+    private static final int POOLED_GRIDS = 4;
+
+    /** Scratch of every thread. */
+    private static final ThreadLocal<EvaluationScratch> FOR_THREAD = ThreadLocal.withInitial(EvaluationScratch::new);
+
+    /** Arrays by slot. */
+    private final int[][] ints = new int[SLOTS][0];
+    /** Pooled grids. */
+    private final OccupancyGrid[] grids = new OccupancyGrid[POOLED_GRIDS];
+    /** Index of the grid replaced by the next grid of a new size. */
+    private int nextGrid;
+
+    /**
+     * Gets scratch of the current thread.
+     *
+     * @return the scratch
+     */
+    static EvaluationScratch forThread() {
+        return FOR_THREAD.get();
+    }
+
+    /**
+     * Gets array of the slot.
+     *
+     * @param slot   the slot
+     * @param length the smallest length
+     * @return the array of at least the length
+     */
+    public int[] ints(int slot, int length) {
+        if (ints[slot].length < length) {
+            ints[slot] = new int[Math.max(length, ints[slot].length * 2)];
+        }
+        return ints[slot];
+    }
+
+    /**
+     * Gets empty grid of the board size, a pooled grid is cleared and given again.
+     *
+     * @param boardSize the board size
+     * @return the grid
+     */
+    public OccupancyGrid grid(int boardSize) {
+        for (OccupancyGrid grid: grids) {
+            if (grid != null && grid.getSize() == boardSize) {
+                grid.clear();
+                return grid;
+            }
+        }
+        OccupancyGrid grid = new OccupancyGrid(boardSize);
+        grids[nextGrid] = grid;
+        nextGrid = (nextGrid + 1) % POOLED_GRIDS;
+        return grid;
+    }
+}
+
+/**
+ * The interface Evaluation engine, counts moves and captures of every piece of {@link Position}.
+ */
+interface EvaluationEngine {
+    /**
+     * Count moves and captures of every piece.
+     *
+     * @param position the position
+     * @param moves    the array to store moves count of each piece
+     * @param captures the array to store captures count of each piece
+     */
+    void evaluate(Position position, int[] moves, int[] captures);
+
+    /**
+     * Gets name of the engine, as given to {@link #forName(String)}.
+     *
+     * @return the name
+     */
+    String getName();
+
+    /**
+     * Gets names of all engines, the engine {@code auto} evaluates with one of them.
+     *
+     * @return the names
+     */
+    static List<String> names() {
+        return Arrays.asList("reference", "grid", "grid-lanes", "grid-zorder", "offheap", "descriptor");
+    }
+
+    /**
+     * Gets engine by name.
+     *
+     * @param name the name
+     * @return the engine, or null for an unknown name
+     */
+    static EvaluationEngine forName(String name) {
+        switch (name) {
+            case "reference":
+                return new ReferenceEngine();
+            case "grid":
+                return new GridEngine(false, false);
+            case "grid-lanes":
+                return new GridEngine(true, false);
+            case "grid-zorder":
+                return new GridEngine(false, true);
+            case "offheap":
+                return new OffHeapEngine();
+            case "descriptor":
+                return new DescriptorEngine();
+            case "auto":
+                return new AdaptiveEngine();
+            default:
+                return null;
+        }
+    }
+}
+
+/**
+ * The interface Record engine, counts moves and captures straight from {@link PieceRecords}
+ * of a valid input, no {@link Board} or {@link ChessPiece} is built.
+ */
+interface RecordEngine {
+    /**
+     * Count moves and captures of every piece of the records.
+     *
+     * @param boardSize the board size
+     * @param records   the valid pieces in the input order
+     * @param moves     the array to store moves count of each piece
+     * @param captures  the array to store captures count of each piece
+     */
+    void evaluate(int boardSize, PieceRecords records, int[] moves, int[] captures);
+}
+
+/**
+ * Class {@code ReferenceEngine} that asks {@link Board} for counts of every piece.
+ */
+class ReferenceEngine implements EvaluationEngine {
+    @Override
+    public void evaluate(Position position, int[] moves, int[] captures) {
+        Board board = position.getBoard();
+        ChessPiece[] pieces = position.getPieces();
+        if (EvaluationTrace.isBatchTraced()) {
+            evaluateInBatches(position, moves, captures);
+            return;
+        }
+        for (int j = 0; j < pieces.length; j++) {
+            moves[j] = board.getPiecePossibleMovesCount(pieces[j]);
+            captures[j] = board.getPiecePossibleCapturesCount(pieces[j]);
+        }
+    }
+
+    /**
+     * Evaluate pieces type by type and record every batch, the counts do not depend on the order.
+     *
+     * @param position the position
+     * @param moves    the array to store moves count of each piece
+     * @param captures the array to store captures count of each piece
+     */
+    private void evaluateInBatches(Position position, int[] moves, int[] captures) {
+        ScanCountingMap view = position.getBoard().getCountingView();
+        ChessPiece[] pieces = position.getPieces();
+        for (PieceColor color: PieceColor.values()) {
+            for (PieceType type: PieceType.values()) {
+                EvaluationBatchEvent event = new EvaluationBatchEvent();
+                event.begin();
+                long scanned = view.getScanned();
+                int count = 0;
+                for (int j = 0; j < pieces.length; j++) {
+                    if (pieces[j].getType() == type && pieces[j].getColor() == color) {
+                        moves[j] = pieces[j].getMovesCount(view, position.getSize());
+                        captures[j] = pieces[j].getCapturesCount(view, position.getSize());
+                        count += 1;
+                    }
+                }
+                event.describe(getName(), type, color, count, view.getScanned() - scanned);
+                event.tag(position.getSize(), position.getCount());
+                event.commit();
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "reference";
+    }
+}
+
+/**
+ * Class {@code GridEngine} that counts on {@link OccupancyGrid}. Knights, Kings and Pawns are grouped
+ * by type and color and passed to {@link LeaperKernel}, sliders walk their lines on the grid.
+ * Pieces of a group are evaluated in the input order or in the tiled order of {@link EvaluationOrder},
+ * the results are scattered back to the input order at the end.
+ */
+class GridEngine implements EvaluationEngine, RecordEngine {
+    /** Offsets of pieces that have no moves of a kind. */
+    private static final int[] NO_OFFSETS = new int[0];
+    /** Colors of pieces, {@link PieceColor#values()} copies the array on every call. */
+    private static final PieceColor[] COLORS = PieceColor.values();
+    /** Types of pieces. */
+    private static final PieceType[] TYPES = PieceType.values();
+
+    /** Kernel of Knights, Kings and Pawns. */
+    private final LeaperKernel kernel;
+    /** Should pieces be evaluated in Z-order of their cells. */
+    private final boolean zOrder;
+
+    /**
+     * Instantiates a new Grid engine.
+     *
+     * @param inLanes  true to count Knights, Kings and Pawns in lanes
+     * @param inZOrder true to evaluate pieces in Z-order of their cells
+     */
+    GridEngine(boolean inLanes, boolean inZOrder) {
+        this.kernel = new LeaperKernel(inLanes);
+        this.zOrder = inZOrder;
+    }
+
+    @Override
+    public void evaluate(Position position, int[] moves, int[] captures) {
+        ChessPiece[] pieces = position.getPieces();
+        int m = pieces.length;
+        EvaluationScratch scratch = EvaluationScratch.forThread();
+
+        // Read the pieces once in the input order, the rest works on primitive arrays
+        int[] xs = scratch.ints(EvaluationScratch.XS, m);
+        int[] ys = scratch.ints(EvaluationScratch.YS, m);
+        int[] groupOf = scratch.ints(EvaluationScratch.GROUP_OF, m);
+        for (int i = 0; i < m; i++) {
+            ChessPiece piece = pieces[i];
+            xs[i] = piece.getPosition().getX();
+            ys[i] = piece.getPosition().getY();
+            groupOf[i] = group(piece.getType(), piece.getColor());
+        }
+        count(position.getSize(), m, scratch, moves, captures);
+    }
+
+    @Override
+    public void evaluate(int boardSize, PieceRecords records, int[] moves, int[] captures) {
+        int m = records.size();
+        EvaluationScratch scratch = EvaluationScratch.forThread();
+        int[] xs = scratch.ints(EvaluationScratch.XS, m);
+        int[] ys = scratch.ints(EvaluationScratch.YS, m);
+        int[] groupOf = scratch.ints(EvaluationScratch.GROUP_OF, m);
+        for (int i = 0; i < m; i++) {
+            xs[i] = records.getX(i);
+            ys[i] = records.getY(i);
+            groupOf[i] = group(records.getType(i), records.getColor(i));
+        }
+        count(boardSize, m, scratch, moves, captures);
+    }
+
+    /**
+     * Count moves and captures of the pieces read into the slots {@link EvaluationScratch#XS},
+     * {@link EvaluationScratch#YS} and {@link EvaluationScratch#GROUP_OF} of the scratch.
+     *
+     * @param boardSize the board size
+     * @param m         the number of pieces
+     * @param scratch   the scratch of the thread
+     * @param moves     the array to store moves count of each piece
+     * @param captures  the array to store captures count of each piece
+     */
+    private void count(int boardSize, int m, EvaluationScratch scratch, int[] moves, int[] captures) {
+        OccupancyGrid grid = scratch.grid(boardSize);
+        int groups = TYPES.length * COLORS.length;
+        int[] xs = scratch.ints(EvaluationScratch.XS, m);
+        int[] ys = scratch.ints(EvaluationScratch.YS, m);
+        int[] groupOf = scratch.ints(EvaluationScratch.GROUP_OF, m);
+        int[] groupStart = scratch.ints(EvaluationScratch.GROUP_START, groups + 1);
+        Arrays.fill(groupStart, 0, groups + 1, 0);
+        for (int i = 0; i < m; i++) {
+            groupStart[groupOf[i] + 1] += 1;
+            grid.put(xs[i], ys[i], TYPES[groupOf[i] / COLORS.length], COLORS[groupOf[i] % COLORS.length]);
+        }
+        for (int g = 0; g < groups; g++) {
+            groupStart[g + 1] += groupStart[g];
+        }
+
+        // Lay the pieces out group by group, in the evaluation order inside of a group
+        int[] order = zOrder ? EvaluationOrder.zOrder(boardSize, xs, ys, m, scratch) : null;
+        int[] next = scratch.ints(EvaluationScratch.NEXT, groups);
+        System.arraycopy(groupStart, 0, next, 0, groups);
+        int[] cells = scratch.ints(EvaluationScratch.CELLS, m);
+        int[] inputIndex = scratch.ints(EvaluationScratch.INPUT_INDEX, m);
+        for (int k = 0; k < m; k++) {
+            int i = order == null ? k : order[k];
+            int slot = next[groupOf[i]]++;
+            cells[slot] = grid.index(xs[i], ys[i]);
+            inputIndex[slot] = i;
+        }
+
+        int[] slotMoves = scratch.ints(EvaluationScratch.MOVES, m);
+        int[] slotCaptures = scratch.ints(EvaluationScratch.CAPTURES, m);
+        boolean traced = EvaluationTrace.isBatchTraced();
+        for (PieceColor color: COLORS) {
+            for (PieceType type: TYPES) {
+                int g = group(type, color);
+                if (!traced) {
+                    countGroup(grid, type, color, cells, groupStart[g], groupStart[g + 1], slotMoves, slotCaptures);
+                    continue;
+                }
+                EvaluationBatchEvent event = new EvaluationBatchEvent();
+                event.begin();
+                long scanned = countGroup(grid, type, color, cells, groupStart[g], groupStart[g + 1],
+                                          slotMoves, slotCaptures);
+                event.describe(getName(), type, color, groupStart[g + 1] - groupStart[g], scanned);
+                event.tag(boardSize, m);
+                event.commit();
+            }
+        }
+
+        for (int slot = 0; slot < m; slot++) {
+            moves[inputIndex[slot]] = slotMoves[slot];
+            captures[inputIndex[slot]] = slotCaptures[slot];
+        }
+    }
+
+    @Override
+    public String getName() {
+        if (zOrder) {
+            return "grid-zorder";
+        }
+        return kernel.isLaned() ? "grid-lanes" : "grid";
+    }
+
+    /**
+     * Count moves and captures of the pieces of a group, results are stored by slot.
+     *
+     * @param grid     the occupancy grid
+     * @param type     the type of pieces
+     * @param color    the color of pieces
+     * @param cells    the grid indices of pieces by slot
+     * @param from     the first slot of the group
+     * @param to       the slot after the group
+     * @param moves    the moves counts by slot
+     * @param captures the captures counts by slot
+     * @return the number of cells read
+     */
+    private long countGroup(OccupancyGrid grid, PieceType type, PieceColor color, int[] cells, int from, int to,
+                            int[] moves, int[] captures) {
+        switch (type) {
+            case KNIGHT:
+                kernel.count(grid, color, cells, from, to, grid.getKnightOffsets(), false, NO_OFFSETS,
+                             moves, captures);
+                return (long) (to - from) * grid.getKnightOffsets().length;
+            case KING:
+                kernel.count(grid, color, cells, from, to, grid.getKingOffsets(), false, NO_OFFSETS,
+                             moves, captures);
+                return (long) (to - from) * grid.getKingOffsets().length;
+            case PAWN:
+                kernel.count(grid, color, cells, from, to, grid.getPawnCaptureOffsets(color), true,
+                             grid.getPawnMoveOffsets(color), moves, captures);
+                return (long) (to - from) * (grid.getPawnCaptureOffsets(color).length
+                                             + grid.getPawnMoveOffsets(color).length);
+            default:
+                long scanned = 0;
+                for (int slot = from; slot < to; slot++) {
+                    // Every empty cell of a line is read, and the cell that ends it
+                    scanned += countSlides(grid, type, color, cells[slot], grid.getKingOffsets(), slot,
+                                           moves, captures);
+                }
+                return scanned;
+        }
+    }
+
+    private static int countSlides(OccupancyGrid grid, PieceType type, PieceColor color, int cell,
+                                    int[] directionOffsets, int piece, int[] moves, int[] captures) {
+        byte[] cells = grid.getCells();
+        int numOfMoves = 0;
+        int numOfCaptures = 0;
+        int lines = 0;
+        for (int d = 0; d < directionOffsets.length; d++) {
+            if (!type.slidesAlong(d)) {
+                continue;
+            }
+            lines += 1;
+            int step = cell + directionOffsets[d];
+            while (cells[step] == OccupancyGrid.EMPTY) {
+                numOfMoves += 1;
+                step += directionOffsets[d];
+            }
+            if (OccupancyGrid.isEnemy(cells[step], color)) {
+                numOfMoves += 1;
+                numOfCaptures += 1;
+            }
+        }
+        moves[piece] = numOfMoves;
+        captures[piece] = numOfCaptures;
+        return numOfMoves - numOfCaptures + lines;
+    }
+
+    private static int group(PieceType type, PieceColor color) {
+        return type.ordinal() * COLORS.length + color.ordinal();
+    }
+
+}
+
+/**
+ * Class {@code BoardArena} that owns the off-heap memory of the boards of one request.
+ * Allocations are slices of direct slabs of {@link #SLAB_BYTES}, a larger allocation takes a slab of its own.
+ * Closing the arena gives its slabs back to a pool shared by all arenas, so the next request reuses the memory
+ * instead of allocating it, and every later use of its boards throws {@link IllegalStateException}.
+ * The pool keeps up to {@link #MAX_POOLED_BYTES}, slabs beyond it are left to the garbage collector.
+ */
+final class BoardArena implements AutoCloseable {
+    /** Size of a slab, smaller allocations are cut from a shared slab. */
+    static final int SLAB_BYTES = 1 << 20;
+    /** Largest number of bytes of free slabs kept in the pool. */
+    static final long MAX_POOLED_BYTES = 64L << 20;
+    /** Alignment of slices. */
+    private static final int ALIGNMENT = Long.BYTES;
+    /** Zeros copied over a slice of a reused slab. */
+    private static final byte[] ZEROS = new byte[1 << 12];
+    /** Free slabs of the pool. */
+    private static final List<ByteBuffer> FREE = new ArrayList<>();
+    /** Number of bytes of the free slabs. */
+    private static long freeBytes;
+
+    /** Slabs taken by this arena. */
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    /** Slab that the next slices are cut from, null before the first one. */
+    private ByteBuffer current;
+    /** Offset of the next slice in the current slab. */
+    private int offset;
+    /** Is the arena closed. */
+    private boolean closed;
+
+    /**
+     * Allocate off-heap memory in the native byte order.
+     *
+     * @param bytes the number of bytes
+     * @return the buffer filled with zeros
+     */
+    public ByteBuffer allocate(int bytes) {
+        checkOpen();
+        int aligned = (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        if (aligned > SLAB_BYTES) {
+            ByteBuffer own = take(aligned);
+            slabs.add(own);
+            return zeroed(own, 0, bytes);
+        }
+        if (current == null || offset + aligned > current.capacity()) {
+            current = take(SLAB_BYTES);
+            slabs.add(current);
+            offset = 0;
+        }
+        ByteBuffer slice = zeroed(current, offset, bytes);
+        offset += aligned;
+        return slice;
+    }
+
+    /**
+     * Check that the arena is not closed.
+     *
+     * @throws IllegalStateException if the arena is closed
+     */
+    public void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Board arena is closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        current = null;
+        release(slabs);
+        slabs.clear();
+    }
+
+    /**
+     * Gets number of bytes of free slabs in the pool.
+     *
+     * @return the number of bytes
+     */
+    static synchronized long getPooledBytes() {
+        return freeBytes;
+    }
+
+    private static ByteBuffer zeroed(ByteBuffer slab, int from, int bytes) {
+        ByteBuffer slice = slab.slice(from, bytes).order(ByteOrder.nativeOrder());
+        for (int at = 0; at < bytes; at += ZEROS.length) {
+            slice.put(at, ZEROS, 0, Math.min(ZEROS.length, bytes - at));
+        }
+        return slice;
+    }
+
+    private static synchronized ByteBuffer take(int bytes) {
+        // The smallest free slab that fits, so that large slabs stay for large boards
+        int best = -1;
+        for (int i = 0; i < FREE.size(); i++) {
+            int capacity = FREE.get(i).capacity();
+            if (capacity >= bytes && (best < 0 || capacity < FREE.get(best).capacity())) {
+                best = i;
+            }
+        }
+        if (best < 0) {
+            return ByteBuffer.allocateDirect(bytes);
+        }
+        ByteBuffer slab = FREE.remove(best);
+        freeBytes -= slab.capacity();
+        return slab;
+    }
+
+    private static synchronized void release(List<ByteBuffer> taken) {
+        for (ByteBuffer slab: taken) {
+            if (freeBytes + slab.capacity() <= MAX_POOLED_BYTES) {
+                FREE.add(slab);
+                freeBytes += slab.capacity();
+            }
+        }
+    }
+}
+
+/**
+ * Class {@code OffHeapBoardStorage}, cells and pieces of a board kept in memory of a {@link BoardArena}
+ * instead of {@link ChessPiece} objects. Every cell holds one byte coded as in {@link OccupancyGrid},
+ * with the same border, so the byte tells whether the cell is taken and the type and color of its piece.
+ * Pieces are kept in the input order as indices of their cells.
+ */
+final class OffHeapBoardStorage {
+    /** Types of pieces, {@link PieceType#values()} copies the array on every call. */
+    private static final PieceType[] TYPES = PieceType.values();
+
+    /** The arena of memory. */
+    private final BoardArena arena;
+    /** A variable that represents size of a ChessBoard. */
+    private final int size;
+    /** Distance between vertically adjacent cells. */
+    private final int stride;
+    /** Codes of cells, row by row. */
+    private final ByteBuffer cells;
+    /** Cells of pieces in the input order. */
+    private final IntBuffer pieceCells;
+    /** Offsets of the cells a King steps to, in the order of {@link Directions}. */
+    private final int[] kingOffsets;
+    /** Offsets of the cells a Knight jumps to, in the order of {@link Directions#KNIGHT_DX}. */
+    private final int[] knightOffsets;
+    /** Number of pieces. */
+    private int count;
+
+    /**
+     * Instantiates a new empty Off heap board storage.
+     *
+     * @param boardArena the arena of memory
+     * @param boardSize  the board size
+     * @param capacity   the largest number of pieces
+     */
+    OffHeapBoardStorage(BoardArena boardArena, int boardSize, int capacity) {
+        this(boardArena, boardSize, boardArena.allocate(stride(boardSize) * stride(boardSize)),
+             boardArena.allocate(Math.max(1, capacity) * Integer.BYTES).asIntBuffer(), 0);
+        clear();
+    }
+
+    /**
+     * Instantiates a new Off heap board storage over cells and pieces that are already filled.
+     *
+     * @param boardArena the arena of memory that keeps the buffers
+     * @param boardSize  the board size
+     * @param cellCodes  the codes of cells with the border, row by row
+     * @param cellsOf    the cells of pieces in the input order
+     * @param pieces     the number of pieces
+     */
+    OffHeapBoardStorage(BoardArena boardArena, int boardSize, ByteBuffer cellCodes, IntBuffer cellsOf, int pieces) {
+        this.arena = boardArena;
+        this.size = boardSize;
+        this.stride = stride(boardSize);
+        this.cells = cellCodes;
+        this.pieceCells = cellsOf;
+        this.count = pieces;
+        this.kingOffsets = new int[Directions.DX.length];
+        for (int d = 0; d < kingOffsets.length; d++) {
+            kingOffsets[d] = Directions.DY[d] * stride + Directions.DX[d];
+        }
+        this.knightOffsets = new int[Directions.KNIGHT_DX.length];
+        for (int d = 0; d < knightOffsets.length; d++) {
+            knightOffsets[d] = Directions.KNIGHT_DY[d] * stride + Directions.KNIGHT_DX[d];
+        }
+    }
+
+    /**
+     * Instantiates a new Off heap board storage with the pieces of the position.
+     *
+     * @param boardArena the arena of memory
+     * @param position   the position
+     * @return the storage
+     */
+    static OffHeapBoardStorage of(BoardArena boardArena, Position position) {
+        OffHeapBoardStorage storage = new OffHeapBoardStorage(boardArena, position.getSize(), position.getCount());
+        for (ChessPiece piece: position.getPieces()) {
+            storage.add(piece.getPosition().getX(), piece.getPosition().getY(), piece.getType(), piece.getColor());
+        }
+        return storage;
+    }
+
+    /**
+     * Instantiates a new Off heap board storage with the pieces of the records, no piece object is built.
+     *
+     * @param boardArena the arena of memory
+     * @param boardSize  the board size
+     * @param records    the valid pieces in the input order
+     * @return the storage
+     */
+    static OffHeapBoardStorage of(BoardArena boardArena, int boardSize, PieceRecords records) {
+        OffHeapBoardStorage storage = new OffHeapBoardStorage(boardArena, boardSize, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            storage.add(records.getX(i), records.getY(i), records.getType(i), records.getColor(i));
+        }
+        return storage;
+    }
+
+    /**
+     * Gets distance between vertically adjacent cells of a board of the size.
+     *
+     * @param boardSize the board size
+     * @return the distance
+     */
+    static int stride(int boardSize) {
+        return boardSize + 2 * OccupancyGrid.BORDER;
+    }
+
+    /**
+     * Remove every piece, the cells of the board become empty and the cells of the border off the board.
+     */
+    public void clear() {
+        arena.checkOpen();
+        for (int cell = 0; cell < stride * stride; cell++) {
+            cells.put(cell, OccupancyGrid.OFF_BOARD);
+        }
+        for (int y = 1; y <= size; y++) {
+            for (int x = 1; x <= size; x++) {
+                cells.put(index(x, y), OccupancyGrid.EMPTY);
+            }
+        }
+        count = 0;
+    }
+
+    /**
+     * Add piece after the pieces added before, the cell must be empty.
+     *
+     * @param x     the x
+     * @param y     the y
+     * @param type  the type of piece
+     * @param color the color of piece
+     */
+    public void add(int x, int y, PieceType type, PieceColor color) {
+        arena.checkOpen();
+        cells.put(index(x, y), OccupancyGrid.code(type, color));
+        pieceCells.put(count++, index(x, y));
+    }
+
+    /**
+     * Count moves and captures of every piece by the rules of {@link ChessPiece}.
+     *
+     * @param moves    the array to store moves count of each piece
+     * @param captures the array to store captures count of each piece
+     */
+    public void evaluate(int[] moves, int[] captures) {
+        arena.checkOpen();
+        for (int i = 0; i < count; i++) {
+            countPiece(i, moves, captures, i);
+        }
+    }
+
+    /**
+     * Count moves and captures of one piece by the rules of {@link ChessPiece}.
+     *
+     * @param piece    the index of piece in the input order
+     * @param moves    the array to store moves count
+     * @param captures the array to store captures count
+     * @param slot     the index of the counts in the arrays
+     */
+    public void count(int piece, int[] moves, int[] captures, int slot) {
+        arena.checkOpen();
+        countPiece(piece, moves, captures, slot);
+    }
+
+    private void countPiece(int piece, int[] moves, int[] captures, int slot) {
+        int cell = pieceCells.get(piece);
+        PieceType type = type(piece);
+        PieceColor color = color(piece);
+        int numOfMoves = 0;
+        int numOfCaptures = 0;
+        if (type == PieceType.PAWN) {
+            int forward = color.forward() * stride;
+            if (cells.get(cell + forward) == OccupancyGrid.EMPTY) {
+                numOfMoves += 1;
+            }
+            for (int side = -1; side <= 1; side += 2) {
+                if (OccupancyGrid.isEnemy(cells.get(cell + forward + side), color)) {
+                    numOfCaptures += 1;
+                }
+            }
+        } else if (type == PieceType.KNIGHT || type == PieceType.KING) {
+            for (int offset: type == PieceType.KNIGHT ? knightOffsets : kingOffsets) {
+                byte target = cells.get(cell + offset);
+                if (target == OccupancyGrid.EMPTY) {
+                    numOfMoves += 1;
+                } else if (OccupancyGrid.isEnemy(target, color)) {
+                    numOfCaptures += 1;
+                }
+            }
+        } else {
+            for (int d = 0; d < kingOffsets.length; d++) {
+                if (!type.slidesAlong(d)) {
+                    continue;
+                }
+                int step = cell + kingOffsets[d];
+                while (cells.get(step) == OccupancyGrid.EMPTY) {
+                    numOfMoves += 1;
+                    step += kingOffsets[d];
+                }
+                if (OccupancyGrid.isEnemy(cells.get(step), color)) {
+                    numOfCaptures += 1;
+                }
+            }
+        }
+        moves[slot] = numOfMoves + numOfCaptures;
+        captures[slot] = numOfCaptures;
+    }
+
+    /**
+     * Gets type.
+     *
+     * @param piece the index of piece in the input order
+     * @return the piece type
+     */
+    public PieceType getType(int piece) {
+        arena.checkOpen();
+        return type(piece);
+    }
+
+    /**
+     * Gets color.
+     *
+     * @param piece the index of piece in the input order
+     * @return the piece color
+     */
+    public PieceColor getColor(int piece) {
+        arena.checkOpen();
+        return color(piece);
+    }
+
+    /**
+     * Gets x.
+     *
+     * @param piece the index of piece in the input order
+     * @return the x
+     */
+    public int getX(int piece) {
+        arena.checkOpen();
+        return pieceCells.get(piece) % stride - OccupancyGrid.BORDER + 1;
+    }
+
+    /**
+     * Gets y.
+     *
+     * @param piece the index of piece in the input order
+     * @return the y
+     */
+    public int getY(int piece) {
+        arena.checkOpen();
+        return pieceCells.get(piece) / stride - OccupancyGrid.BORDER + 1;
+    }
+
+    /**
+     * Gets size.
+     *
+     * @return the size of Board
+     */
+    public int getSize() {
+        arena.checkOpen();
+        return size;
+    }
+
+    /**
+     * Gets number of pieces.
+     *
+     * @return the number of pieces
+     */
+    public int getCount() {
+        arena.checkOpen();
+        return count;
+    }
+
+    private PieceType type(int piece) {
+        byte code = cells.get(pieceCells.get(piece));
+        return TYPES[(code & (OccupancyGrid.BLACK_BIT - 1)) - 1];
+    }
+
+    private PieceColor color(int piece) {
+        byte code = cells.get(pieceCells.get(piece));
+        return (code & OccupancyGrid.BLACK_BIT) != 0 ? PieceColor.BLACK : PieceColor.WHITE;
+    }
+
+    private int index(int x, int y) {
+        return (y - 1 + OccupancyGrid.BORDER) * stride + x - 1 + OccupancyGrid.BORDER;
+    }
+}
+
+/**
+ * Class {@code OffHeapEngine} that fills {@link OffHeapBoardStorage} in an arena of its own, from the position
+ * or straight from the records of the input, and counts there. The arena is closed when the counts are done
+ * and its slabs go back to the pool for the next evaluation.
+ */
+class OffHeapEngine implements EvaluationEngine, RecordEngine {
+    @Override
+    public void evaluate(Position position, int[] moves, int[] captures) {
+        try (BoardArena arena = new BoardArena()) {
+            OffHeapBoardStorage.of(arena, position).evaluate(moves, captures);
+        }
+    }
+
+    @Override
+    public void evaluate(int boardSize, PieceRecords records, int[] moves, int[] captures) {
+        try (BoardArena arena = new BoardArena()) {
+            OffHeapBoardStorage.of(arena, boardSize, records).evaluate(moves, captures);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "offheap";
+    }
+}
+
+/**
+ * Class {@code PieceDescriptor}, the movement of a kind of piece as data: leaps to cells at fixed steps,
+ * quiet steps that only move, capture leaps that only capture, and rides that repeat a step until
+ * a piece or the edge stops them. A leap or a ride moves to an empty cell and captures on an enemy one.
+ * Steps of a forward piece, such as the Pawn, are turned around for Black.
+ */
+final class PieceDescriptor {
+    /** Steps of a piece that has none of a kind. */
+    private static final int[][] NONE = new int[0][];
+    /** Steps of a King. */
+    private static final int[][] KING_STEPS = concat(symmetric(0, 1), symmetric(1, 1));
+    /** Steps of a Knight. */
+    private static final int[][] KNIGHT_STEPS = symmetric(1, 2);
+
+    /** The Pawn. */
+    static final PieceDescriptor PAWN =
+            new PieceDescriptor("Pawn", NONE, new int[][] {{0, 1}}, new int[][] {{1, 1}, {-1, 1}}, NONE, true);
+    /** The King. */
+    static final PieceDescriptor KING = new PieceDescriptor("King", KING_STEPS, NONE, NONE, NONE, false);
+    /** The Knight. */
+    static final PieceDescriptor KNIGHT = new PieceDescriptor("Knight", KNIGHT_STEPS, NONE, NONE, NONE, false);
+    /** The Rook. */
+    static final PieceDescriptor ROOK = new PieceDescriptor("Rook", NONE, NONE, NONE, symmetric(0, 1), false);
+    /** The Queen. */
+    static final PieceDescriptor QUEEN = new PieceDescriptor("Queen", NONE, NONE, NONE, KING_STEPS, false);
+    /** The Bishop. */
+    static final PieceDescriptor BISHOP = new PieceDescriptor("Bishop", NONE, NONE, NONE, symmetric(1, 1), false);
+    /** The Camel, a (1, 3) leaper. */
+    static final PieceDescriptor CAMEL = new PieceDescriptor("Camel", symmetric(1, 3), NONE, NONE, NONE, false);
+    /** The Zebra, a (2, 3) leaper. */
+    static final PieceDescriptor ZEBRA = new PieceDescriptor("Zebra", symmetric(2, 3), NONE, NONE, NONE, false);
+    /** The Nightrider, rides along Knight steps. */
+    static final PieceDescriptor NIGHTRIDER =
+            new PieceDescriptor("Nightrider", NONE, NONE, NONE, KNIGHT_STEPS, false);
+    /** The Archbishop, a Bishop and a Knight. */
+    static final PieceDescriptor ARCHBISHOP =
+            new PieceDescriptor("Archbishop", KNIGHT_STEPS, NONE, NONE, symmetric(1, 1), false);
+    /** The Chancellor, a Rook and a Knight. */
+    static final PieceDescriptor CHANCELLOR =
+            new PieceDescriptor("Chancellor", KNIGHT_STEPS, NONE, NONE, symmetric(0, 1), false);
+
+    /** Every descriptor, the position in the list is the id of the descriptor. */
+    private static final List<PieceDescriptor> ALL = Arrays.asList(
+            PAWN, KING, KNIGHT, ROOK, QUEEN, BISHOP, CAMEL, ZEBRA, NIGHTRIDER, ARCHBISHOP, CHANCELLOR);
+    /** Descriptors of the types of pieces, in the order of {@link PieceType}. */
+    private static final PieceDescriptor[] OF_TYPE = new PieceDescriptor[PieceType.values().length];
+
+    static {
+        for (PieceType type: PieceType.values()) {
+            OF_TYPE[type.ordinal()] = forName(type.name().charAt(0) + type.name().substring(1).toLowerCase());
+        }
+    }
+
+    /** Name of the piece in the input. */
+    private final String name;
+    /** Steps that move to an empty cell or capture on an enemy one. */
+    private final int[][] leaps;
+    /** Steps that only move to an empty cell. */
+    private final int[][] quietSteps;
+    /** Steps that only capture on an enemy cell. */
+    private final int[][] captureLeaps;
+    /** Steps that are repeated until a piece or the edge. */
+    private final int[][] rides;
+    /** Are the steps turned around for Black. */
+    private final boolean forward;
+
+    private PieceDescriptor(String pieceName, int[][] leapSteps, int[][] quiet, int[][] captureOnly,
+                            int[][] rideSteps, boolean forwardOnly) {
+        this.name = pieceName;
+        this.leaps = leapSteps;
+        this.quietSteps = quiet;
+        this.captureLeaps = captureOnly;
+        this.rides = rideSteps;
+        this.forward = forwardOnly;
+    }
+
+    /**
+     * Gets every descriptor.
+     *
+     * @return the descriptors in the order of their ids
+     */
+    static List<PieceDescriptor> all() {
+        return ALL;
+    }
+
+    /**
+     * Gets descriptor by the name of the input.
+     *
+     * @param name the name, such as "Knight" or "Camel"
+     * @return the descriptor, null for an unknown name
+     */
+    static PieceDescriptor forName(String name) {
+        for (PieceDescriptor descriptor: ALL) {
+            if (descriptor.name.equals(name)) {
+                return descriptor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets descriptor of the type of piece.
+     *
+     * @param type the piece type
+     * @return the descriptor
+     */
+    static PieceDescriptor of(PieceType type) {
+        return OF_TYPE[type.ordinal()];
+    }
+
+    /**
+     * Gets id, the position in {@link #all()}.
+     *
+     * @return the id
+     */
+    public int getId() {
+        return ALL.indexOf(this);
+    }
+
+    /**
+     * Gets name.
+     *
+     * @return the name in the input
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the farthest cell any step reaches along a coordinate.
+     *
+     * @return the reach
+     */
+    public int getReach() {
+        int reach = 0;
+        for (int[][] steps: new int[][][] {leaps, quietSteps, captureLeaps, rides}) {
+            for (int[] step: steps) {
+                reach = Math.max(reach, Math.max(Math.abs(step[0]), Math.abs(step[1])));
+            }
+        }
+        return reach;
+    }
+
+    /**
+     * Gets steps that move to an empty cell or capture on an enemy one.
+     *
+     * @param color the color of piece
+     * @return the steps as pairs of x and y
+     */
+    public int[][] getLeaps(PieceColor color) {
+        return turned(leaps, color);
+    }
+
+    /**
+     * Gets steps that only move.
+     *
+     * @param color the color of piece
+     * @return the steps as pairs of x and y
+     */
+    public int[][] getQuietSteps(PieceColor color) {
+        return turned(quietSteps, color);
+    }
+
+    /**
+     * Gets steps that only capture.
+     *
+     * @param color the color of piece
+     * @return the steps as pairs of x and y
+     */
+    public int[][] getCaptureLeaps(PieceColor color) {
+        return turned(captureLeaps, color);
+    }
+
+    /**
+     * Gets steps that are repeated until a piece or the edge.
+     *
+     * @param color the color of piece
+     * @return the steps as pairs of x and y
+     */
+    public int[][] getRides(PieceColor color) {
+        return turned(rides, color);
+    }
+
+    private int[][] turned(int[][] steps, PieceColor color) {
+        if (!forward) {
+            return steps;
+        }
+        int[][] result = new int[steps.length][];
+        for (int k = 0; k < steps.length; k++) {
+            result[k] = new int[] {steps[k][0], steps[k][1] * color.forward()};
+        }
+        return result;
+    }
+
+    /**
+     * Gets the distinct steps of a leaper: (a, b) in every direction, with the coordinates swapped too.
+     *
+     * @param a the step along one coordinate
+     * @param b the step along the other coordinate
+     * @return the steps as pairs of x and y
+     */
+    private static int[][] symmetric(int a, int b) {
+        List<int[]> result = new ArrayList<>();
+        for (int[] step: new int[][] {{a, b}, {b, a}}) {
+            for (int sx = -1; sx <= 1; sx += 2) {
+                for (int sy = -1; sy <= 1; sy += 2) {
+                    int[] candidate = {step[0] * sx, step[1] * sy};
+                    if (result.stream().noneMatch(known -> Arrays.equals(known, candidate))) {
+                        result.add(candidate);
+                    }
+                }
+            }
+        }
+        return result.toArray(new int[0][]);
+    }
+
+    private static int[][] concat(int[][] first, int[][] second) {
+        int[][] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
+
+/**
+ * Class {@code MovementTable}, the steps of every {@link PieceDescriptor} and color compiled to offsets
+ * between cells of a board of one size. The cells have a border as wide as the farthest step,
+ * so that a step from any cell lands on a cell of the board or of the border and a ride stops at the border.
+ * Tables are compiled once per board size and shared.
+ */
+final class MovementTable {
+    /** Code of an empty cell. */
+    static final byte EMPTY = 0;
+    /** Code of a cell of the border. */
+    static final byte OFF_BOARD = 4;
+    /** Width of the border, the farthest step of any descriptor. */
+    static final int BORDER = PieceDescriptor.all().stream().mapToInt(PieceDescriptor::getReach).max().orElse(1);
+    /** Colors of pieces, {@link PieceColor#values()} copies the array on every call. */
+    private static final PieceColor[] COLORS = PieceColor.values();
+    /** Tables of every board size that has been used. */
+    private static final Map<Integer, MovementTable> BY_SIZE = new ConcurrentHashMap<>();
+    /** Table returned last, boards of a run usually have the same size. */
+    private static volatile MovementTable last;
+
+    /** A variable that represents size of a ChessBoard. */
+    private final int size;
+    /** Distance between vertically adjacent cells. */
+    private final int stride;
+    /** Offsets of leaps of every kind, a kind is {@link #kind(PieceDescriptor, PieceColor)}. */
+    private final int[][] leaps;
+    /** Offsets of quiet steps of every kind. */
+    private final int[][] quietSteps;
+    /** Offsets of capture leaps of every kind. */
+    private final int[][] captureLeaps;
+    /** Offsets of rides of every kind. */
+    private final int[][] rides;
+
+    private MovementTable(int boardSize) {
+        this.size = boardSize;
+        this.stride = boardSize + 2 * BORDER;
+        int kinds = PieceDescriptor.all().size() * COLORS.length;
+        this.leaps = new int[kinds][];
+        this.quietSteps = new int[kinds][];
+        this.captureLeaps = new int[kinds][];
+        this.rides = new int[kinds][];
+        for (PieceDescriptor descriptor: PieceDescriptor.all()) {
+            for (PieceColor color: COLORS) {
+                int kind = kind(descriptor, color);
+                leaps[kind] = offsets(descriptor.getLeaps(color));
+                quietSteps[kind] = offsets(descriptor.getQuietSteps(color));
+                captureLeaps[kind] = offsets(descriptor.getCaptureLeaps(color));
+                rides[kind] = offsets(descriptor.getRides(color));
+            }
+        }
+    }
+
+    /**
+     * Gets table of the board size.
+     *
+     * @param boardSize the board size
+     * @return the table shared by all boards of this size
+     */
+    static MovementTable forSize(int boardSize) {
+        MovementTable table = last;
+        if (table == null || table.size != boardSize) {
+            table = BY_SIZE.computeIfAbsent(boardSize, MovementTable::new);
+            last = table;
+        }
+        return table;
+    }
+
+    /**
+     * Gets kind of piece, the index of its offsets.
+     *
+     * @param descriptor the descriptor
+     * @param color      the color
+     * @return the kind
+     */
+    static int kind(PieceDescriptor descriptor, PieceColor color) {
+        return descriptor.getId() * COLORS.length + color.ordinal();
+    }
+
+    /**
+     * Gets code of a cell taken by a piece of the color.
+     *
+     * @param color the color
+     * @return the code
+     */
+    static byte code(PieceColor color) {
+        return (byte) (1 + color.ordinal());
+    }
+
+    /**
+     * Gets code of a cell taken by an enemy of the kind.
+     *
+     * @param kind the kind of piece
+     * @return the code
+     */
+    static byte enemyCode(int kind) {
+        return code(COLORS[COLORS.length - 1 - kind % COLORS.length]);
+    }
+
+    /**
+     * Create cells of the board, the cells of the board are empty and the border is off the board.
+     *
+     * @return the cells, row by row
+     */
+    public byte[] newCells() {
+        byte[] cells = new byte[stride * stride];
+        Arrays.fill(cells, OFF_BOARD);
+        for (int y = 1; y <= size; y++) {
+            Arrays.fill(cells, index(1, y), index(size, y) + 1, EMPTY);
+        }
+        return cells;
+    }
+
+    /**
+     * Gets number of cells with the border.
+     *
+     * @return the number of cells
+     */
+    public int getCellCount() {
+        return stride * stride;
+    }
+
+    /**
+     * Gets index of the cell.
+     *
+     * @param x the x
+     * @param y the y
+     * @return the index in the cells
+     */
+    public int index(int x, int y) {
+        return (y - 1 + BORDER) * stride + x - 1 + BORDER;
+    }
+
+    /**
+     * Gets offsets of leaps of every kind.
+     *
+     * @return the offsets
+     */
+    public int[][] getLeaps() {
+        return leaps;
+    }
+
+    /**
+     * Gets offsets of quiet steps of every kind.
+     *
+     * @return the offsets
+     */
+    public int[][] getQuietSteps() {
+        return quietSteps;
+    }
+
+    /**
+     * Gets offsets of capture leaps of every kind.
+     *
+     * @return the offsets
+     */
+    public int[][] getCaptureLeaps() {
+        return captureLeaps;
+    }
+
+    /**
+     * Gets offsets of rides of every kind.
+     *
+     * @return the offsets
+     */
+    public int[][] getRides() {
+        return rides;
+    }
+
+    /**
+     * Gets size.
+     *
+     * @return the size of Board
+     */
+    public int getSize() {
+        return size;
+    }
+
+    private int[] offsets(int[][] steps) {
+        int[] result = new int[steps.length];
+        for (int k = 0; k < steps.length; k++) {
+            result[k] = steps[k][1] * stride + steps[k][0];
+        }
+        return result;
+    }
+}
+
+/**
+ * Class {@code DescriptorEngine} that counts every piece with one loop over the offsets
+ * of {@link MovementTable}, the loop does not depend on the type of piece.
+ */
+class DescriptorEngine implements EvaluationEngine {
+    /** Cells of the last board size of every thread, empty between evaluations. */
+    private static final ThreadLocal<byte[][]> CELLS = ThreadLocal.withInitial(() -> new byte[1][0]);
+    /** Types of pieces. */
+    private static final PieceType[] TYPES = PieceType.values();
+    /** Colors of pieces, {@link PieceColor#values()} copies the array on every call. */
+    private static final PieceColor[] COLORS = PieceColor.values();
+    /** Kind of piece of every type and color, indexed by type and then color. */
+    private static final int[] KIND_OF_TYPE = new int[TYPES.length * COLORS.length];
+
+    static {
+        for (PieceType type: TYPES) {
+            for (PieceColor color: COLORS) {
+                KIND_OF_TYPE[type.ordinal() * COLORS.length + color.ordinal()] =
+                        MovementTable.kind(PieceDescriptor.of(type), color);
+            }
+        }
+    }
+
+    @Override
+    public void evaluate(Position position, int[] moves, int[] captures) {
+        ChessPiece[] pieces = position.getPieces();
+        int m = pieces.length;
+        MovementTable table = MovementTable.forSize(position.getSize());
+        EvaluationScratch scratch = EvaluationScratch.forThread();
+        int[] kinds = scratch.ints(EvaluationScratch.GROUP_OF, m);
+        int[] cells = scratch.ints(EvaluationScratch.CELLS, m);
+        for (int i = 0; i < m; i++) {
+            ChessPiece piece = pieces[i];
+            kinds[i] = KIND_OF_TYPE[piece.getType().ordinal() * COLORS.length + piece.getColor().ordinal()];
+            cells[i] = table.index(piece.getPosition().getX(), piece.getPosition().getY());
+        }
+        count(table, kinds, cells, m, moves, captures);
+    }
+
+    /**
+     * Count moves and captures of pieces of any descriptors.
+     *
+     * @param table    the table of the board size
+     * @param kinds    the kinds of pieces of {@link MovementTable#kind(PieceDescriptor, PieceColor)}
+     * @param cells    the cells of pieces in the table
+     * @param m        the number of pieces
+     * @param moves    the array to store moves count of each piece
+     * @param captures the array to store captures count of each piece
+     */
+    static void count(MovementTable table, int[] kinds, int[] cells, int m, int[] moves, int[] captures) {
+        byte[][] holder = CELLS.get();
+        byte[] board = holder[0];
+        if (board.length != table.getCellCount()) {
+            board = table.newCells();
+            holder[0] = board;
+        }
+        for (int i = 0; i < m; i++) {
+            board[cells[i]] = MovementTable.code(COLORS[kinds[i] % COLORS.length]);
+        }
+        int[][] leaps = table.getLeaps();
+        int[][] quietSteps = table.getQuietSteps();
+        int[][] captureLeaps = table.getCaptureLeaps();
+        int[][] rides = table.getRides();
+        for (int i = 0; i < m; i++) {
+            int kind = kinds[i];
+            int cell = cells[i];
+            byte enemy = MovementTable.enemyCode(kind);
+            int numOfMoves = 0;
+            int numOfCaptures = 0;
+            for (int offset: leaps[kind]) {
+                byte target = board[cell + offset];
+                numOfMoves += target == MovementTable.EMPTY ? 1 : 0;
+                numOfCaptures += target == enemy ? 1 : 0;
+            }
+            for (int offset: quietSteps[kind]) {
+                numOfMoves += board[cell + offset] == MovementTable.EMPTY ? 1 : 0;
+            }
+            for (int offset: captureLeaps[kind]) {
+                numOfCaptures += board[cell + offset] == enemy ? 1 : 0;
+            }
+            for (int offset: rides[kind]) {
+                int step = cell + offset;
+                while (board[step] == MovementTable.EMPTY) {
+                    numOfMoves += 1;
+                    step += offset;
+                }
+                numOfCaptures += board[step] == enemy ? 1 : 0;
+            }
+            moves[i] = numOfMoves + numOfCaptures;
+            captures[i] = numOfCaptures;
+        }
+        for (int i = 0; i < m; i++) {
+            board[cells[i]] = MovementTable.EMPTY;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "descriptor";
+    }
+}
+
+/**
+ * Class {@code VariantRun} that evaluates inputs with pieces of every {@link PieceDescriptor},
+ * such as "Camel White 2 3". The input is checked by the rules and in the order of {@link Position#load},
+ * the pieces are counted by {@link DescriptorEngine}.
+ */
+class VariantRun {
+    /** The error writer. */
+    private final ErrorWriter err;
+    /** Flag that writes {@link AggregateStatistics} instead of a line of every piece. */
+    private final boolean aggregate;
+
+    /**
+     * Instantiates a new Variant run.
+     *
+     * @param errorWriter the error writer
+     */
+    VariantRun(ErrorWriter errorWriter) {
+        this(errorWriter, false);
+    }
+
+    /**
+     * Instantiates a new Variant run.
+     *
+     * @param errorWriter the error writer
+     * @param aggregate   true if the summary of the counts is written
+     */
+    VariantRun(ErrorWriter errorWriter, boolean aggregate) {
+        this.err = errorWriter;
+        this.aggregate = aggregate;
+    }
+
+    /**
+     * Evaluate the input and write the output.
+     *
+     * @param inputFile  the input file
+     * @param outputFile the name of output file
+     */
+    public void run(Path inputFile, String outputFile) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(inputFile, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            err.reportFatalError(new InvalidInputException());
+            return;
+        }
+        Parse parser = new Parse(err);
+        int n = parser.parseBoardSize(lines);
+        int m = parser.parseNumberOfPieces(lines, n);
+        if (m != lines.size() - 2) {
+            err.reportFatalError(new InvalidNumberOfPiecesException());
+        }
+
+        MovementTable table = MovementTable.forSize(n);
+        int[] kinds = new int[m];
+        int[] cells = new int[m];
+        boolean[] taken = new boolean[n * n];
+        PieceLineParser lineParser = new PieceLineParser(n, err, true, true);
+        for (int i = 0; i < m; i++) {
+            lineParser.parse(lines.get(i + 2));
+            int x = lineParser.getLineX();
+            int y = lineParser.getLineY();
+            if (taken[(y - 1) * n + x - 1]) {
+                err.reportFatalError(new InvalidPiecePositionException());
+            }
+            taken[(y - 1) * n + x - 1] = true;
+            kinds[i] = MovementTable.kind(lineParser.getLineDescriptor(), lineParser.getLineColor());
+            cells[i] = table.index(x, y);
+        }
+        lineParser.checkKings();
+
+        int[] moves = new int[m];
+        int[] captures = new int[m];
+        DescriptorEngine.count(table, kinds, cells, m, moves, captures);
+        if (aggregate) {
+            AggregateStatistics.of(kinds, moves, captures, m).write(outputFile);
+        } else {
+            Main.writeResults(outputFile, moves, captures, m);
+        }
+    }
+}
+
+/**
+ * Class {@code AggregateStatistics}, totals of moves and captures of the pieces of a position:
+ * per color, per color and kind of piece, and histograms of the counts of pieces by their moves and captures.
+ * Chunks of pieces are accumulated in parallel, every thread into statistics of its own
+ * that are merged at the end, and the summary takes a few lines instead of one line per piece.
+ */
+final class AggregateStatistics {
+    /** Number of pieces in a chunk accumulated by one thread. */
+    private static final int CHUNK_PIECES = 1 << 14;
+    /** Colors of pieces, {@link PieceColor#values()} copies the array on every call. */
+    private static final PieceColor[] COLORS = PieceColor.values();
+
+    /** Number of pieces of every kind of {@link MovementTable#kind(PieceDescriptor, PieceColor)}. */
+    private final long[] pieces = new long[PieceDescriptor.all().size() * COLORS.length];
+    /** Sum of moves of every kind. */
+    private final long[] moves = new long[pieces.length];
+    /** Sum of captures of every kind. */
+    private final long[] captures = new long[pieces.length];
+    /** Number of pieces by their moves count. */
+    private long[] movesHistogram = new long[0];
+    /** Number of pieces by their captures count. */
+    private long[] capturesHistogram = new long[0];
+
+    /**
+     * Accumulate the counts of every piece.
+     *
+     * @param kinds         the kinds of pieces
+     * @param movesCount    the moves counts
+     * @param capturesCount the captures counts
+     * @param count         the number of pieces
+     * @return the statistics
+     */
+    static AggregateStatistics of(int[] kinds, int[] movesCount, int[] capturesCount, int count) {
+        return IntStream.range(0, (count + CHUNK_PIECES - 1) / CHUNK_PIECES).parallel().collect(
+                AggregateStatistics::new,
+                (statistics, chunk) -> {
+                    for (int i = chunk * CHUNK_PIECES; i < Math.min(count, (chunk + 1) * CHUNK_PIECES); i++) {
+                        statistics.add(kinds[i], movesCount[i], capturesCount[i]);
+                    }
+                },
+                AggregateStatistics::merge);
+    }
+
+    /**
+     * Accumulate the counts of every piece of the position.
+     *
+     * @param position      the position
+     * @param movesCount    the moves counts
+     * @param capturesCount the captures counts
+     * @return the statistics
+     */
+    static AggregateStatistics of(Position position, int[] movesCount, int[] capturesCount) {
+        ChessPiece[] positionPieces = position.getPieces();
+        int[] kinds = new int[positionPieces.length];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = MovementTable.kind(PieceDescriptor.of(positionPieces[i].getType()), positionPieces[i].getColor());
+        }
+        return of(kinds, movesCount, capturesCount, kinds.length);
+    }
+
+    /**
+     * Add counts of one piece.
+     *
+     * @param kind          the kind of piece
+     * @param movesCount    the moves count
+     * @param capturesCount the captures count
+     */
+    public void add(int kind, int movesCount, int capturesCount) {
+        pieces[kind] += 1;
+        moves[kind] += movesCount;
+        captures[kind] += capturesCount;
+        movesHistogram = increment(movesHistogram, movesCount, 1);
+        capturesHistogram = increment(capturesHistogram, capturesCount, 1);
+    }
+
+    /**
+     * Add the statistics of other pieces.
+     *
+     * @param other the statistics
+     */
+    public void merge(AggregateStatistics other) {
+        for (int kind = 0; kind < pieces.length; kind++) {
+            pieces[kind] += other.pieces[kind];
+            moves[kind] += other.moves[kind];
+            captures[kind] += other.captures[kind];
+        }
+        for (int value = 0; value < other.movesHistogram.length; value++) {
+            movesHistogram = increment(movesHistogram, value, other.movesHistogram[value]);
+        }
+        for (int value = 0; value < other.capturesHistogram.length; value++) {
+            capturesHistogram = increment(capturesHistogram, value, other.capturesHistogram[value]);
+        }
+    }
+
+    private static long[] increment(long[] histogram, int value, long by) {
+        long[] result = histogram;
+        if (value >= result.length) {
+            if (by == 0) {
+                return result;
+            }
+            result = Arrays.copyOf(result, Math.max(value + 1, 2 * result.length));
+        }
+        result[value] += by;
+        return result;
+    }
+
+    /**
+     * Write the summary: totals of all pieces, of every color and of every kind present,
+     * then the histograms as pairs of a count and the number of pieces with it.
+     *
+     * @param fileName the name of output file
+     */
+    public void write(String fileName) {
+        StringBuilder text = new StringBuilder();
+        line(text, "All", 0, pieces.length, 1);
+        for (PieceColor color: COLORS) {
+            line(text, name(color), color.ordinal(), pieces.length, COLORS.length);
+        }
+        for (PieceDescriptor descriptor: PieceDescriptor.all()) {
+            for (PieceColor color: COLORS) {
+                int kind = MovementTable.kind(descriptor, color);
+                if (pieces[kind] > 0) {
+                    line(text, name(color) + " " + descriptor.getName(), kind, kind + 1, 1);
+                }
+            }
+        }
+        histogram(text, "Moves", movesHistogram);
+        histogram(text, "Captures", capturesHistogram);
+        try (FileWriter writer = new FileWriter(fileName, false)) {
+            writer.write(text.toString());
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    private void line(StringBuilder text, String label, int from, int to, int step) {
+        long numOfPieces = 0;
+        long numOfMoves = 0;
+        long numOfCaptures = 0;
+        for (int kind = from; kind < to; kind += step) {
+            numOfPieces += pieces[kind];
+            numOfMoves += moves[kind];
+            numOfCaptures += captures[kind];
+        }
+        text.append(label).append(": pieces ").append(numOfPieces).append(" moves ").append(numOfMoves)
+                .append(" captures ").append(numOfCaptures).append('\n');
+    }
+
+    private static void histogram(StringBuilder text, String label, long[] histogram) {
+        text.append(label).append(" histogram:");
+        for (int value = 0; value < histogram.length; value++) {
+            if (histogram[value] > 0) {
+                text.append(' ').append(value).append('x').append(histogram[value]);
+            }
+        }
+        text.append('\n');
+    }
+
+    private static String name(PieceColor color) {
+        return color.name().charAt(0) + color.name().substring(1).toLowerCase();
+    }
+}
+
+/**
+ * Class {@code ShardWorker}, the process of {@link ShardedRun} that counts the pieces of one strip of rows.
+ * The strip file holds the board size, the first and the last row of the strip and the pieces of the strip
+ * together with the pieces of {@link MovementTable#BORDER} rows around it, which only stop the steps.
+ * The cells beyond those rows are a fence: a ride of a Rook, Bishop or Queen that reaches it is written
+ * as a ray to be finished by {@link ShardedRun}. For every file, diagonal and anti-diagonal the worker writes
+ * the lowest and the highest piece of the strip with their colors, a ride entering the strip from
+ * below or from above stops at them.
+ */
+class ShardWorker {
+    /** Line kind of the files, the lines of one x. */
+    static final int FILES = 0;
+    /** Line kind of the diagonals, the lines of one x - y. */
+    static final int DIAGONALS = 1;
+    /** Line kind of the anti-diagonals, the lines of one x + y. */
+    static final int ANTI_DIAGONALS = 2;
+    /** Number of line kinds. */
+    static final int LINE_KINDS = 3;
+    /** Number of bits of the cell code of a piece in a packed line end. */
+    static final int CODE_BITS = 2;
+    /** Mask of the cell code of a piece in a packed line end. */
+    static final int CODE_MASK = (1 << CODE_BITS) - 1;
+    /** Index of a piece of the rows around the strip, it is not counted. */
+    static final int AROUND = -1;
+    /** Bytes of the header of a strip file: the board size, the first and the last row. */
+    static final int HEADER_BYTES = 3 * Integer.BYTES;
+    /** Bytes of a piece of a strip file: the index, the kind, x and y. */
+    static final int PIECE_BYTES = 3 * Integer.BYTES + 1;
+    /** Suffix of the file of counts: the index, kind, moves and captures of every piece of the strip. */
+    static final String COUNTS = ".counts";
+    /** Suffix of the file of rays: the index, the step, the cell at the fence and the enemy code. */
+    static final String RAYS = ".rays";
+    /** Suffix of the file of line ends: the line kind, the line, its lowest and its highest piece. */
+    static final String LINES = ".lines";
+    /** Number of values of a ray. */
+    static final int RAY_INTS = 6;
+    /** Number of values of a line end record. */
+    static final int LINE_END_INTS = 4;
+    /** Size of the buffers of files. */
+    static final int BUFFER_BYTES = 1 << 16;
+
+    /** Code of a cell beyond the rows around the strip. */
+    private static final byte FENCE = 5;
+    /** Colors of pieces, {@link PieceColor#values()} copies the array on every call. */
+    private static final PieceColor[] COLORS = PieceColor.values();
+
+    /** The strip file. */
+    private final Path stripFile;
+
+    /**
+     * Instantiates a new Shard worker.
+     *
+     * @param file the strip file
+     */
+    ShardWorker(Path file) {
+        this.stripFile = file;
+    }
+
+    /**
+     * Gets number of lines of the kind.
+     *
+     * @param kind the line kind
+     * @param n    the board size
+     * @return the number of lines
+     */
+    static int lines(int kind, int n) {
+        return kind == FILES ? n : 2 * n - 1;
+    }
+
+    /**
+     * Gets line of the kind through the cell.
+     *
+     * @param kind the line kind
+     * @param n    the board size
+     * @param x    the x
+     * @param y    the y
+     * @return the line
+     */
+    static int lineOf(int kind, int n, int x, int y) {
+        if (kind == FILES) {
+            return x - 1;
+        }
+        return kind == DIAGONALS ? x - y + n - 1 : x + y - 2;
+    }
+
+    /**
+     * Gets file next to the strip file.
+     *
+     * @param file   the strip file
+     * @param suffix the suffix of the file
+     * @return the file
+     */
+    static Path sibling(Path file, String suffix) {
+        return file.resolveSibling(file.getFileName() + suffix);
+    }
+
+    /**
+     * Count the pieces of the strip and write the counts, the rays and the line ends.
+     *
+     * @throws IOException if a file can not be read or written
+     */
+    public void run() throws IOException {
+        int records = (int) ((Files.size(stripFile) - HEADER_BYTES) / PIECE_BYTES);
+        int[] indices = new int[records];
+        int[] kinds = new int[records];
+        int[] xs = new int[records];
+        int[] ys = new int[records];
+        int n;
+        int lo;
+        int hi;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(stripFile), BUFFER_BYTES))) {
+            n = in.readInt();
+            lo = in.readInt();
+            hi = in.readInt();
+            for (int i = 0; i < records; i++) {
+                indices[i] = in.readInt();
+                kinds[i] = in.readByte();
+                xs[i] = in.readInt();
+                ys[i] = in.readInt();
+            }
+        }
+
+        int stride = n + 2 * MovementTable.BORDER;
+        int first = lo - MovementTable.BORDER - 1;
+        byte[] board = new byte[(hi - first + MovementTable.BORDER + 2) * stride];
+        Arrays.fill(board, MovementTable.OFF_BOARD);
+        for (int y = Math.max(1, first); y <= Math.min(n, hi + MovementTable.BORDER + 1); y++) {
+            boolean around = y >= lo - MovementTable.BORDER && y <= hi + MovementTable.BORDER;
+            int from = (y - first) * stride + MovementTable.BORDER;
+            Arrays.fill(board, from, from + n, around ? MovementTable.EMPTY : FENCE);
+        }
+        for (int i = 0; i < records; i++) {
+            board[(ys[i] - first) * stride + xs[i] - 1 + MovementTable.BORDER] =
+                    MovementTable.code(COLORS[kinds[i] % COLORS.length]);
+        }
+
+        int[][] lineEnds = new int[2 * LINE_KINDS][];
+        for (int kind = 0; kind < LINE_KINDS; kind++) {
+            lineEnds[2 * kind] = new int[lines(kind, n)];
+            lineEnds[2 * kind + 1] = new int[lines(kind, n)];
+        }
+        MovementTable table = MovementTable.forSize(n);
+        try (DataOutputStream counts = open(COUNTS); DataOutputStream rays = open(RAYS)) {
+            for (int i = 0; i < records; i++) {
+                if (indices[i] != AROUND) {
+                    count(table, board, first, indices[i], kinds[i], xs[i], ys[i], counts, rays);
+                    addLineEnds(lineEnds, n, xs[i], ys[i], MovementTable.code(COLORS[kinds[i] % COLORS.length]));
+                }
+            }
+        }
+        try (DataOutputStream out = open(LINES)) {
+            for (int kind = 0; kind < LINE_KINDS; kind++) {
+                for (int line = 0; line < lines(kind, n); line++) {
+                    if (lineEnds[2 * kind][line] != 0) {
+                        out.writeInt(kind);
+                        out.writeInt(line);
+                        out.writeInt(lineEnds[2 * kind][line]);
+                        out.writeInt(lineEnds[2 * kind + 1][line]);
+                    }
+                }
+            }
+        }
+    }
+
+    private DataOutputStream open(String suffix) throws IOException {
+        return new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(sibling(stripFile, suffix)), BUFFER_BYTES));
+    }
+
+    private static void count(MovementTable table, byte[] board, int first, int index, int kind, int x, int y,
+                              DataOutputStream counts, DataOutputStream rays) throws IOException {
+        int cell = (y - first) * (table.getSize() + 2 * MovementTable.BORDER) + x - 1 + MovementTable.BORDER;
+        byte enemy = MovementTable.enemyCode(kind);
+        int numOfMoves = 0;
+        int numOfCaptures = 0;
+        for (int offset: table.getLeaps()[kind]) {
+            byte target = board[cell + offset];
+            numOfMoves += target == MovementTable.EMPTY ? 1 : 0;
+            numOfCaptures += target == enemy ? 1 : 0;
+        }
+        for (int offset: table.getQuietSteps()[kind]) {
+            numOfMoves += board[cell + offset] == MovementTable.EMPTY ? 1 : 0;
+        }
+        for (int offset: table.getCaptureLeaps()[kind]) {
+            numOfCaptures += board[cell + offset] == enemy ? 1 : 0;
+        }
+        int[] offsets = table.getRides()[kind];
+        int[][] steps = PieceDescriptor.all().get(kind / COLORS.length).getRides(COLORS[kind % COLORS.length]);
+        for (int k = 0; k < offsets.length; k++) {
+            int step = cell + offsets[k];
+            int walked = 0;
+            while (board[step] == MovementTable.EMPTY) {
+                walked += 1;
+                step += offsets[k];
+            }
+            numOfMoves += walked;
+            if (board[step] == FENCE) {
+                rays.writeInt(index);
+                rays.writeInt(steps[k][0]);
+                rays.writeInt(steps[k][1]);
+                rays.writeInt(x + steps[k][0] * (walked + 1));
+                rays.writeInt(y + steps[k][1] * (walked + 1));
+                rays.writeInt(enemy);
+            } else {
+                numOfCaptures += board[step] == enemy ? 1 : 0;
+            }
+        }
+        counts.writeInt(index);
+        counts.writeInt(kind);
+        counts.writeInt(numOfMoves + numOfCaptures);
+        counts.writeInt(numOfCaptures);
+    }
+
+    private static void addLineEnds(int[][] lineEnds, int n, int x, int y, byte code) {
+        int end = y << CODE_BITS | code;
+        for (int kind = 0; kind < LINE_KINDS; kind++) {
+            int line = lineOf(kind, n, x, y);
+            if (lineEnds[2 * kind][line] == 0 || lineEnds[2 * kind][line] > end) {
+                lineEnds[2 * kind][line] = end;
+            }
+            if (lineEnds[2 * kind + 1][line] < end) {
+                lineEnds[2 * kind + 1][line] = end;
+            }
+        }
+    }
+}
+
+/**
+ * Class {@code ShardedRun} that evaluates a position too large for one process, the board is split into strips
+ * of rows and every strip is counted by a {@link ShardWorker} process of its own. The input is checked line
+ * by line in the order of {@link Position#load} and the pieces are written to the files of the strips
+ * without keeping them, so the board size is limited by {@code --max-size} instead of {@link Parse#MAX_BOARD_SIZE}.
+ * Rays of the workers are finished from the lowest and the highest pieces of the lines of the other strips,
+ * then the counts of the workers are merged back into the input order.
+ */
+class ShardedRun {
+    /** Prefix of the strip files. */
+    private static final String STRIP = "strip-";
+    /** Number of values of a finished ray: the index, moves and captures. */
+    private static final int FINISHED_INTS = 3;
+    /** Number of values of the counts of a piece: the index, kind, moves and captures. */
+    private static final int COUNT_INTS = 4;
+
+    /** The run options. */
+    private final RunOptions options;
+    /** A variable that represents size of a ChessBoard. */
+    private int size;
+    /** Number of pieces. */
+    private int count;
+    /** Number of strips. */
+    private int strips;
+    /** First row of every strip, with the row after the last strip at the end. */
+    private int[] start;
+    /** Lowest and highest pieces of every line of every strip, indexed by strip, 2 * line kind + end, line. */
+    private int[][][] lineEnds;
+
+    /**
+     * Instantiates a new Sharded run.
+     *
+     * @param runOptions the run options
+     */
+    ShardedRun(RunOptions runOptions) {
+        this.options = runOptions;
+    }
+
+    /**
+     * Check the input, count the strips in worker processes and write the output.
+     *
+     * @param inputFile  the input file
+     * @param outputFile the name of output file
+     * @param err        the error writer
+     */
+    public void run(Path inputFile, String outputFile, ErrorWriter err) {
+        Path directory = null;
+        try {
+            Files.deleteIfExists(Paths.get(outputFile));
+            directory = Files.createTempDirectory("chess-shards");
+            directory.toFile().deleteOnExit();
+        } catch (IOException e) {
+            fail(outputFile, e.getMessage());
+        }
+        try {
+            split(inputFile, directory, err);
+        } catch (IOException e) {
+            err.reportFatalError(new InvalidInputException());
+            return;
+        }
+        try {
+            countStrips(directory);
+            merge(directory, outputFile);
+        } catch (IOException e) {
+            fail(outputFile, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(outputFile, "interrupted while waiting for the workers");
+        }
+    }
+
+    /**
+     * Stop the run that could not count the strips, the output is removed so that
+     * no output of an earlier run is left, and the process exits with code 1.
+     *
+     * @param outputFile the name of output file
+     * @param message    the reason
+     */
+    private static void fail(String outputFile, String message) {
+        System.out.println("sharded evaluation failed: " + message);
+        try {
+            Files.deleteIfExists(Paths.get(outputFile));
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+        System.exit(1);
+    }
+
+    private Path stripFile(Path directory, int strip) {
+        return directory.resolve(STRIP + strip);
+    }
+
+    private void split(Path inputFile, Path directory, ErrorWriter err) throws IOException {
+        List<String> head = new ArrayList<>();
+        int numOfLines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(inputFile, StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (numOfLines < 2) {
+                    head.add(line);
+                }
+                numOfLines += 1;
+            }
+        }
+        Parse parser = new Parse(err, options.getMaxBoardSize());
+        size = parser.parseBoardSize(head);
+        count = parser.parseNumberOfPieces(head, size);
+        if (count != numOfLines - 2) {
+            err.reportFatalError(new InvalidNumberOfPiecesException());
+        }
+
+        strips = Math.min(options.getShards(), size);
+        start = new int[strips + 1];
+        for (int s = 0; s <= strips; s++) {
+            start[s] = (int) ((long) s * size / strips) + 1;
+        }
+        DataOutputStream[] out = new DataOutputStream[strips];
+        try {
+            for (int s = 0; s < strips; s++) {
+                Path file = stripFile(directory, s);
+                for (String suffix: new String[] {"", ShardWorker.COUNTS, ShardWorker.RAYS, ShardWorker.LINES}) {
+                    ShardWorker.sibling(file, suffix).toFile().deleteOnExit();
+                }
+                out[s] = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(file), ShardWorker.BUFFER_BYTES));
+                out[s].writeInt(size);
+                out[s].writeInt(start[s]);
+                out[s].writeInt(start[s + 1] - 1);
+            }
+            writePieces(inputFile, out, err);
+        } finally {
+            for (DataOutputStream stream: out) {
+                if (stream != null) {
+                    stream.close();
+                }
+            }
+        }
+    }
+
+    private void writePieces(Path inputFile, DataOutputStream[] out, ErrorWriter err) throws IOException {
+        long[] taken = new long[(int) (((long) size * size + Long.SIZE - 1) / Long.SIZE)];
+        PieceLineParser lineParser = new PieceLineParser(size, err);
+        PieceRecords records = new PieceRecords(0, 1);
+        try (BufferedReader reader = Files.newBufferedReader(inputFile, StandardCharsets.UTF_8)) {
+            reader.readLine();
+            reader.readLine();
+            for (int i = 0; i < count; i++) {
+                records.clear();
+                lineParser.parse(reader.readLine(), records);
+                int x = records.getX(0);
+                int y = records.getY(0);
+                long cell = (long) (y - 1) * size + x - 1;
+                if ((taken[(int) (cell / Long.SIZE)] & 1L << cell) != 0) {
+                    err.reportFatalError(new InvalidPiecePositionException());
+                }
+                taken[(int) (cell / Long.SIZE)] |= 1L << cell;
+
+                int kind = MovementTable.kind(PieceDescriptor.of(records.getType(0)), records.getColor(0));
+                int owner = stripOf(y);
+                writePiece(out[owner], i, kind, x, y);
+                for (int s = owner - 1; s >= 0 && start[s + 1] - 1 + MovementTable.BORDER >= y; s--) {
+                    writePiece(out[s], ShardWorker.AROUND, kind, x, y);
+                }
+                for (int s = owner + 1; s < strips && start[s] - MovementTable.BORDER <= y; s++) {
+                    writePiece(out[s], ShardWorker.AROUND, kind, x, y);
+                }
+            }
+        }
+        lineParser.checkKings();
+    }
+
+    private static void writePiece(DataOutputStream out, int index, int kind, int x, int y) throws IOException {
+        out.writeInt(index);
+        out.writeByte(kind);
+        out.writeInt(x);
+        out.writeInt(y);
+    }
+
+    private int stripOf(int y) {
+        int s = (int) ((long) (y - 1) * strips / size);
+        while (start[s + 1] <= y) {
+            s += 1;
+        }
+        while (start[s] > y) {
+            s -= 1;
+        }
+        return s;
+    }
+
+    private void countStrips(Path directory) throws IOException, InterruptedException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> workers = new ArrayList<>();
+        for (int s = 0; s < strips; s++) {
+            workers.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    Main.class.getName(), "--shard-worker=" + stripFile(directory, s)).inheritIO().start());
+        }
+        for (int s = 0; s < strips; s++) {
+            int exitCode = workers.get(s).waitFor();
+            if (exitCode != 0) {
+                throw new IOException("worker of strip " + s + " exited with code " + exitCode);
+            }
+        }
+    }
+
+    private void merge(Path directory, String outputFile) throws IOException {
+        lineEnds = new int[strips][2 * ShardWorker.LINE_KINDS][];
+        for (int s = 0; s < strips; s++) {
+            readLineEnds(ShardWorker.sibling(stripFile(directory, s), ShardWorker.LINES), lineEnds[s]);
+        }
+        int[][] rays = new int[strips][];
+        for (int s = 0; s < strips; s++) {
+            rays[s] = finishRays(ShardWorker.sibling(stripFile(directory, s), ShardWorker.RAYS));
+        }
+
+        DataInputStream[] counts = new DataInputStream[strips];
+        int[] next = new int[strips];
+        long[] remaining = new long[strips];
+        int[] nextRay = new int[strips];
+        byte[] line = new byte[Main.MAX_LINE_BYTES];
+        AggregateStatistics statistics = options.isAggregate() ? new AggregateStatistics() : null;
+        try (OutputStream out = statistics != null ? OutputStream.nullOutputStream()
+                : new BufferedOutputStream(new FileOutputStream(outputFile, false), ShardWorker.BUFFER_BYTES)) {
+            for (int s = 0; s < strips; s++) {
+                Path file = ShardWorker.sibling(stripFile(directory, s), ShardWorker.COUNTS);
+                counts[s] = new DataInputStream(new BufferedInputStream(Files.newInputStream(file),
+                        ShardWorker.BUFFER_BYTES));
+                remaining[s] = Files.size(file) / COUNT_INTS / Integer.BYTES;
+                next[s] = remaining[s] > 0 ? counts[s].readInt() : Integer.MAX_VALUE;
+            }
+            for (int i = 0; i < count; i++) {
+                int s = 0;
+                while (next[s] != i) {
+                    s += 1;
+                }
+                int kind = counts[s].readInt();
+                int moves = counts[s].readInt();
+                int captures = counts[s].readInt();
+                while (nextRay[s] < rays[s].length && rays[s][nextRay[s]] == i) {
+                    moves += rays[s][nextRay[s] + 1];
+                    captures += rays[s][nextRay[s] + 2];
+                    nextRay[s] += FINISHED_INTS;
+                }
+                remaining[s] -= 1;
+                next[s] = remaining[s] > 0 ? counts[s].readInt() : Integer.MAX_VALUE;
+                if (statistics != null) {
+                    statistics.add(kind, moves, captures);
+                    continue;
+                }
+                int length = Main.appendCount(line, 0, moves);
+                line[length++] = ' ';
+                length = Main.appendCount(line, length, captures);
+                line[length++] = '\n';
+                out.write(line, 0, length);
+            }
+        } finally {
+            for (DataInputStream stream: counts) {
+                if (stream != null) {
+                    stream.close();
+                }
+            }
+        }
+        if (statistics != null) {
+            statistics.write(outputFile);
+        }
+    }
+
+    private void readLineEnds(Path file, int[][] ends) throws IOException {
+        for (int kind = 0; kind < ShardWorker.LINE_KINDS; kind++) {
+            ends[2 * kind] = new int[ShardWorker.lines(kind, size)];
+            ends[2 * kind + 1] = new int[ShardWorker.lines(kind, size)];
+        }
+        int records = (int) (Files.size(file) / ShardWorker.LINE_END_INTS / Integer.BYTES);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), ShardWorker.BUFFER_BYTES))) {
+            for (int r = 0; r < records; r++) {
+                int kind = in.readInt();
+                int line = in.readInt();
+                ends[2 * kind][line] = in.readInt();
+                ends[2 * kind + 1][line] = in.readInt();
+            }
+        }
+    }
+
+    private int[] finishRays(Path file) throws IOException {
+        int records = (int) (Files.size(file) / ShardWorker.RAY_INTS / Integer.BYTES);
+        int[] result = new int[records * FINISHED_INTS];
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), ShardWorker.BUFFER_BYTES))) {
+            for (int r = 0; r < records; r++) {
+                result[r * FINISHED_INTS] = in.readInt();
+                int dx = in.readInt();
+                int dy = in.readInt();
+                int x = in.readInt();
+                int y = in.readInt();
+                int enemy = in.readInt();
+                finishRay(dx, dy, x, y, enemy, result, r * FINISHED_INTS + 1);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finish a ray from the cell at the fence of its strip, the cells of the ray are empty up to the nearest
+     * piece of its line in the strips it enters or up to the edge of the board.
+     *
+     * @param dx     the step along x
+     * @param dy     the step along y
+     * @param x      the x of the cell at the fence
+     * @param y      the y of the cell at the fence
+     * @param enemy  the code of an enemy cell
+     * @param result the array to store moves and captures of the ray
+     * @param at     the index of moves in the array
+     */
+    private void finishRay(int dx, int dy, int x, int y, int enemy, int[] result, int at) {
+        int kind = dx == 0 ? ShardWorker.FILES : dx == dy ? ShardWorker.DIAGONALS : ShardWorker.ANTI_DIAGONALS;
+        int line = ShardWorker.lineOf(kind, size, x, y);
+        int last = dy > 0 ? size : 1;
+        if (dx != 0) {
+            last = y + dy * Math.min(dx > 0 ? size - x : x - 1, dy > 0 ? size - y : y - 1);
+        }
+        int numOfMoves = 0;
+        int numOfCaptures = 0;
+        int row = y;
+        for (int s = stripOf(y); s >= 0 && s < strips; s += dy) {
+            int nearest = lineEnds[s][2 * kind + (dy > 0 ? 0 : 1)][line];
+            if (nearest != 0) {
+                numOfMoves += Math.abs((nearest >> ShardWorker.CODE_BITS) - row);
+                numOfCaptures += (nearest & ShardWorker.CODE_MASK) == enemy ? 1 : 0;
+                break;
+            }
+            int edge = dy > 0 ? start[s + 1] - 1 : start[s];
+            if ((last - edge) * dy <= 0) {
+                numOfMoves += Math.abs(last - row) + 1;
+                break;
+            }
+            numOfMoves += Math.abs(edge - row) + 1;
+            row = edge + dy;
+        }
+        result[at] = numOfMoves + numOfCaptures;
+        result[at + 1] = numOfCaptures;
+    }
+}
+
+/**
+ * Class {@code BoardSnapshot}, a built board saved to a file that is mapped back into memory without parsing.
+ * After the header the file holds the cells of {@link OffHeapBoardStorage} with their border, the cells of
+ * pieces in the input order and four line indexes: rows, columns, diagonals and anti-diagonals, each as
+ * the start of every line and the pieces of the line in the order of their cells.
+ * The header keeps the version of the format, the length and checksum of the input the board was built from
+ * and the checksum of the rest of the file, so a snapshot of another version, of another input
+ * or with damaged content is rejected.
+ */
+final class BoardSnapshot implements AutoCloseable {
+    /** First bytes of every snapshot, "CHSS". */
+    private static final int MAGIC = 0x43485353;
+    /** Version of the format, changed by every change of the layout. */
+    static final int VERSION = 1;
+    /** Byte order of the file. */
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+    /** Offset of the version in the header. */
+    private static final int VERSION_AT = 4;
+    /** Offset of the board size in the header. */
+    private static final int SIZE_AT = 8;
+    /** Offset of the number of pieces in the header. */
+    private static final int COUNT_AT = 12;
+    /** Offset of the length of the input in the header. */
+    private static final int INPUT_LENGTH_AT = 16;
+    /** Offset of the checksum of the input in the header. */
+    private static final int INPUT_CHECKSUM_AT = 24;
+    /** Offset of the checksum of the content after the header. */
+    private static final int CHECKSUM_AT = 32;
+    /** Length of the header. */
+    private static final int HEADER_BYTES = 40;
+    /** Index of the rows, lines of equal y ordered by x. */
+    private static final int ROWS = 0;
+    /** Index of the columns, lines of equal x ordered by y. */
+    private static final int COLUMNS = 1;
+    /** Index of the diagonals, lines of equal x - y ordered by x. */
+    private static final int DIAGONALS = 2;
+    /** Index of the anti-diagonals, lines of equal x + y ordered by x. */
+    private static final int ANTI_DIAGONALS = 3;
+    /** Number of line indexes. */
+    private static final int LINE_KINDS = 4;
+    /** Line index of every direction of {@link Directions}. */
+    private static final int[] KIND_OF_DIRECTION = {
+        ROWS, ROWS, COLUMNS, COLUMNS, DIAGONALS, DIAGONALS, ANTI_DIAGONALS, ANTI_DIAGONALS,
+    };
+
+    /** The arena that keeps the storage open while the snapshot is. */
+    private final BoardArena arena = new BoardArena();
+    /** Cells and pieces of the board. */
+    private final OffHeapBoardStorage storage;
+    /** Start of every line in {@link #linePieces}, one more than there are lines, for every line index. */
+    private final IntBuffer[] lineStarts = new IntBuffer[LINE_KINDS];
+    /** Pieces of every line in the order of their cells, for every line index. */
+    private final IntBuffer[] linePieces = new IntBuffer[LINE_KINDS];
+
+    private BoardSnapshot(ByteBuffer file, int boardSize, int count) {
+        int at = HEADER_BYTES;
+        int cellBytes = cellBytes(boardSize);
+        this.storage = new OffHeapBoardStorage(arena, boardSize, slice(file, at, cellBytes),
+                                               slice(file, at + cellBytes, count * Integer.BYTES).asIntBuffer(),
+                                               count);
+        at += cellBytes + count * Integer.BYTES;
+        for (int kind = 0; kind < LINE_KINDS; kind++) {
+            int startBytes = (lines(kind, boardSize) + 1) * Integer.BYTES;
+            lineStarts[kind] = slice(file, at, startBytes).asIntBuffer();
+            linePieces[kind] = slice(file, at + startBytes, count * Integer.BYTES).asIntBuffer();
+            at += startBytes + count * Integer.BYTES;
+        }
+    }
+
+    /**
+     * Save the position built from the input to the file, the file is replaced only when it is complete.
+     *
+     * @param file     the file of the snapshot
+     * @param position the position
+     * @param input    the bytes of the input of the position
+     * @throws IOException if the file can not be written
+     */
+    static void write(Path file, Position position, byte[] input) throws IOException {
+        int n = position.getSize();
+        int m = position.getCount();
+        long length = bytes(n, m);
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("snapshot of " + length + " bytes is too large");
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.order(ORDER);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(VERSION_AT, VERSION);
+            buffer.putInt(SIZE_AT, n);
+            buffer.putInt(COUNT_AT, m);
+            buffer.putLong(INPUT_LENGTH_AT, input.length);
+            buffer.putLong(INPUT_CHECKSUM_AT, checksum(ByteBuffer.wrap(input)));
+            try (BoardArena arena = new BoardArena()) {
+                int cellBytes = cellBytes(n);
+                IntBuffer pieceCells = slice(buffer, HEADER_BYTES + cellBytes, m * Integer.BYTES).asIntBuffer();
+                OffHeapBoardStorage storage = new OffHeapBoardStorage(arena, n, slice(buffer, HEADER_BYTES, cellBytes),
+                                                                      pieceCells, 0);
+                storage.clear();
+                for (ChessPiece piece: position.getPieces()) {
+                    storage.add(piece.getPosition().getX(), piece.getPosition().getY(),
+                                piece.getType(), piece.getColor());
+                }
+                writeLines(buffer, HEADER_BYTES + cellBytes + m * Integer.BYTES, position);
+            }
+            buffer.putLong(CHECKSUM_AT, checksum(slice(buffer, HEADER_BYTES, (int) length - HEADER_BYTES)));
+            buffer.force();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeLines(ByteBuffer buffer, int from, Position position) {
+        int n = position.getSize();
+        ChessPiece[] pieces = position.getPieces();
+        int[] byX = sortedBy(pieces, n, true);
+        int[] byY = sortedBy(pieces, n, false);
+        int at = from;
+        for (int kind = 0; kind < LINE_KINDS; kind++) {
+            int lines = lines(kind, n);
+            IntBuffer starts = slice(buffer, at, (lines + 1) * Integer.BYTES).asIntBuffer();
+            IntBuffer entries = slice(buffer, at + (lines + 1) * Integer.BYTES, pieces.length * Integer.BYTES)
+                    .asIntBuffer();
+            int[] next = new int[lines + 1];
+            for (ChessPiece piece: pieces) {
+                next[lineOf(kind, n, piece.getPosition().getX(), piece.getPosition().getY()) + 1] += 1;
+            }
+            for (int line = 0; line < lines; line++) {
+                next[line + 1] += next[line];
+            }
+            for (int line = 0; line <= lines; line++) {
+                starts.put(line, next[line]);
+            }
+            for (int i: kind == COLUMNS ? byY : byX) {
+                PiecePosition cell = pieces[i].getPosition();
+                entries.put(next[lineOf(kind, n, cell.getX(), cell.getY())]++, i);
+            }
+            at += (lines + 1 + pieces.length) * Integer.BYTES;
+        }
+    }
+
+    /**
+     * Sort indices of pieces by one coordinate.
+     *
+     * @param pieces the pieces
+     * @param n      the board size
+     * @param byX    true to sort by x, false by y
+     * @return the indices in the order of the coordinate
+     */
+    private static int[] sortedBy(ChessPiece[] pieces, int n, boolean byX) {
+        int[] next = new int[n + 2];
+        for (ChessPiece piece: pieces) {
+            next[coordinate(piece, byX) + 1] += 1;
+        }
+        for (int c = 0; c <= n; c++) {
+            next[c + 1] += next[c];
+        }
+        int[] result = new int[pieces.length];
+        for (int i = 0; i < pieces.length; i++) {
+            result[next[coordinate(pieces[i], byX)]++] = i;
+        }
+        return result;
+    }
+
+    private static int coordinate(ChessPiece piece, boolean x) {
+        return x ? piece.getPosition().getX() : piece.getPosition().getY();
+    }
+
+    /**
+     * Map the snapshot of the input.
+     *
+     * @param file  the file of the snapshot
+     * @param input the bytes of the input the snapshot has to be built from
+     * @return the snapshot
+     * @throws IOException              if the file can not be read
+     * @throws InvalidSnapshotException if the snapshot is of another version or input, or it is damaged
+     */
+    static BoardSnapshot open(Path file, byte[] input) throws IOException, InvalidSnapshotException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_BYTES || length > Integer.MAX_VALUE) {
+                throw new InvalidSnapshotException("snapshot of " + length + " bytes");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            buffer.order(ORDER);
+            if (buffer.getInt(0) != MAGIC) {
+                throw new InvalidSnapshotException("not a snapshot");
+            }
+            if (buffer.getInt(VERSION_AT) != VERSION) {
+                throw new InvalidSnapshotException("snapshot version " + buffer.getInt(VERSION_AT)
+                                                   + ", expected " + VERSION);
+            }
+            int n = buffer.getInt(SIZE_AT);
+            int m = buffer.getInt(COUNT_AT);
+            if (n < 1 || m < 0 || bytes(n, m) != length) {
+                throw new InvalidSnapshotException("snapshot length does not match its header");
+            }
+            if (buffer.getLong(INPUT_LENGTH_AT) != input.length
+                || buffer.getLong(INPUT_CHECKSUM_AT) != checksum(ByteBuffer.wrap(input))) {
+                throw new InvalidSnapshotException("snapshot of another input");
+            }
+            if (buffer.getLong(CHECKSUM_AT) != checksum(slice(buffer, HEADER_BYTES, (int) length - HEADER_BYTES))) {
+                throw new InvalidSnapshotException("snapshot is damaged");
+            }
+            return new BoardSnapshot(buffer, n, m);
+        }
+    }
+
+    /**
+     * Count moves and captures of every piece.
+     *
+     * @param moves    the array to store moves count of each piece
+     * @param captures the array to store captures count of each piece
+     */
+    public void evaluate(int[] moves, int[] captures) {
+        storage.evaluate(moves, captures);
+    }
+
+    /**
+     * Gets kinds of every piece for {@link AggregateStatistics}.
+     *
+     * @return the kinds of {@link MovementTable#kind(PieceDescriptor, PieceColor)} in the input order
+     */
+    public int[] getKinds() {
+        arena.checkOpen();
+        int[] kinds = new int[storage.getCount()];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = MovementTable.kind(PieceDescriptor.of(storage.getType(i)), storage.getColor(i));
+        }
+        return kinds;
+    }
+
+    /**
+     * Count moves and captures of only the chosen pieces, Rooks, Bishops and Queens find the pieces
+     * that stop them in the line indexes instead of walking the cells.
+     *
+     * @param indices  the indices of the pieces in the input order
+     * @param moves    the array to store moves count of every chosen piece
+     * @param captures the array to store captures count of every chosen piece
+     */
+    public void evaluate(int[] indices, int[] moves, int[] captures) {
+        arena.checkOpen();
+        for (int k = 0; k < indices.length; k++) {
+            PieceType type = storage.getType(indices[k]);
+            if (type.isOrthogonalSlider() || type.isDiagonalSlider()) {
+                countSlides(indices[k], type, moves, captures, k);
+            } else {
+                storage.count(indices[k], moves, captures, k);
+            }
+        }
+    }
+
+    private void countSlides(int piece, PieceType type, int[] moves, int[] captures, int slot) {
+        int n = storage.getSize();
+        int x = storage.getX(piece);
+        int y = storage.getY(piece);
+        PieceColor color = storage.getColor(piece);
+        BoardGeometry geometry = BoardGeometry.forSize(n);
+        int numOfMoves = 0;
+        int numOfCaptures = 0;
+        for (int d = 0; d < Directions.DX.length; d++) {
+            if (!type.slidesAlong(d)) {
+                continue;
+            }
+            int kind = KIND_OF_DIRECTION[d];
+            int line = lineOf(kind, n, x, y);
+            int from = lineStarts[kind].get(line);
+            int to = lineStarts[kind].get(line + 1);
+            int order = kind == COLUMNS ? y : x;
+            int next = find(kind, from, to, order) + (kind == COLUMNS ? Directions.DY[d] : Directions.DX[d]);
+            if (next < from || next >= to) {
+                numOfMoves += geometry.getRayLength(x, y, d);
+                continue;
+            }
+            int other = linePieces[kind].get(next);
+            numOfMoves += Math.abs((kind == COLUMNS ? storage.getY(other) : storage.getX(other)) - order) - 1;
+            if (storage.getColor(other) != color) {
+                numOfCaptures += 1;
+            }
+        }
+        moves[slot] = numOfMoves + numOfCaptures;
+        captures[slot] = numOfCaptures;
+    }
+
+    /**
+     * Find the piece of the line at the coordinate by binary search.
+     *
+     * @param kind  the line index
+     * @param from  the start of the line
+     * @param to    the end of the line
+     * @param order the coordinate along the line
+     * @return the index of the piece in {@link #linePieces}
+     */
+    private int find(int kind, int from, int to, int order) {
+        int low = from;
+        int high = to - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int piece = linePieces[kind].get(middle);
+            if ((kind == COLUMNS ? storage.getY(piece) : storage.getX(piece)) < order) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Gets size.
+     *
+     * @return the size of Board
+     */
+    public int getSize() {
+        return storage.getSize();
+    }
+
+    /**
+     * Gets number of pieces.
+     *
+     * @return the number of pieces
+     */
+    public int getCount() {
+        return storage.getCount();
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+
+    private static long bytes(int n, int m) {
+        long result = HEADER_BYTES + cellBytes(n) + (long) m * Integer.BYTES;
+        for (int kind = 0; kind < LINE_KINDS; kind++) {
+            result += ((long) lines(kind, n) + 1 + m) * Integer.BYTES;
+        }
+        return result;
+    }
+
+    /**
+     * Gets bytes of the cells with the border, rounded up to whole ints.
+     *
+     * @param n the board size
+     * @return the number of bytes
+     */
+    private static int cellBytes(int n) {
+        int stride = OffHeapBoardStorage.stride(n);
+        return (stride * stride + Integer.BYTES - 1) / Integer.BYTES * Integer.BYTES;
+    }
+
+    private static int lines(int kind, int n) {
+        return kind == ROWS || kind == COLUMNS ? n : 2 * n - 1;
+    }
+
+    private static int lineOf(int kind, int n, int x, int y) {
+        switch (kind) {
+            case ROWS:
+                return y - 1;
+            case COLUMNS:
+                return x - 1;
+            case DIAGONALS:
+                return x - y + n - 1;
+            default:
+                return x + y - 2;
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int from, int length) {
+        return buffer.slice(from, length).order(ORDER);
+    }
+
+    private static long checksum(ByteBuffer content) {
+        CRC32C crc = new CRC32C();
+        crc.update(content);
+        return crc.getValue();
+    }
+}
+
+/**
+ * Class {@code EngineCostModel} that predicts the time every engine takes to evaluate a position
+ * from its board size, number of pieces and mix of types.
+ * The cost is linear in the features of the position, the nanoseconds per unit of every feature were fitted
+ * to the best times of {@code --bench} on boards of sizes 8 to 1000 with 4 to 100000 pieces of every mix,
+ * {@code --bench} prints the predicted times next to the measured ones so that the fit can be checked.
+ * The times are those of a warmed up engine: a single run in a fresh JVM loads classes and interprets code,
+ * so it takes up to a thousand times longer and the prediction only ranks the engines.
+ */
+final class EngineCostModel {
+    /** Index of the feature of a call. */
+    private static final int CALL = 0;
+    /** Index of the feature of Knights, Kings and Pawns. */
+    private static final int LEAPERS = 1;
+    /** Index of the feature of Rooks, Bishops and Queens. */
+    private static final int SLIDERS = 2;
+    /** Index of the feature of expected cells walked by sliders. */
+    private static final int STEPS = 3;
+    /** Index of the feature of cells of the board. */
+    private static final int CELLS = 4;
+    /** Index of the feature of pieces read by sliders, the reference reads every piece for every slider. */
+    private static final int SCANS = 5;
+    /** Number of features. */
+    private static final int FEATURES = SCANS + 1;
+    /** Number of directions of a Rook or a Bishop, a Queen has twice as many. */
+    private static final int LINE_DIRECTIONS = 4;
+    /** Engines of the model, in the order of {@link #NANOS}. */
+    private static final List<String> ENGINES = EvaluationEngine.names();
+    /** Nanoseconds per unit of every feature, one row per engine. */
+    private static final double[][] NANOS = {
+        {2000, 33000, 15000, 0, 0, 170},
+        {16000, 114, 210, 0.86, 0, 0},
+        {28000, 71, 250, 1.05, 0.003, 0},
+        {25000, 98, 247, 0.85, 0.024, 0},
+        {61000, 81, 254, 0.89, 0.69, 0},
+        {7000, 61, 119, 1.15, 0.003, 0},
+    };
+
+    /** Features of the position. */
+    private final double[] features = new double[FEATURES];
+
+    private EngineCostModel(Position position) {
+        int n = position.getSize();
+        int m = position.getCount();
+        int sliders = 0;
+        int directions = 0;
+        for (ChessPiece piece: position.getPieces()) {
+            PieceType type = piece.getType();
+            if (type == PieceType.ROOK || type == PieceType.BISHOP) {
+                sliders += 1;
+                directions += LINE_DIRECTIONS;
+            } else if (type == PieceType.QUEEN) {
+                sliders += 1;
+                directions += 2 * LINE_DIRECTIONS;
+            }
+        }
+        // A ray of half of the board on average stops at the first piece, cells are taken at the density of pieces
+        double cells = (double) n * n;
+        double density = m / cells;
+        double rayLength = n / 2.0;
+        double walked = density > 0 ? (1 - Math.pow(1 - density, rayLength)) / density : rayLength;
+        features[CALL] = 1;
+        features[LEAPERS] = m - sliders;
+        features[SLIDERS] = sliders;
+        features[STEPS] = directions * walked;
+        features[CELLS] = cells;
+        features[SCANS] = (double) sliders * m;
+    }
+
+    /**
+     * Gets the model of the position.
+     *
+     * @param position the position
+     * @return the cost model
+     */
+    static EngineCostModel of(Position position) {
+        return new EngineCostModel(position);
+    }
+
+    /**
+     * Predict the time the engine takes to evaluate the position.
+     *
+     * @param engine the name of engine
+     * @return the time in nanoseconds, -1 for an engine out of the model
+     */
+    public long predictNanos(String engine) {
+        int e = ENGINES.indexOf(engine);
+        if (e < 0) {
+            return -1;
+        }
+        double nanos = 0;
+        for (int f = 0; f < FEATURES; f++) {
+            nanos += NANOS[e][f] * features[f];
+        }
+        return Math.round(nanos);
+    }
+
+    /**
+     * Gets the engine of the least predicted time.
+     *
+     * @return the name of engine
+     */
+    public String cheapest() {
+        String result = ENGINES.get(0);
+        for (String engine: ENGINES) {
+            if (predictNanos(engine) < predictNanos(result)) {
+                result = engine;
+            }
+        }
+        return result;
+    }
+}
+
+/**
+ * Class {@code AdaptiveEngine} that evaluates the position with the engine of the least predicted time
+ * and records the choice with its predicted and measured time, the traced runs of the command line
+ * also print it to the standard error.
+ */
+class AdaptiveEngine implements EvaluationEngine {
+    /** Is the choice printed. */
+    private final boolean logged;
+
+    /**
+     * Instantiates a new Adaptive engine that only records the choice.
+     */
+    AdaptiveEngine() {
+        this(false);
+    }
+
+    /**
+     * Instantiates a new Adaptive engine.
+     *
+     * @param logChoice true if the choice is printed too
+     */
+    AdaptiveEngine(boolean logChoice) {
+        this.logged = logChoice;
+    }
+
+    @Override
+    public void evaluate(Position position, int[] moves, int[] captures) {
+        EngineCostModel model = EngineCostModel.of(position);
+        String choice = model.cheapest();
+        EngineChoiceEvent event = new EngineChoiceEvent();
+        event.begin();
+        long start = System.nanoTime();
+        EvaluationEngine.forName(choice).evaluate(position, moves, captures);
+        long actual = System.nanoTime() - start;
+        event.end();
+        if (logged) {
+            System.err.println("engine auto: chose " + choice + ", predicted " + model.predictNanos(choice) / 1000
+                               + " us, took " + actual / 1000 + " us");
+        }
+        if (event.shouldCommit()) {
+            event.describe(choice, model.predictNanos(choice), actual);
+            event.tag(position.getSize(), position.getCount());
+            event.commit();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "auto";
+    }
+}
+
+/**
+ * Class {@code EngineBenchmark} that measures the time every engine takes to evaluate a position.
+ * Every engine is warmed up first, then the best and the mean time of the measured rounds are printed.
+ */
+class EngineBenchmark {
+    /** Number of rounds before measuring. */
+    private static final int WARMUP_ROUNDS = 5;
+    /** Number of measured rounds. */
+    private static final int MEASURED_ROUNDS = 10;
+
+    /**
+     * Run the benchmark and print the results.
+     *
+     * @param position the position
+     * @param engines  the names of engines
+     */
+    public void run(Position position, List<String> engines) {
+        int m = position.getCount();
+        EngineCostModel model = EngineCostModel.of(position);
+        int[] expectedMoves = null;
+        int[] expectedCaptures = null;
+        for (String name: engines) {
+            EvaluationEngine engine = EvaluationEngine.forName(name);
+            if (engine == null) {
+                System.out.println("unknown engine " + name);
+                continue;
+            }
+            int[] moves = new int[m];
+            int[] captures = new int[m];
+            for (int round = 0; round < WARMUP_ROUNDS; round++) {
+                engine.evaluate(position, moves, captures);
+            }
+            long best = Long.MAX_VALUE;
+            long total = 0;
+            for (int round = 0; round < MEASURED_ROUNDS; round++) {
+                long start = System.nanoTime();
+                engine.evaluate(position, moves, captures);
+                long elapsed = System.nanoTime() - start;
+                best = Math.min(best, elapsed);
+                total += elapsed;
+            }
+            String agreement = "";
+            if (expectedMoves == null) {
+                expectedMoves = moves;
+                expectedCaptures = captures;
+            } else if (!Arrays.equals(expectedMoves, moves) || !Arrays.equals(expectedCaptures, captures)) {
+                agreement = ", results differ from " + engines.get(0);
+            }
+            String predicted = name.equals("auto") ? model.cheapest() : name;
+            System.out.println("engine " + name + ": best " + best / 1000 + " us, mean "
+                               + total / MEASURED_ROUNDS / 1000 + " us, "
+                               + best / Math.max(1, m) + " ns/piece, predicted "
+                               + model.predictNanos(predicted) / 1000 + " us of " + predicted + agreement);
+        }
+    }
+}
+
+/**
+ * Class {@code PipelinedRun} that handles a large input in stages connected by a bounded queue:
+ * the parser thread reads lines and turns them into {@link PieceRecords} chunks while the builder thread
+ * places the pieces on the {@link Board}. Evaluation starts when the board is complete and the output is
+ * encoded in parallel chunks into reused buffers and written in order. Errors of both stages are collected
+ * with the index of their line, so the error reported is the same that the sequential
+ * {@link Position#load(List, ErrorWriter)} reports.
+ */
+class PipelinedRun {
+    /** Number of lines in a chunk of records. */
+    private static final int CHUNK_LINES = 4096;
+    /** Number of chunks waiting for the builder. */
+    private static final int QUEUE_CAPACITY = 8;
+    /** Chunk that marks the end of the input. */
+    private static final PieceRecords END = new PieceRecords(-1, 1);
+    /** Number of lines before the lines of pieces. */
+    private static final int HEADER_LINES = 2;
+    /** Number of results in a chunk of output. */
+    private static final int OUTPUT_CHUNK = 4096;
+    /** Number of chunks of output encoded together, one per thread of the common pool. */
+    private static final int OUTPUT_SLOTS = Math.max(1, ForkJoinPool.getCommonPoolParallelism());
+    /** Buffers of the chunks encoded together, kept by every writing thread and reused by every written file. */
+    private static final ThreadLocal<byte[][]> OUTPUT_BUFFERS =
+            ThreadLocal.withInitial(() -> new byte[OUTPUT_SLOTS][OUTPUT_CHUNK * Main.MAX_LINE_BYTES]);
+
+    /** The run options. */
+    private final RunOptions options;
+    /** Chunks passed from the parser to the builder. */
+    private final BlockingQueue<PieceRecords> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    /** First lines of the input. */
+    private final List<String> header = new ArrayList<>(HEADER_LINES);
+    /** Number of lines in the input. */
+    private int lineCount;
+    /** Was the input unreadable. */
+    private boolean readFailed;
+    /** Error of the first two lines, null if there is none. */
+    private Exception headerError;
+    /** A variable that represents size of a ChessBoard, set before the first chunk is queued. */
+    private int boardSize;
+    /** Number of pieces, set before the first chunk is queued. */
+    private int numOfPieces;
+    /** First error found by the parser, null if there is none. */
+    private Exception parseError;
+    /** Index of the piece of {@link #parseError}. */
+    private int parseErrorIndex = Integer.MAX_VALUE;
+    /** Index of the piece of {@link #buildError}, the parser stops parsing after it. */
+    private volatile int buildErrorIndex = Integer.MAX_VALUE;
+    /** First error found by the builder, null if there is none. */
+    private Exception buildError;
+    /** The board built by the builder. */
+    private Board board;
+    /** Pieces in the input order built by the builder. */
+    private ChessPiece[] pieces;
+
+    /**
+     * Instantiates a new Pipelined run.
+     *
+     * @param runOptions the run options
+     */
+    PipelinedRun(RunOptions runOptions) {
+        this.options = runOptions;
+    }
+
+    /**
+     * Evaluate the input and write the output, or report the error of the input.
+     *
+     * @param inputFile  the input file
+     * @param outputFile the name of output file
+     * @param err        the error writer
+     */
+    public void run(Path inputFile, String outputFile, ErrorWriter err) {
+        Thread parser = new Thread(() -> parse(inputFile), "parser");
+        Thread builder = new Thread(this::build, "builder");
+        parser.start();
+        builder.start();
+        try {
+            parser.join();
+            builder.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (readFailed) {
+            err.reportFatalError(new InvalidInputException());
+            return;
+        }
+        if (lineCount < HEADER_LINES) {
+            // Too short to be handled here, the sequential loader decides what happens
+            Position.load(header, err);
+            return;
+        }
+        Exception error = firstError();
+        if (error != null) {
+            err.reportFatalError(error);
+            return;
+        }
+
+        Position position = Position.of(board, pieces);
+        int[] moves = new int[position.getCount()];
+        int[] captures = new int[position.getCount()];
+        position.evaluate(options, moves, captures);
+        writeResults(outputFile, position, moves, captures);
+    }
+
+    /**
+     * Write moves and captures of every piece to the file. Every round encodes up to {@link #OUTPUT_SLOTS}
+     * chunks of lines in parallel, each into a buffer of its own, then writes them in order.
+     *
+     * @param fileName the name of output file
+     * @param position the position
+     * @param moves    the moves counts
+     * @param captures the captures counts
+     */
+    static void writeResults(String fileName, Position position, int[] moves, int[] captures) {
+        int count = position.getCount();
+        if (count <= OUTPUT_CHUNK) {
+            Main.writeResults(fileName, position, moves, captures);
+            return;
+        }
+        OutputEvent event = new OutputEvent();
+        event.begin();
+        byte[][] buffers = OUTPUT_BUFFERS.get();
+        int[] lengths = new int[OUTPUT_SLOTS];
+        try (FileOutputStream out = new FileOutputStream(fileName, false)) {
+            for (int first = 0; first < count; first += OUTPUT_SLOTS * OUTPUT_CHUNK) {
+                int roundFirst = first;
+                int slots = Math.min(OUTPUT_SLOTS, (count - first + OUTPUT_CHUNK - 1) / OUTPUT_CHUNK);
+                IntStream.range(0, slots).parallel().forEach(slot -> {
+                    int from = roundFirst + slot * OUTPUT_CHUNK;
+                    lengths[slot] = encode(buffers[slot], moves, captures, from, Math.min(count, from + OUTPUT_CHUNK));
+                });
+                for (int slot = 0; slot < slots; slot++) {
+                    out.write(buffers[slot], 0, lengths[slot]);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+        event.tag(position.getSize(), count);
+        event.commit();
+    }
+
+    private static int encode(byte[] buffer, int[] moves, int[] captures, int from, int to) {
+        int length = 0;
+        for (int j = from; j < to; j++) {
+            length = Main.appendCount(buffer, length, moves[j]);
+            buffer[length++] = ' ';
+            length = Main.appendCount(buffer, length, captures[j]);
+            buffer[length++] = '\n';
+        }
+        return length;
+    }
+
+    private Exception firstError() {
+        if (headerError != null) {
+            return headerError;
+        }
+        if (numOfPieces != lineCount - HEADER_LINES) {
+            return new InvalidNumberOfPiecesException();
+        }
+        if (parseError != null || buildError != null) {
+            return parseErrorIndex < buildErrorIndex ? parseError : buildError;
+        }
+        return null;
+    }
+
+    private void parse(Path inputFile) {
+        ParseEvent event = new ParseEvent();
+        event.begin();
+        StopOnErrorWriter stop = new StopOnErrorWriter();
+        try (BufferedReader reader = Files.newBufferedReader(inputFile, StandardCharsets.UTF_8)) {
+            PieceLineParser lineParser = null;
+            PieceRecords chunk = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int index = lineCount - HEADER_LINES;
+                lineCount += 1;
+                if (index < 0) {
+                    header.add(line);
+                    if (header.size() == HEADER_LINES) {
+                        lineParser = parseHeader(stop);
+                    }
+                    continue;
+                }
+                if (lineParser == null || parseError != null || index >= numOfPieces || index > buildErrorIndex) {
+                    continue;
+                }
+                if (chunk == null) {
+                    chunk = new PieceRecords(index, CHUNK_LINES);
+                }
+                try {
+                    lineParser.parse(line, chunk);
+                } catch (RejectedInputException e) {
+                    parseError = e.getError();
+                    parseErrorIndex = index;
+                }
+                if (chunk.size() == CHUNK_LINES || parseError != null) {
+                    queue.put(chunk);
+                    chunk = null;
+                }
+            }
+            if (chunk != null) {
+                queue.put(chunk);
+            }
+            if (lineParser != null && parseError == null) {
+                try {
+                    lineParser.checkKings();
+                } catch (RejectedInputException e) {
+                    // Kings are checked after the last line
+                    parseError = e.getError();
+                    parseErrorIndex = numOfPieces;
+                }
+            }
+        } catch (IOException e) {
+            readFailed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            event.tag(boardSize, numOfPieces);
+            event.commit();
+            try {
+                queue.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private PieceLineParser parseHeader(StopOnErrorWriter stop) {
+        try {
+            Parse parser = new Parse(stop);
+            boardSize = parser.parseBoardSize(header);
+            numOfPieces = parser.parseNumberOfPieces(header, boardSize);
+            return new PieceLineParser(boardSize, stop);
+        } catch (RejectedInputException e) {
+            headerError = e.getError();
+            return null;
+        }
+    }
+
+    private void build() {
+        BoardBuildEvent event = new BoardBuildEvent();
+        event.begin();
+        StopOnErrorWriter stop = new StopOnErrorWriter();
+        try {
+            for (PieceRecords chunk = queue.take(); chunk != END; chunk = queue.take()) {
+                if (buildError != null) {
+                    continue;
+                }
+                if (board == null) {
+                    board = new Board(boardSize, stop);
+                    pieces = new ChessPiece[numOfPieces];
+                }
+                for (int r = 0; r < chunk.size(); r++) {
+                    int index = chunk.getFirstIndex() + r;
+                    ChessPiece piece = chunk.newPiece(r);
+                    try {
+                        board.addPiece(piece);
+                    } catch (RejectedInputException e) {
+                        buildError = e.getError();
+                        buildErrorIndex = index;
+                        break;
+                    }
+                    pieces[index] = piece;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        event.tag(boardSize, numOfPieces);
+        event.commit();
+    }
+}
+
+/**
+ * Class {@code SteadyStateRun} that evaluates inputs one after another without building boards or pieces,
+ * so that with a grid engine a warm thread allocates nothing but the streams of the two files it opens.
+ * The bytes of the input are read into a reused buffer and checked by {@link InputValidator} into its reused
+ * {@link PieceRecords}, the pieces are counted by a {@link RecordEngine}, such as {@link GridEngine} on the
+ * pooled grid of the thread or {@link OffHeapEngine} on pooled slabs, and the output is encoded into the reused
+ * buffer of {@link Main#writeResults(String, int[], int[], int)}.
+ * An instance is used by one thread.
+ */
+class SteadyStateRun {
+    /** Smallest size of the input buffer. */
+    private static final int MIN_INPUT_BYTES = 1 << 16;
+    /** Largest size of an array. */
+    private static final int MAX_INPUT_BYTES = Integer.MAX_VALUE - 8;
+
+    /** The error writer. */
+    private final ErrorWriter err;
+    /** The validator of inputs, it keeps the records of the last input. */
+    private final InputValidator validator;
+    /** The engine. */
+    private final RecordEngine engine;
+    /** Bytes of the input, the array may be longer than the input. */
+    private byte[] input = new byte[MIN_INPUT_BYTES];
+    /** Moves counts, the array may be longer than the number of pieces. */
+    private int[] moves = new int[0];
+    /** Captures counts, the array may be longer than the number of pieces. */
+    private int[] captures = new int[0];
+
+    /**
+     * Instantiates a new Steady state run.
+     *
+     * @param errorWriter the error writer
+     * @param engineName  the name of an engine that is a {@link RecordEngine}
+     */
+    SteadyStateRun(ErrorWriter errorWriter, String engineName) {
+        this.err = errorWriter;
+        this.validator = new InputValidator(errorWriter);
+        this.engine = (RecordEngine) EvaluationEngine.forName(engineName);
+    }
+
+    /**
+     * Does the run handle the options, the input is validated before anything is built
+     * and only the counts of every piece by an engine that counts from records are asked for.
+     *
+     * @param options the run options
+     * @return true if the input can be evaluated by a steady state run
+     */
+    static boolean handles(RunOptions options) {
+        return options.isPrevalidate() && EvaluationEngine.forName(options.getEngine()) instanceof RecordEngine
+               && !options.isLegalMoves() && options.getQueryPieces() == null && !options.isAggregate()
+               && options.getSnapshotFile() == null && options.getPerftDepth() == 0
+               && options.getBenchEngines() == null;
+    }
+
+    /**
+     * Evaluate the input and write the output, or report the error of the input.
+     *
+     * @param inputFile  the input file
+     * @param outputFile the name of output file
+     */
+    public void run(Path inputFile, String outputFile) {
+        PieceRecords records;
+        try {
+            // The input is read first, reading may replace the buffer
+            int length = read(inputFile);
+            records = validator.check(input, length);
+        } catch (IOException e) {
+            err.reportFatalError(new InvalidInputException());
+            return;
+        }
+        if (records == null) {
+            // The input is shorter than the header, its error is reported
+            return;
+        }
+        int m = records.size();
+        if (moves.length < m) {
+            moves = new int[m];
+            captures = new int[m];
+        }
+        engine.evaluate(validator.getBoardSize(), records, moves, captures);
+        Main.writeResults(outputFile, moves, captures, m);
+    }
+
+    private int read(Path inputFile) throws IOException {
+        try (FileInputStream in = new FileInputStream(inputFile.toString())) {
+            int length = 0;
+            int read;
+            while ((read = in.read(input, length, input.length - length)) >= 0) {
+                length += read;
+                if (length == input.length) {
+                    if (length == MAX_INPUT_BYTES) {
+                        throw new IOException("Input is too large");
+                    }
+                    input = Arrays.copyOf(input, (int) Math.min(MAX_INPUT_BYTES, 2L * length));
+                }
+            }
+            return length;
+        }
+    }
+}
+
+/**
+ * Class {@code BatchEvaluator} that handles several inputs in one run. Inputs with equal positions
+ * are evaluated once, the results are written to every such input in its own order of pieces.
+ * The output of input {@code name} is written to {@code name.out}.
+ */
+class BatchEvaluator {
+    /** Suffix of output files. */
+    static final String OUTPUT_SUFFIX = ".out";
+
+    /** The run options. */
+    private final RunOptions options;
+
+    /**
+     * Instantiates a new Batch evaluator.
+     *
+     * @param runOptions the run options with the list of inputs
+     */
+    BatchEvaluator(RunOptions runOptions) {
+        this.options = runOptions;
+    }
+
+    /**
+     * Evaluate all inputs.
+     */
+    public void run() {
+        List<String> inputs = options.getInputs();
+        Position[] positions = new Position[inputs.size()];
+        Map<Long, List<Integer>> groups = new HashMap<>();
+        int errors = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            String outputFile = inputs.get(i) + OUTPUT_SUFFIX;
+            try {
+                List<String> lines = Files.readAllLines(Paths.get(inputs.get(i)), StandardCharsets.UTF_8);
+                positions[i] = Position.load(lines, new StopOnErrorWriter());
+            } catch (IOException e) {
+                new ErrorWriter(outputFile).writeError(new InvalidInputException());
+                errors += 1;
+                continue;
+            } catch (RejectedInputException e) {
+                new ErrorWriter(outputFile).writeError(e.getError());
+                errors += 1;
+                continue;
+            } catch (IndexOutOfBoundsException e) {
+                // Input without the lines of size and number of pieces, a single run stops here without output
+                errors += 1;
+                continue;
+            }
+            groups.computeIfAbsent(positions[i].getBoard().getHash(), hash -> new ArrayList<>()).add(i);
+        }
+
+        int unique = 0;
+        for (List<Integer> group: groups.values()) {
+            List<Integer> pending = new ArrayList<>(group);
+            while (!pending.isEmpty()) {
+                Position first = positions[pending.get(0)];
+                int[] moves = new int[first.getCount()];
+                int[] captures = new int[first.getCount()];
+                first.evaluate(options, moves, captures);
+                unique += 1;
+                Map<String, Integer> indexByCell = new HashMap<>();
+                for (int j = 0; j < first.getCount(); j++) {
+                    indexByCell.put(first.getPieces()[j].getPosition().toString(), j);
+                }
+
+                List<Integer> different = new ArrayList<>();
+                for (int i: pending) {
+                    if (!first.hasSamePieces(positions[i])) {
+                        different.add(i);
+                        continue;
+                    }
+                    ChessPiece[] pieces = positions[i].getPieces();
+                    int[] ownMoves = new int[pieces.length];
+                    int[] ownCaptures = new int[pieces.length];
+                    for (int j = 0; j < pieces.length; j++) {
+                        int index = indexByCell.get(pieces[j].getPosition().toString());
+                        ownMoves[j] = moves[index];
+                        ownCaptures[j] = captures[index];
+                    }
+                    Main.writeResults(inputs.get(i) + OUTPUT_SUFFIX, positions[i], ownMoves, ownCaptures);
+                }
+                pending = different;
+            }
+        }
+        System.out.println("batch: " + inputs.size() + " inputs, " + unique + " unique positions, "
+                           + errors + " errors");
+    }
+}
+
+/**
+ * Class {@code DifferentialFuzzer} that compares every engine and every loader with the reference on random inputs.
+ * Valid positions of sizes 3 to 1000 are evaluated by all engines, their mutations are loaded by all loaders.
+ * A case that differs is shrunk to a small input that still differs and is written to a file,
+ * at the end the throughput of every engine on the same positions is printed.
+ */
+class DifferentialFuzzer {
+    /** Largest number of pieces of a case, the reference reads all pieces for every slider. */
+    private static final int MAX_PIECES = 2000;
+    /** Smallest board size. */
+    private static final int MIN_BOARD_SIZE = Parse.MIN_BOARD_SIZE;
+    /** Largest board size. */
+    private static final int MAX_BOARD_SIZE = Parse.MAX_BOARD_SIZE;
+    /** Largest size of a small board, half of the cases are small boards. */
+    private static final int SMALL_BOARD_SIZE = 12;
+    /** Chance in percents that a piece is placed on the edge of the board. */
+    private static final int EDGE_PERCENT = 30;
+    /** Bytes of a chunk of the parallel loader, small inputs are split into several chunks. */
+    private static final int CHUNK_BYTES = 16;
+    /** Name of the reference engine. */
+    private static final String REFERENCE = "reference";
+    /** Prefix of files of failing cases. */
+    private static final String FAILURE_FILE = "fuzz-failure-";
+    /** Number of nanoseconds in a millisecond. */
+    private static final long NANOS_IN_MILLI = 1_000_000L;
+
+    /** Source of random cases. */
+    private final SplittableRandom random;
+    /** Seed of the cases, printed so that a run can be repeated. */
+    private final long seed;
+    /** Nanoseconds every engine spent evaluating, in the order of {@link EvaluationEngine#names()}. */
+    private final long[] engineNanos = new long[EvaluationEngine.names().size()];
+    /** Number of pieces evaluated by every engine. */
+    private long piecesEvaluated;
+    /** Number of failing cases. */
+    private int failures;
+
+    /**
+     * Instantiates a new Differential fuzzer.
+     *
+     * @param randomSeed the seed of the cases
+     */
+    DifferentialFuzzer(long randomSeed) {
+        this.seed = randomSeed;
+        this.random = new SplittableRandom(randomSeed);
+    }
+
+    /**
+     * Run the cases and print the failures and the throughput of engines.
+     *
+     * @param cases the number of cases
+     * @return the number of failing cases
+     */
+    public int run(int cases) {
+        System.out.println("fuzz: seed " + seed + ", " + cases + " cases");
+        for (int k = 0; k < cases; k++) {
+            int n = boardSize();
+            PieceRecords records = randomPieces(n);
+            checkEngines(n, records);
+            List<String> lines = toLines(n, records);
+            mutate(lines);
+            checkLoaders(lines);
+        }
+        System.out.println("fuzz: " + cases + " cases, " + failures + " failures");
+        List<String> names = EvaluationEngine.names();
+        for (int e = 0; e < names.size(); e++) {
+            long millis = Math.max(1, engineNanos[e] / NANOS_IN_MILLI);
+            System.out.println("engine " + names.get(e) + ": " + piecesEvaluated + " pieces in " + millis + " ms, "
+                               + piecesEvaluated * NANOS_IN_MILLI / Math.max(1, engineNanos[e]) + " pieces/ms");
+        }
+        return failures;
+    }
+
+    private int boardSize() {
+        if (random.nextBoolean()) {
+            return random.nextInt(MIN_BOARD_SIZE, SMALL_BOARD_SIZE + 1);
+        }
+        // Uniform in the logarithm, so that every order of size is tested
+        double logSize = Math.log(MIN_BOARD_SIZE)
+                         + random.nextDouble() * (Math.log(MAX_BOARD_SIZE) - Math.log(MIN_BOARD_SIZE));
+        return Math.min(MAX_BOARD_SIZE, (int) Math.round(Math.exp(logSize)));
+    }
+
+    /**
+     * Place a random number of pieces on distinct cells, up to every cell of a small board.
+     * Two Kings come first, pieces are placed on the edges more often than elsewhere.
+     *
+     * @param n the board size
+     * @return the records
+     */
+    private PieceRecords randomPieces(int n) {
+        int cells = n * n;
+        int most = Math.min(cells, MAX_PIECES);
+        int m;
+        switch (random.nextInt(4)) {
+            case 0:
+                m = 2;
+                break;
+            case 1:
+                m = most;
+                break;
+            case 2:
+                m = Math.max(2, Math.min(most, (int) Math.sqrt(cells)));
+                break;
+            default:
+                m = random.nextInt(2, most + 1);
+                break;
+        }
+        boolean[] taken = new boolean[cells];
+        PieceRecords records = new PieceRecords(0, m);
+        PieceType[] types = {PieceType.PAWN, PieceType.KNIGHT, PieceType.ROOK, PieceType.QUEEN, PieceType.BISHOP};
+        for (int i = 0; i < m; i++) {
+            int cell = freeCell(n, taken, cells - i);
+            taken[cell] = true;
+            PieceType type = i < 2 ? PieceType.KING : types[random.nextInt(types.length)];
+            PieceColor color = i < 2 ? PieceColor.values()[i] : PieceColor.values()[random.nextInt(2)];
+            records.add(type, color, cell % n + 1, cell / n + 1);
+        }
+        return records;
+    }
+
+    private int freeCell(int n, boolean[] taken, int free) {
+        if (free * 2 < taken.length) {
+            // Dense board, pick the k-th free cell
+            int k = random.nextInt(free);
+            for (int cell = 0; cell < taken.length; cell++) {
+                if (!taken[cell] && k-- == 0) {
+                    return cell;
+                }
+            }
+        }
+        while (true) {
+            int x = random.nextInt(n);
+            int y = random.nextInt(n);
+            if (random.nextInt(100) < EDGE_PERCENT) {
+                if (random.nextBoolean()) {
+                    x = random.nextBoolean() ? 0 : n - 1;
+                } else {
+                    y = random.nextBoolean() ? 0 : n - 1;
+                }
+            }
+            if (!taken[y * n + x]) {
+                return y * n + x;
+            }
+        }
+    }
+
+    private void checkEngines(int n, PieceRecords records) {
+        List<String> names = EvaluationEngine.names();
+        int[][] reference = evaluate(REFERENCE, n, records, names.indexOf(REFERENCE));
+        piecesEvaluated += records.size();
+        for (int e = 0; e < names.size(); e++) {
+            String name = names.get(e);
+            if (name.equals(REFERENCE)) {
+                continue;
+            }
+            int[][] result = evaluate(name, n, records, e);
+            if (!Arrays.equals(reference[0], result[0]) || !Arrays.equals(reference[1], result[1])) {
+                shrinkEngineCase(name, n, records);
+            }
+        }
+    }
+
+    private int[][] evaluate(String engine, int n, PieceRecords records, int timed) {
+        Position position = Position.of(n, records, new StopOnErrorWriter());
+        int[][] result = new int[2][records.size()];
+        long start = System.nanoTime();
+        EvaluationEngine.forName(engine).evaluate(position, result[0], result[1]);
+        if (timed >= 0) {
+            engineNanos[timed] += System.nanoTime() - start;
+        }
+        return result;
+    }
+
+    private boolean enginesDiffer(String engine, int n, PieceRecords records) {
+        int[][] reference = evaluate(REFERENCE, n, records, -1);
+        int[][] result = evaluate(engine, n, records, -1);
+        return !Arrays.equals(reference[0], result[0]) || !Arrays.equals(reference[1], result[1]);
+    }
+
+    /**
+     * Remove pieces and shrink the board while the engine still differs from the reference, then report the case.
+     *
+     * @param engine  the name of the engine
+     * @param n       the board size
+     * @param records the pieces
+     */
+    private void shrinkEngineCase(String engine, int n, PieceRecords records) {
+        PieceRecords smallest = records;
+        for (int chunk = Math.max(1, records.size() / 2); chunk >= 1; chunk /= 2) {
+            for (int from = 0; from < smallest.size(); ) {
+                PieceRecords fewer = without(smallest, from, Math.min(smallest.size(), from + chunk));
+                if (fewer.size() > 0 && enginesDiffer(engine, n, fewer)) {
+                    smallest = fewer;
+                } else {
+                    from += chunk;
+                }
+            }
         }
-        if (leftUpMove != Integer.MAX_VALUE) {
-            numOfMoves += leftUpMove;
-        } else {
-            numOfMoves += Math.min(x - 1, boardSize - y);
+        int size = n;
+        while (size > Math.max(MIN_BOARD_SIZE, farthest(smallest)) && enginesDiffer(engine, size - 1, smallest)) {
+            size -= 1;
         }
-        if (rightDownMove != Integer.MAX_VALUE) {
-            numOfMoves += rightDownMove;
-        } else {
-            numOfMoves += Math.min(boardSize - x, y - 1);
+        reportFailure("engine " + engine + " differs from " + REFERENCE, toLines(size, smallest));
+    }
+
+    private static PieceRecords without(PieceRecords records, int from, int to) {
+        PieceRecords result = new PieceRecords(0, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            if (i < from || i >= to) {
+                result.add(records.getType(i), records.getColor(i), records.getX(i), records.getY(i));
+            }
         }
-        if (rightUpMove != Integer.MAX_VALUE) {
-            numOfMoves += rightUpMove;
-        } else {
-            numOfMoves += Math.min(boardSize - x, boardSize - y);
+        return result;
+    }
+
+    private static int farthest(PieceRecords records) {
+        int result = 0;
+        for (int i = 0; i < records.size(); i++) {
+            result = Math.max(result, Math.max(records.getX(i), records.getY(i)));
         }
+        return result;
+    }
 
-        numOfMoves += getDiagonalCapturesCount(position, color, positions, boardSize);
+    private static List<String> toLines(int n, PieceRecords records) {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.valueOf(n));
+        lines.add(String.valueOf(records.size()));
+        for (int i = 0; i < records.size(); i++) {
+            String name = records.getType(i).name();
+            String color = records.getColor(i).name();
+            lines.add(name.charAt(0) + name.substring(1).toLowerCase() + " "
+                      + color.charAt(0) + color.substring(1).toLowerCase() + " "
+                      + records.getX(i) + " " + records.getY(i));
+        }
+        return lines;
+    }
 
-        return numOfMoves;
+    /**
+     * Break the input in up to three places, or leave it valid.
+     *
+     * @param lines the lines of the input
+     */
+    private void mutate(List<String> lines) {
+        String[] values = {"", "0", "-1", "+2", "08", "x", " 1", "1 ", "99999999999", "\u0663", "\t"};
+        String[] words = {"King", "Queen", "pawn", "Dragon", "White", "Black", "BLACK", ""};
+        int mutations = random.nextInt(4);
+        for (int k = 0; k < mutations; k++) {
+            int i = random.nextInt(lines.size());
+            String[] parts = lines.get(i).split(" ", -1);
+            int part = random.nextInt(parts.length);
+            switch (random.nextInt(6)) {
+                case 0:
+                    parts[part] = values[random.nextInt(values.length)];
+                    break;
+                case 1:
+                    parts[part] = words[random.nextInt(words.length)];
+                    break;
+                case 2:
+                    // Repeat a line, a taken cell or a second King
+                    lines.add(i + 1, lines.get(random.nextInt(lines.size())));
+                    continue;
+                case 3:
+                    lines.remove(i);
+                    if (lines.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                case 4:
+                    parts[part] = parts[part] + (random.nextBoolean() ? " " : "\r");
+                    break;
+                default:
+                    if (lines.size() > 1) {
+                        lines.set(1, String.valueOf(lines.size() - 2));
+                    }
+                    continue;
+            }
+            lines.set(i, String.join(" ", parts));
+        }
     }
 
+    private void checkLoaders(List<String> lines) {
+        byte[] input = String.join("\n", lines).getBytes(StandardCharsets.UTF_8);
+        String expected = load("load", input);
+        for (String loader: new String[] {"prevalidate", "parallel-parse"}) {
+            if (!expected.equals(load(loader, input))) {
+                shrinkLoaderCase(loader, lines);
+            }
+        }
+    }
 
     /**
-     * Get diagonal captures count int.
+     * Load the input and describe the outcome: the error, the crash or the pieces in the input order.
      *
-     * @param position  the position
-     * @param color     the color
-     * @param positions the positions
-     * @param boardSize the board size
-     * @return the diagonal captures count
+     * @param loader the name of the loader
+     * @param input  the bytes of the input
+     * @return the outcome
      */
-    default int getDiagonalCapturesCount(PiecePosition position,
-                                        PieceColor color,
-                                        Map<String, ChessPiece> positions,
-                                        int boardSize) {
-        int x = position.getX();
-        int y = position.getY();
-        boolean leftDownCapture = false;
-        boolean rightDownCapture = false;
-        boolean leftUpCapture = false;
-        boolean rightUpCapture = false;
-        int minLeftUpDistance = Integer.MAX_VALUE;
-        int minLeftDownDistance = Integer.MAX_VALUE;
-        int minRightUpDistance = Integer.MAX_VALUE;
-        int minRightDownDistance = Integer.MAX_VALUE;
-        int numOfCaptures = 0;
-        for (Map.Entry<String, ChessPiece> pair: positions.entrySet()) {
-            if (color.equals(pair.getValue().getColor())) {
-                int moveX = pair.getValue().getPosition().getX();
-                int moveY = pair.getValue().getPosition().getY();
-                if (x - moveX == y - moveY && x - moveX > 0) {
-                    minLeftDownDistance = Math.min(minLeftDownDistance, x - moveX);
-                }
-                if (x - moveX == moveY - y && x - moveX > 0) {
-                    minLeftUpDistance = Math.min(minLeftUpDistance, x - moveX);
-                }
-                if (moveX - x == y - moveY && moveX - x > 0) {
-                    minRightDownDistance = Math.min(minRightDownDistance, moveX - x);
-                }
-                if (moveX - x == moveY - y && moveX - x > 0) {
-                    minRightUpDistance = Math.min(minRightUpDistance, moveX - x);
-                }
+    private static String load(String loader, byte[] input) {
+        StopOnErrorWriter err = new StopOnErrorWriter();
+        try {
+            Position position;
+            if (loader.equals("prevalidate")) {
+                position = new InputValidator(err).load(input);
+            } else if (loader.equals("parallel-parse")) {
+                position = new ParallelPieceParser(err, CHUNK_BYTES).load(input);
+            } else {
+                position = Position.load(Files.readAllLines(writeTemporary(input), StandardCharsets.UTF_8), err);
             }
-        }
-        for (Map.Entry<String, ChessPiece> pair: positions.entrySet()) {
-            if (!color.equals(pair.getValue().getColor())) {
-                int moveX = Integer.parseInt(pair.getKey().split(" ")[0]);
-                int moveY = Integer.parseInt(pair.getKey().split(" ")[1]);
-                if (x - moveX == y - moveY && x - moveX > 0 && x - moveX < minLeftDownDistance) {
-                    leftDownCapture = true;
-                }
-                if (x - moveX == moveY - y && x - moveX > 0 && x - moveX < minLeftUpDistance) {
-                    leftUpCapture = true;
-                }
-                if (moveX - x == y - moveY && moveX - x > 0 && moveX - x < minRightDownDistance) {
-                    rightDownCapture = true;
-                }
-                if (moveX - x == moveY - y && moveX - x > 0 && moveX - x < minRightUpDistance) {
-                    rightUpCapture = true;
-                }
+            StringBuilder pieces = new StringBuilder(String.valueOf(position.getSize()));
+            for (ChessPiece piece: position.getPieces()) {
+                pieces.append(' ').append(piece.getType()).append(piece.getColor()).append(piece.getPosition());
             }
+            return pieces.toString();
+        } catch (IOException e) {
+            return new InvalidInputException().getMessage();
+        } catch (RejectedInputException e) {
+            return e.getError().getMessage();
+        } catch (RuntimeException e) {
+            return "crash " + e.getClass().getSimpleName();
         }
-        if (leftUpCapture) {
-            numOfCaptures += 1;
+    }
+
+    private static Path writeTemporary(byte[] input) throws IOException {
+        Path file = Files.createTempFile("fuzz", ".txt");
+        file.toFile().deleteOnExit();
+        return Files.write(file, input);
+    }
+
+    private void shrinkLoaderCase(String loader, List<String> lines) {
+        List<String> smallest = new ArrayList<>(lines);
+        for (int i = smallest.size() - 1; i >= 0; i--) {
+            List<String> fewer = new ArrayList<>(smallest);
+            fewer.remove(i);
+            byte[] input = String.join("\n", fewer).getBytes(StandardCharsets.UTF_8);
+            if (!load("load", input).equals(load(loader, input))) {
+                smallest = fewer;
+            }
         }
-        if (rightUpCapture) {
-            numOfCaptures += 1;
+        reportFailure("loader " + loader + " differs from load", smallest);
+    }
+
+    private void reportFailure(String description, List<String> lines) {
+        failures += 1;
+        String fileName = FAILURE_FILE + failures + ".txt";
+        System.out.println("fuzz: " + description + ", " + (lines.size() - 2) + " lines of pieces in " + fileName);
+        try {
+            Files.write(Paths.get(fileName), String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
         }
-        if (leftDownCapture) {
-            numOfCaptures += 1;
+    }
+}
+
+/**
+ * Class {@code ZobristKeys}, random keys of pieces on cells of a board of one size.
+ * Keys are generated lazily in pages of {@link #PAGE_CELLS} cells, every page comes from its own
+ * seeded generator, so threads that race to create the same page produce identical keys.
+ */
+final class ZobristKeys {
+    /** Number of cells in a page, a power of two. */
+    private static final int PAGE_CELLS = 64;
+    /** Number of keys of a cell, one per type and color. */
+    private static final int KEYS_PER_CELL = PieceType.values().length * PieceColor.values().length;
+    /** Keys of every board size that has been used. */
+    private static final Map<Integer, ZobristKeys> BY_SIZE = new ConcurrentHashMap<>();
+
+    /** A variable that represents size of a ChessBoard. */
+    private final int size;
+    /** Pages of keys, null until a piece is placed into one of their cells. */
+    private final AtomicReferenceArray<long[]> pages;
+
+    private ZobristKeys(int boardSize) {
+        this.size = boardSize;
+        this.pages = new AtomicReferenceArray<>((int) (((long) boardSize * boardSize + PAGE_CELLS - 1) / PAGE_CELLS));
+    }
+
+    /**
+     * Gets keys of the board size.
+     *
+     * @param boardSize the board size
+     * @return the keys shared by all boards of this size
+     */
+    public static ZobristKeys forSize(int boardSize) {
+        return BY_SIZE.computeIfAbsent(boardSize, ZobristKeys::new);
+    }
+
+    /**
+     * Gets key of the piece on the cell.
+     *
+     * @param x     the x
+     * @param y     the y
+     * @param type  the type of piece
+     * @param color the color of piece
+     * @return the key
+     */
+    public long get(int x, int y, PieceType type, PieceColor color) {
+        return get((y - 1) * size + x - 1, type, color);
+    }
+
+    /**
+     * Gets key of the piece on the cell.
+     *
+     * @param cell  the index of cell, {@code (y - 1) * size + x - 1}
+     * @param type  the type of piece
+     * @param color the color of piece
+     * @return the key
+     */
+    public long get(int cell, PieceType type, PieceColor color) {
+        int pageIndex = cell / PAGE_CELLS;
+        long[] page = pages.get(pageIndex);
+        if (page == null) {
+            page = createPage(pageIndex);
+            if (!pages.compareAndSet(pageIndex, null, page)) {
+                page = pages.get(pageIndex);
+            }
         }
-        if (rightDownCapture) {
-            numOfCaptures += 1;
+        return page[(cell % PAGE_CELLS) * KEYS_PER_CELL + color.ordinal() * PieceType.values().length
+                    + type.ordinal()];
+    }
+
+    private long[] createPage(int pageIndex) {
+        SplittableRandom random = new SplittableRandom(PerftBoard.mix((long) size << 32 | pageIndex));
+        long[] page = new long[PAGE_CELLS * KEYS_PER_CELL];
+        for (int i = 0; i < page.length; i++) {
+            page[i] = random.nextLong();
         }
-        return numOfCaptures;
+        return page;
     }
 }
 
 /**
- * The interface Rook movement.
+ * Class {@code LegalMoveCounter} that counts moves and captures which do not leave own King in check.
+ * Attack sets, pins and checkers are computed once per board, so the cost stays linear in
+ * the number of pieces plus the number of cells instead of making every move on the board.
  */
-interface RookMovement {
+class LegalMoveCounter {
+    /** Horizontal steps of directions. */
+    private static final int[] DX = Directions.DX;
+    /** Vertical steps of directions. */
+    private static final int[] DY = Directions.DY;
+    /** Horizontal steps of Knight jumps. */
+    private static final int[] KNIGHT_DX = Directions.KNIGHT_DX;
+    /** Vertical steps of Knight jumps. */
+    private static final int[] KNIGHT_DY = Directions.KNIGHT_DY;
+    /** Value of {@link #pinDirection} for a piece that is not pinned. */
+    private static final int NOT_PINNED = -1;
+
+    /** A variable that represents size of a ChessBoard. */
+    private final int size;
+    /** Pieces in the input order. */
+    private final ChessPiece[] pieces;
+    /** Number of pieces. */
+    private final int count;
+    /** Index of piece in {@link #pieces} for every cell, -1 for empty cells. */
+    private final int[] owners;
+    /** Cells attacked by each color, indexed by {@link PieceColor#ordinal()}. */
+    private final boolean[][] attacked = new boolean[2][];
+    /** Index of King of each color. */
+    private final int[] kings = {-1, -1};
+    /** Direction from own King to the piece if the piece is pinned. */
+    private final int[] pinDirection;
+    /** Number of pieces giving check to King of each color. */
+    private final int[] checkers = new int[2];
+    /** Cells where the single check to King of each color can be captured or blocked. */
+    private final int[][] blockCells = new int[2][];
+
     /**
-     * Gets orthogonal moves count.
+     * Instantiates a new Legal move counter.
      *
-     * @param position  the position
-     * @param color     the color
-     * @param positions the positions
      * @param boardSize the board size
-     * @return the orthogonal moves count
+     * @param piecesInOrder the pieces in the input order
+     * @param numOfPieces the number of pieces
      */
-    default int getOrthogonalMovesCount(PiecePosition position,
-                                               PieceColor color,
-                                               Map<String, ChessPiece> positions,
-                                               int boardSize) {
-        int x = position.getX();
-        int y = position.getY();
-        int upMove = Integer.MAX_VALUE;
-        int downMove = Integer.MAX_VALUE;
-        int leftMove = Integer.MAX_VALUE;
-        int rightMove = Integer.MAX_VALUE;
-        int numOfMoves = 0;
-        for (Map.Entry<String, ChessPiece> pair : positions.entrySet()) {
-            int moveX = pair.getValue().position.getX();
-            int moveY = pair.getValue().position.getY();
-            if (x == moveX) {
-                if (moveY - y > 0) {
-                    upMove = Math.min(upMove, moveY - y - 1);
-                } else if (moveY - y < 0) {
-                    downMove = Math.min(downMove, y - moveY - 1);
-                }
-            } else if (y == moveY) {
-                if (moveX - x > 0) {
-                    rightMove = Math.min(rightMove, moveX - x - 1);
-                } else if (moveX - x < 0) {
-                    leftMove = Math.min(leftMove, x - moveX - 1);
-                }
+    LegalMoveCounter(int boardSize, ChessPiece[] piecesInOrder, int numOfPieces) {
+        this.size = boardSize;
+        this.pieces = piecesInOrder;
+        this.count = numOfPieces;
+        this.owners = new int[boardSize * boardSize];
+        this.pinDirection = new int[numOfPieces];
+        Arrays.fill(owners, -1);
+        Arrays.fill(pinDirection, NOT_PINNED);
+        for (int i = 0; i < count; i++) {
+            owners[cell(pieces[i].getPosition().getX(), pieces[i].getPosition().getY())] = i;
+            if (pieces[i].getType() == PieceType.KING) {
+                kings[pieces[i].getColor().ordinal()] = i;
             }
         }
-        if (upMove != Integer.MAX_VALUE) {
-            numOfMoves += upMove;
-        } else {
-            numOfMoves += boardSize - y;
+    }
+
+    /**
+     * Count legal moves and captures of every piece.
+     *
+     * @param moves    the array to store moves count of each piece
+     * @param captures the array to store captures count of each piece
+     */
+    public void count(int[] moves, int[] captures) {
+        for (PieceColor color: PieceColor.values()) {
+            attacked[color.ordinal()] = computeAttacks(color);
         }
-        if (rightMove != Integer.MAX_VALUE) {
-            numOfMoves += rightMove;
-        } else {
-            numOfMoves += boardSize - x;
+        for (PieceColor color: PieceColor.values()) {
+            findPinsAndCheckers(color);
         }
-        if (leftMove != Integer.MAX_VALUE) {
-            numOfMoves += leftMove;
-        } else {
-            numOfMoves += x - 1;
+        for (int i = 0; i < count; i++) {
+            moves[i] = 0;
+            captures[i] = 0;
         }
-        if (downMove != Integer.MAX_VALUE) {
-            numOfMoves += downMove;
-        } else {
-            numOfMoves += y - 1;
+        for (int i = 0; i < count; i++) {
+            int side = pieces[i].getColor().ordinal();
+            if (pieces[i].getType() == PieceType.KING) {
+                countKingMoves(i, moves, captures);
+            } else if (checkers[side] == 0) {
+                if (pinDirection[i] == NOT_PINNED) {
+                    countPseudoLegalMoves(i, moves, captures);
+                } else {
+                    countPinnedMoves(i, moves, captures);
+                }
+            }
+        }
+        for (PieceColor color: PieceColor.values()) {
+            if (checkers[color.ordinal()] == 1) {
+                countCheckEvasions(color, moves, captures);
+            }
         }
-
-        numOfMoves += getOrthogonalCapturesCount(position, color, positions, boardSize);
-
-        return numOfMoves;
     }
 
-
     /**
-     * Gets orthogonal captures count.
+     * Mark cells attacked by pieces of the color, the enemy King does not block sliders,
+     * so that it can not step back along the line of the check.
      *
-     * @param position  the position
-     * @param color     the color
-     * @param positions the positions
-     * @param boardSize the board size
-     * @return the orthogonal captures count
+     * @param color the color of attacking pieces
+     * @return the attacked cells
      */
-    default int getOrthogonalCapturesCount(PiecePosition position,
-                                                  PieceColor color,
-                                                  Map<String, ChessPiece> positions,
-                                                  int boardSize) {
-        int x = position.getX();
-        int y = position.getY();
-        boolean leftCapture = false;
-        boolean rightCapture = false;
-        boolean upCapture = false;
-        boolean downCapture = false;
-        int minDistanceUp = Integer.MAX_VALUE;
-        int minDistanceDown = Integer.MAX_VALUE;
-        int minDistanceLeft = Integer.MAX_VALUE;
-        int minDistanceRight = Integer.MAX_VALUE;
-        for (Map.Entry<String, ChessPiece> pair: positions.entrySet()) {
-            if (pair.getValue().getColor().equals(color)) {
-                int moveX = pair.getValue().getPosition().getX();
-                int moveY = pair.getValue().getPosition().getY();
-                if (moveX == x) {
-                    if (moveY - y > 0) {
-                        minDistanceUp = Math.min(minDistanceUp, moveY - y);
-                    } else if (moveY - y < 0) {
-                        minDistanceDown = Math.min(minDistanceDown, y - moveY);
+    private boolean[] computeAttacks(PieceColor color) {
+        boolean[] result = new boolean[size * size];
+        int enemyKing = kings[color.opposite().ordinal()];
+        for (int i = 0; i < count; i++) {
+            ChessPiece piece = pieces[i];
+            if (piece.getColor() != color) {
+                continue;
+            }
+            int x = piece.getPosition().getX();
+            int y = piece.getPosition().getY();
+            switch (piece.getType()) {
+                case PAWN:
+                    int forward = color.forward();
+                    markIfInside(result, x - 1, y + forward);
+                    markIfInside(result, x + 1, y + forward);
+                    break;
+                case KNIGHT:
+                    for (int k = 0; k < KNIGHT_DX.length; k++) {
+                        markIfInside(result, x + KNIGHT_DX[k], y + KNIGHT_DY[k]);
                     }
-                }
-                if (moveY == y) {
-                    if (moveX - x > 0) {
-                        minDistanceRight = Math.min(minDistanceRight, moveX - x);
-                    } else if (moveX - x < 0) {
-                        minDistanceLeft = Math.min(minDistanceLeft, x - moveX);
+                    break;
+                case KING:
+                    for (int d = 0; d < DX.length; d++) {
+                        markIfInside(result, x + DX[d], y + DY[d]);
                     }
-                }
+                    break;
+                default:
+                    for (int d = 0; d < DX.length; d++) {
+                        if (!piece.getType().slidesAlong(d)) {
+                            continue;
+                        }
+                        int stepX = x + DX[d];
+                        int stepY = y + DY[d];
+                        while (inside(stepX, stepY)) {
+                            int owner = owners[cell(stepX, stepY)];
+                            result[cell(stepX, stepY)] = true;
+                            if (owner != -1 && owner != enemyKing) {
+                                break;
+                            }
+                            stepX += DX[d];
+                            stepY += DY[d];
+                        }
+                    }
+                    break;
             }
         }
-        int numOfCaptures = 0;
-        for (Map.Entry<String, ChessPiece> pair : positions.entrySet()) {
-            if (!pair.getValue().getColor().equals(color)) {
-                int moveX = pair.getValue().getPosition().getX();
-                int moveY = pair.getValue().getPosition().getY();
-                if (moveX == x) {
-                    if (moveY - y > 0 && moveY - y < minDistanceUp) {
-                        upCapture = true;
-                    } else if (moveY - y < 0 && y - moveY < minDistanceDown) {
-                        downCapture = true;
-                    }
-                } else if (moveY == y) {
-                    if (moveX - x > 0 && moveX - x < minDistanceRight) {
-                        rightCapture = true;
-                    } else if (moveX - x < 0 && x - moveX < minDistanceLeft) {
-                        leftCapture = true;
+        return result;
+    }
+
+    /**
+     * Find pieces pinned to King of the color and pieces giving check to it.
+     *
+     * @param color the color of King
+     */
+    private void findPinsAndCheckers(PieceColor color) {
+        int side = color.ordinal();
+        int king = kings[side];
+        if (king == -1) {
+            blockCells[side] = new int[0];
+            return;
+        }
+        int kingX = pieces[king].getPosition().getX();
+        int kingY = pieces[king].getPosition().getY();
+        int[] block = new int[DX.length * size + KNIGHT_DX.length + 2];
+        int blockLength = 0;
+        for (int d = 0; d < DX.length; d++) {
+            int stepX = kingX + DX[d];
+            int stepY = kingY + DY[d];
+            int distance = 1;
+            int shield = -1;
+            while (inside(stepX, stepY)) {
+                int owner = owners[cell(stepX, stepY)];
+                if (owner != -1) {
+                    ChessPiece piece = pieces[owner];
+                    boolean enemy = piece.getColor() != color;
+                    boolean slider = piece.getType().slidesAlong(d);
+                    if (shield == -1 && !enemy) {
+                        shield = owner;
+                    } else if (shield == -1) {
+                        if (slider || distance == 1 && piece.getType() == PieceType.KING) {
+                            checkers[side] += 1;
+                            for (int back = 0; back < distance; back++) {
+                                block[blockLength++] = cell(stepX - DX[d] * back, stepY - DY[d] * back);
+                            }
+                        }
+                        break;
+                    } else {
+                        if (enemy && slider) {
+                            pinDirection[shield] = d;
+                        }
+                        break;
                     }
                 }
+                stepX += DX[d];
+                stepY += DY[d];
+                distance += 1;
             }
         }
-        if (leftCapture) {
-            numOfCaptures += 1;
-        }
-        if (rightCapture) {
-            numOfCaptures += 1;
-        }
-        if (upCapture) {
-            numOfCaptures += 1;
+        for (int k = 0; k < KNIGHT_DX.length; k++) {
+            int owner = ownerIfInside(kingX + KNIGHT_DX[k], kingY + KNIGHT_DY[k]);
+            if (owner != -1 && pieces[owner].getColor() != color
+                    && pieces[owner].getType() == PieceType.KNIGHT) {
+                checkers[side] += 1;
+                block[blockLength++] = cell(kingX + KNIGHT_DX[k], kingY + KNIGHT_DY[k]);
+            }
         }
-        if (downCapture) {
-            numOfCaptures += 1;
+        // Enemy Pawns attack towards this King, so they stand one row ahead of it
+        int pawnY = kingY + color.forward();
+        for (int pawnX = kingX - 1; pawnX <= kingX + 1; pawnX += 2) {
+            int owner = ownerIfInside(pawnX, pawnY);
+            if (owner != -1 && pieces[owner].getColor() != color
+                    && pieces[owner].getType() == PieceType.PAWN) {
+                checkers[side] += 1;
+                block[blockLength++] = cell(pawnX, pawnY);
+            }
         }
-
-        return numOfCaptures;
+        blockCells[side] = Arrays.copyOf(block, blockLength);
     }
-}
 
-/**
- * Class {@code ChessPiece}, super class for all Pieces.
- */
-abstract class ChessPiece {
     /**
-     * The Position variable, describes coordinates of {@link ChessPiece}.
+     * Count moves of King, which can not step onto a cell attacked by the enemy.
+     *
+     * @param index    the index of King
+     * @param moves    the moves counts
+     * @param captures the captures counts
      */
-    protected PiecePosition position;
+    private void countKingMoves(int index, int[] moves, int[] captures) {
+        ChessPiece king = pieces[index];
+        boolean[] enemyAttacks = attacked[king.getColor().opposite().ordinal()];
+        int x = king.getPosition().getX();
+        int y = king.getPosition().getY();
+        for (int d = 0; d < DX.length; d++) {
+            if (!inside(x + DX[d], y + DY[d]) || enemyAttacks[cell(x + DX[d], y + DY[d])]) {
+                continue;
+            }
+            int owner = owners[cell(x + DX[d], y + DY[d])];
+            if (owner == -1) {
+                moves[index] += 1;
+            } else if (pieces[owner].getColor() != king.getColor()) {
+                moves[index] += 1;
+                captures[index] += 1;
+            }
+        }
+    }
+
     /**
-     * The Color, describes color of {@link ChessPiece}.
+     * Count moves of the piece that is neither pinned nor has to answer a check.
+     *
+     * @param index    the index of piece
+     * @param moves    the moves counts
+     * @param captures the captures counts
      */
-    protected PieceColor color;
+    private void countPseudoLegalMoves(int index, int[] moves, int[] captures) {
+        ChessPiece piece = pieces[index];
+        int x = piece.getPosition().getX();
+        int y = piece.getPosition().getY();
+        switch (piece.getType()) {
+            case PAWN:
+                int forward = piece.getColor().forward();
+                if (inside(x, y + forward) && owners[cell(x, y + forward)] == -1) {
+                    moves[index] += 1;
+                }
+                countTarget(index, x - 1, y + forward, true, moves, captures);
+                countTarget(index, x + 1, y + forward, true, moves, captures);
+                break;
+            case KNIGHT:
+                for (int k = 0; k < KNIGHT_DX.length; k++) {
+                    countTarget(index, x + KNIGHT_DX[k], y + KNIGHT_DY[k], false, moves, captures);
+                }
+                break;
+            default:
+                for (int d = 0; d < DX.length; d++) {
+                    if (piece.getType().slidesAlong(d)) {
+                        countRay(index, d, moves, captures);
+                    }
+                }
+                break;
+        }
+    }
 
     /**
-     * Instantiates a new Chess piece.
+     * Count moves of the pinned piece, which may only slide along the line of the pin.
      *
-     * @param piecePosition the piece position
-     * @param pieceColor    the color
+     * @param index    the index of piece
+     * @param moves    the moves counts
+     * @param captures the captures counts
      */
-    ChessPiece(PiecePosition piecePosition, PieceColor pieceColor) {
-        this.position = piecePosition;
-        this.color = pieceColor;
+    private void countPinnedMoves(int index, int[] moves, int[] captures) {
+        ChessPiece piece = pieces[index];
+        int d = pinDirection[index];
+        int x = piece.getPosition().getX();
+        int y = piece.getPosition().getY();
+        if (piece.getType() == PieceType.PAWN) {
+            int forward = piece.getColor().forward();
+            if (DX[d] == 0) {
+                if (inside(x, y + forward) && owners[cell(x, y + forward)] == -1) {
+                    moves[index] += 1;
+                }
+            } else if (DY[d] == forward) {
+                countTarget(index, x + DX[d], y + DY[d], true, moves, captures);
+            }
+        } else if (piece.getType().slidesAlong(d)) {
+            countRay(index, d, moves, captures);
+            countRay(index, d ^ 1, moves, captures);
+        }
     }
 
     /**
-     * Get position piece position.
+     * Count moves that capture the single checking piece or block its line, only pieces
+     * that are not pinned can do that, so every such move is legal.
      *
-     * @return the piece position
+     * @param color    the color of side in check
+     * @param moves    the moves counts
+     * @param captures the captures counts
      */
-    public PiecePosition getPosition() {
-        return position;
+    private void countCheckEvasions(PieceColor color, int[] moves, int[] captures) {
+        int forward = color.forward();
+        for (int target: blockCells[color.ordinal()]) {
+            int x = target % size + 1;
+            int y = target / size + 1;
+            boolean capture = owners[target] != -1;
+            for (int d = 0; d < DX.length; d++) {
+                int stepX = x + DX[d];
+                int stepY = y + DY[d];
+                while (inside(stepX, stepY) && owners[cell(stepX, stepY)] == -1) {
+                    stepX += DX[d];
+                    stepY += DY[d];
+                }
+                int owner = ownerIfInside(stepX, stepY);
+                if (owner != -1 && pieces[owner].getType().slidesAlong(d)) {
+                    countEvasion(owner, color, capture, moves, captures);
+                }
+            }
+            for (int k = 0; k < KNIGHT_DX.length; k++) {
+                int owner = ownerIfInside(x + KNIGHT_DX[k], y + KNIGHT_DY[k]);
+                if (owner != -1 && pieces[owner].getType() == PieceType.KNIGHT) {
+                    countEvasion(owner, color, capture, moves, captures);
+                }
+            }
+            if (capture) {
+                for (int pawnX = x - 1; pawnX <= x + 1; pawnX += 2) {
+                    int owner = ownerIfInside(pawnX, y - forward);
+                    if (owner != -1 && pieces[owner].getType() == PieceType.PAWN) {
+                        countEvasion(owner, color, true, moves, captures);
+                    }
+                }
+            } else {
+                int owner = ownerIfInside(x, y - forward);
+                if (owner != -1 && pieces[owner].getType() == PieceType.PAWN) {
+                    countEvasion(owner, color, false, moves, captures);
+                }
+            }
+        }
     }
 
     /**
-     * Get color piece color.
+     * Count a move of the piece into the check blocking cell if the piece belongs to the defending side.
      *
-     * @return the piece color
+     * @param index    the index of piece
+     * @param color    the color of side in check
+     * @param capture  is the move a capture of the checking piece
+     * @param moves    the moves counts
+     * @param captures the captures counts
      */
-    public PieceColor getColor() {
-        return color;
+    private void countEvasion(int index, PieceColor color, boolean capture, int[] moves, int[] captures) {
+        if (pieces[index].getColor() != color || pinDirection[index] != NOT_PINNED) {
+            return;
+        }
+        moves[index] += 1;
+        if (capture) {
+            captures[index] += 1;
+        }
     }
 
     /**
-     * Gets moves count.
+     * Count moves of a slider in one direction.
      *
-     * @param positions the positions
-     * @param boardSize the board size
-     * @return the moves count
+     * @param index    the index of piece
+     * @param d        the direction
+     * @param moves    the moves counts
+     * @param captures the captures counts
      */
-    public abstract int getMovesCount(Map<String, ChessPiece> positions, int boardSize);
+    private void countRay(int index, int d, int[] moves, int[] captures) {
+        int stepX = pieces[index].getPosition().getX() + DX[d];
+        int stepY = pieces[index].getPosition().getY() + DY[d];
+        while (inside(stepX, stepY) && owners[cell(stepX, stepY)] == -1) {
+            moves[index] += 1;
+            stepX += DX[d];
+            stepY += DY[d];
+        }
+        countTarget(index, stepX, stepY, true, moves, captures);
+    }
 
     /**
-     * Gets captures count.
+     * Count a single jump of the piece to the cell.
      *
-     * @param positions the positions
-     * @param boardSize the board size
-     * @return the captures count
+     * @param index       the index of piece
+     * @param x           the x of target cell
+     * @param y           the y of target cell
+     * @param captureOnly can the piece only capture on this cell
+     * @param moves       the moves counts
+     * @param captures    the captures counts
      */
-    public abstract int getCapturesCount(Map<String, ChessPiece> positions, int boardSize);
+    private void countTarget(int index, int x, int y, boolean captureOnly,
+                             int[] moves, int[] captures) {
+        if (!inside(x, y)) {
+            return;
+        }
+        int owner = owners[cell(x, y)];
+        if (owner == -1) {
+            if (!captureOnly) {
+                moves[index] += 1;
+            }
+        } else if (pieces[owner].getColor() != pieces[index].getColor()) {
+            moves[index] += 1;
+            captures[index] += 1;
+        }
+    }
+
+    private void markIfInside(boolean[] cells, int x, int y) {
+        if (inside(x, y)) {
+            cells[cell(x, y)] = true;
+        }
+    }
+
+    private int ownerIfInside(int x, int y) {
+        return inside(x, y) ? owners[cell(x, y)] : -1;
+    }
+
+    private boolean inside(int x, int y) {
+        return x >= 1 && y >= 1 && x <= size && y <= size;
+    }
 
+    private int cell(int x, int y) {
+        return (y - 1) * size + (x - 1);
+    }
 }
 
 /**
- * Class Knight of type {@link ChessPiece}.
+ * Class {@code PerftBoard}, a compact copy of {@link Board} on which moves can be made and unmade.
+ * Moves follow the same rules as {@link ChessPiece#getMovesCount(Map, int)}, so a King can be captured
+ * like any other piece and the side without King keeps moving its remaining pieces.
  */
-class Knight extends ChessPiece {
+class PerftBoard {
+    /** Horizontal steps of directions. */
+    private static final int[] DX = Directions.DX;
+    /** Vertical steps of directions. */
+    private static final int[] DY = Directions.DY;
+    /** Horizontal steps of Knight jumps. */
+    private static final int[] KNIGHT_DX = Directions.KNIGHT_DX;
+    /** Vertical steps of Knight jumps. */
+    private static final int[] KNIGHT_DY = Directions.KNIGHT_DY;
+    /** Key mixed into the hash when Black is to move. */
+    private static final long BLACK_TO_MOVE = mix(-1);
+
+    /** A variable that represents size of a ChessBoard. */
+    private final int size;
+    /** Index of piece for every cell, -1 for empty cells. */
+    private final int[] cellPiece;
+    /** Cell of every piece, -1 for captured pieces. */
+    private final int[] pieceCell;
+    /** Type of every piece. */
+    private final PieceType[] types;
+    /** Color of every piece. */
+    private final PieceColor[] colors;
+    /** Keys of pieces on cells of this board size. */
+    private final ZobristKeys keys;
+    /** Hash of the position and the side to move, equals {@link Board#getHash()} when White is to move. */
+    private long hash;
+    /** The side to move. */
+    private PieceColor sideToMove = PieceColor.WHITE;
+
     /**
-     * Instantiates a new Knight.
+     * Instantiates a new Perft board, White is to move.
      *
-     * @param position the position
-     * @param color    the color
+     * @param boardSize   the board size
+     * @param pieces      the pieces
+     * @param numOfPieces the number of pieces
      */
-    Knight(PiecePosition position, PieceColor color) {
-        super(position, color);
+    PerftBoard(int boardSize, ChessPiece[] pieces, int numOfPieces) {
+        this.size = boardSize;
+        this.cellPiece = new int[boardSize * boardSize];
+        this.pieceCell = new int[numOfPieces];
+        this.types = new PieceType[numOfPieces];
+        this.colors = new PieceColor[numOfPieces];
+        this.keys = ZobristKeys.forSize(boardSize);
+        Arrays.fill(cellPiece, -1);
+        for (int i = 0; i < numOfPieces; i++) {
+            int cell = (pieces[i].getPosition().getY() - 1) * size + pieces[i].getPosition().getX() - 1;
+            types[i] = pieces[i].getType();
+            colors[i] = pieces[i].getColor();
+            cellPiece[cell] = i;
+            pieceCell[i] = cell;
+            hash ^= key(cell, i);
+        }
     }
 
-    /** function that counts possible moves for Knight. */
-    @Override
-    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
-        int numOfMoves = 0;
-        int coordX = this.position.getX();
-        int coordY = this.position.getY();
-        if (coordX - 2 > 0 && coordY - 1 > 0
-                && !positions.containsKey(coordX - 2 + " " + (coordY - 1))) {
-            numOfMoves += 1;
-        }
-        if (coordX - 2 > 0 && coordY + 1 < boardSize + 1
-                && !positions.containsKey(coordX - 2 + " " + (coordY + 1))) {
-            numOfMoves += 1;
-        }
-        if (coordX - 1 > 0 && coordY - 2 > 0
-                && !positions.containsKey(coordX - 1 + " " + (coordY - 2))) {
-            numOfMoves += 1;
-        }
-        if (coordX - 1 > 0 && coordY + 2 < boardSize + 1
-                && !positions.containsKey(coordX - 1 + " " + (coordY + 2))) {
-            numOfMoves += 1;
-        }
-        if (coordX + 1 < boardSize + 1 && coordY - 2 > 0
-                && !positions.containsKey(coordX + 1 + " " + (coordY - 2))) {
-            numOfMoves += 1;
-        }
-        if (coordX + 1 < boardSize + 1 && coordY + 2 < boardSize + 1
-                && !positions.containsKey(coordX + 1 + " " + (coordY + 2))) {
-            numOfMoves += 1;
-        }
-        if (coordX + 2 < boardSize + 1 && coordY - 1 > 0
-                && !positions.containsKey(coordX + 2 + " " + (coordY - 1))) {
-            numOfMoves += 1;
-        }
-        if (coordX + 2 < boardSize + 1 && coordY + 1 < boardSize + 1
-                && !positions.containsKey(coordX + 2 + " " + (coordY + 1))) {
-            numOfMoves += 1;
-        }
+    private PerftBoard(PerftBoard other) {
+        this.size = other.size;
+        this.cellPiece = other.cellPiece.clone();
+        this.pieceCell = other.pieceCell.clone();
+        this.types = other.types;
+        this.colors = other.colors;
+        this.keys = other.keys;
+        this.hash = other.hash;
+        this.sideToMove = other.sideToMove;
+    }
 
-        numOfMoves += getCapturesCount(positions, boardSize);
+    /**
+     * Copy the board, so that another thread can make moves on it.
+     *
+     * @return the perft board
+     */
+    public PerftBoard copy() {
+        return new PerftBoard(this);
+    }
 
-        return numOfMoves;
+    /**
+     * Gets hash of the position.
+     *
+     * @return the hash
+     */
+    public long getHash() {
+        return hash;
     }
 
-    /** function that counts possible captures for Knight. */
-    @Override
-    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
-        int coordX = this.position.getX();
-        int coordY = this.position.getY();
-        int numOfCaptures = 0;
-        for (Map.Entry<String, ChessPiece> pair: positions.entrySet()) {
-            int moveX = Integer.parseInt(pair.getKey().split(" ")[0]);
-            int moveY = Integer.parseInt(pair.getKey().split(" ")[1]);
-            if (!(pair.getValue().getColor().equals(this.color))) {
-                if (moveX == coordX - 2) {
-                    if (moveY == coordY - 1) {
-                        numOfCaptures += 1;
-                    }
-                    if (moveY == coordY + 1) {
-                        numOfCaptures += 1;
-                    }
-                } else if (moveX == coordX - 1) {
-                    if (moveY == coordY - 2) {
-                        numOfCaptures += 1;
-                    }
-                    if (moveY == coordY + 2) {
-                        numOfCaptures += 1;
-                    }
-                } else if (moveX == coordX + 1) {
-                    if (moveY == coordY - 2) {
-                        numOfCaptures += 1;
+    /**
+     * Generate moves of the side to move.
+     *
+     * @param list the list to fill with moves
+     * @return the number of moves
+     */
+    public int generateMoves(MoveList list) {
+        list.clear();
+        for (int i = 0; i < pieceCell.length; i++) {
+            if (pieceCell[i] == -1 || colors[i] != sideToMove) {
+                continue;
+            }
+            int from = pieceCell[i];
+            int x = from % size;
+            int y = from / size;
+            switch (types[i]) {
+                case PAWN:
+                    int forward = colors[i].forward();
+                    if (inside(x, y + forward) && cellPiece[from + forward * size] == -1) {
+                        list.add(from, from + forward * size);
                     }
-                    if (moveY == coordY + 2) {
-                        numOfCaptures += 1;
+                    addCapture(list, from, x - 1, y + forward);
+                    addCapture(list, from, x + 1, y + forward);
+                    break;
+                case KNIGHT:
+                    for (int k = 0; k < KNIGHT_DX.length; k++) {
+                        addJump(list, from, x + KNIGHT_DX[k], y + KNIGHT_DY[k]);
                     }
-                } else if (moveX == coordX + 2) {
-                    if (moveY == coordY - 1) {
-                        numOfCaptures += 1;
+                    break;
+                case KING:
+                    for (int d = 0; d < DX.length; d++) {
+                        addJump(list, from, x + DX[d], y + DY[d]);
                     }
-                    if (moveY == coordY + 1) {
-                        numOfCaptures += 1;
+                    break;
+                default:
+                    for (int d = 0; d < DX.length; d++) {
+                        if (!types[i].slidesAlong(d)) {
+                            continue;
+                        }
+                        int stepX = x + DX[d];
+                        int stepY = y + DY[d];
+                        while (inside(stepX, stepY) && cellPiece[stepY * size + stepX] == -1) {
+                            list.add(from, stepY * size + stepX);
+                            stepX += DX[d];
+                            stepY += DY[d];
+                        }
+                        addCapture(list, from, stepX, stepY);
                     }
-                }
+                    break;
             }
         }
-        return numOfCaptures;
+        return list.size();
     }
-}
 
-/**
- * Class King of type {@link ChessPiece}.
- */
-class King extends ChessPiece {
     /**
-     * Instantiates a new King.
+     * Make the move and pass the turn.
      *
-     * @param position the position
-     * @param color    the color
+     * @param move the move from {@link MoveList}
+     * @return the index of captured piece or -1, needed by {@link #unmake(long, int)}
      */
-    King(PiecePosition position, PieceColor color) {
-        super(position, color);
+    public int make(long move) {
+        int from = MoveList.from(move);
+        int to = MoveList.to(move);
+        int piece = cellPiece[from];
+        int captured = cellPiece[to];
+        if (captured != -1) {
+            hash ^= key(to, captured);
+            pieceCell[captured] = -1;
+        }
+        hash ^= key(from, piece) ^ key(to, piece) ^ BLACK_TO_MOVE;
+        cellPiece[from] = -1;
+        cellPiece[to] = piece;
+        pieceCell[piece] = to;
+        sideToMove = sideToMove.opposite();
+        return captured;
     }
 
-    /** function that counts possible moves for King. */
-    @Override
-    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
-        int numOfMoves = 0;
-        int x = this.position.getX();
-        int y = this.position.getY();
-        // Left
-        if (x - 1 > 0 && !(positions.containsKey((x - 1) + " " + y))) {
-            numOfMoves += 1;
+    /**
+     * Unmake the move made by {@link #make(long)}.
+     *
+     * @param move     the move
+     * @param captured the captured piece returned by {@link #make(long)}
+     */
+    public void unmake(long move, int captured) {
+        int from = MoveList.from(move);
+        int to = MoveList.to(move);
+        int piece = cellPiece[to];
+        hash ^= key(from, piece) ^ key(to, piece) ^ BLACK_TO_MOVE;
+        cellPiece[from] = piece;
+        pieceCell[piece] = from;
+        cellPiece[to] = captured;
+        if (captured != -1) {
+            hash ^= key(to, captured);
+            pieceCell[captured] = to;
+        }
+        sideToMove = sideToMove.opposite();
+    }
+
+    private void addJump(MoveList list, int from, int x, int y) {
+        if (inside(x, y) && (cellPiece[y * size + x] == -1
+                || colors[cellPiece[y * size + x]] != colors[cellPiece[from]])) {
+            list.add(from, y * size + x);
         }
-        // Left-Bottom
-        if (x - 1 > 0 && y - 1 > 0 && !(positions.containsKey((x - 1) + " " + (y - 1)))) {
-            numOfMoves += 1;
+    }
+
+    private void addCapture(MoveList list, int from, int x, int y) {
+        if (inside(x, y) && cellPiece[y * size + x] != -1
+                && colors[cellPiece[y * size + x]] != colors[cellPiece[from]]) {
+            list.add(from, y * size + x);
         }
-        // Left-Top
-        if (x - 1 > 0 && y < boardSize && !(positions.containsKey((x - 1) + " " + (y + 1)))) {
-            numOfMoves += 1;
+    }
+
+    private boolean inside(int x, int y) {
+        return x >= 0 && y >= 0 && x < size && y < size;
+    }
+
+    private long key(int cell, int piece) {
+        return keys.get(cell, types[piece], colors[piece]);
+    }
+
+    /**
+     * Mix the value into a well spread 64-bit key (SplitMix64 finalizer).
+     *
+     * @param value the value
+     * @return the key
+     */
+    static long mix(long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Class {@code MoveList}, a reusable list of moves packed into longs.
+     */
+    static class MoveList {
+        /** The packed moves. */
+        private long[] moves = new long[64];
+        /** The number of moves. */
+        private int size;
+
+        /**
+         * Add move.
+         *
+         * @param from the cell the piece moves from
+         * @param to   the cell the piece moves to
+         */
+        void add(int from, int to) {
+            if (size == moves.length) {
+                moves = Arrays.copyOf(moves, size * 2);
+            }
+            moves[size++] = ((long) from << 32) | to;
         }
-        // Right-Bottom
-        if (x < boardSize && y - 1 > 0 && !(positions.containsKey(x + 1 + " " + (y - 1)))) {
-            numOfMoves += 1;
+
+        /**
+         * Gets move.
+         *
+         * @param index the index
+         * @return the packed move
+         */
+        long get(int index) {
+            return moves[index];
         }
-        // Right-Top
-        if (x < boardSize && y < boardSize && !(positions.containsKey(x + 1 + " " + (y + 1)))) {
-            numOfMoves += 1;
+
+        int size() {
+            return size;
         }
-        // Right
-        if (x < boardSize && !(positions.containsKey(x + 1 + " " + y))) {
-            numOfMoves += 1;
+
+        void clear() {
+            size = 0;
         }
-        // Bottom
-        if (y - 1 > 0 && !(positions.containsKey(x + " " + (y - 1)))) {
-            numOfMoves += 1;
+
+        static int from(long move) {
+            return (int) (move >>> 32);
         }
-        // Top
-        if (y < boardSize && !(positions.containsKey(x + " " + (y + 1)))) {
-            numOfMoves += 1;
+
+        static int to(long move) {
+            return (int) move;
         }
+    }
+}
 
-        numOfMoves += getCapturesCount(positions, boardSize);
+/**
+ * Class {@code PerftSearch} that counts leaf nodes of the move tree of given depth.
+ * Moves of the root are split between threads of {@link ForkJoinPool}, every thread
+ * searches on its own copy of {@link PerftBoard}.
+ */
+class PerftSearch {
+    /** The board of the root position. */
+    private final PerftBoard root;
+    /** Counts of already searched subtrees, null if disabled. */
+    private final TranspositionTable table;
+    /** Board and move lists of every worker thread. */
+    private final ThreadLocal<Worker> workers;
 
-        return numOfMoves;
+    /**
+     * Instantiates a new Perft search.
+     *
+     * @param rootBoard   the board of the root position
+     * @param tableSizeMb the size of table of searched subtrees in megabytes, 0 to disable it
+     */
+    PerftSearch(PerftBoard rootBoard, int tableSizeMb) {
+        this.root = rootBoard;
+        this.table = tableSizeMb > 0 ? new TranspositionTable(tableSizeMb) : null;
+        this.workers = ThreadLocal.withInitial(() -> new Worker(root.copy()));
     }
 
-    /** function that counts possible captures for King. */
-    @Override
-    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
-        int numOfCaptures = 0;
-        int coordX = this.position.getX();
-        int coordY = this.position.getY();
-        for (Map.Entry<String, ChessPiece> pair: positions.entrySet()) {
-            if (!(pair.getValue().getColor().equals(this.color))) {
-                int moveX = Integer.parseInt(pair.getKey().split(" ")[0]);
-                int moveY = Integer.parseInt(pair.getKey().split(" ")[1]);
-                if (moveX == coordX - 1) {
-                    if (moveY == coordY - 1) {
-                        numOfCaptures += 1;
-                    }
-                    if (moveY == coordY + 1) {
-                        numOfCaptures += 1;
-                    }
-                    if (moveY == coordY) {
-                        numOfCaptures += 1;
-                    }
-                } else if (moveX == coordX + 1) {
-                    if (moveY == coordY - 1) {
-                        numOfCaptures += 1;
-                    }
-                    if (moveY == coordY + 1) {
-                        numOfCaptures += 1;
-                    }
-                    if (moveY == coordY) {
-                        numOfCaptures += 1;
-                    }
-                } else if (moveX == coordX) {
-                    if (moveY == coordY - 1) {
-                        numOfCaptures += 1;
-                    }
-                    if (moveY == coordY + 1) {
-                        numOfCaptures += 1;
-                    }
+    /**
+     * Count leaf nodes of the move tree.
+     *
+     * @param depth the depth
+     * @return the number of nodes
+     */
+    public long run(int depth) {
+        if (depth == 0) {
+            return 1;
+        }
+        PerftBoard.MoveList rootMoves = new PerftBoard.MoveList();
+        int count = root.generateMoves(rootMoves);
+        if (depth == 1) {
+            return count;
+        }
+        List<RecursiveTask<Long>> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long move = rootMoves.get(i);
+            tasks.add(new RecursiveTask<Long>() {
+                @Override
+                protected Long compute() {
+                    Worker worker = workers.get();
+                    int captured = worker.board.make(move);
+                    long nodes = search(worker, depth - 1);
+                    worker.board.unmake(move, captured);
+                    return nodes;
                 }
-            }
+            });
         }
-        return numOfCaptures;
+        return ForkJoinPool.commonPool().invoke(new RecursiveTask<Long>() {
+            @Override
+            protected Long compute() {
+                long nodes = 0;
+                for (RecursiveTask<Long> task: ForkJoinTask.invokeAll(tasks)) {
+                    nodes += task.join();
+                }
+                return nodes;
+            }
+        });
     }
-}
 
-/**
- * Class Pawn of type {@link ChessPiece}.
- */
-class Pawn extends ChessPiece {
     /**
-     * Instantiates a new Pawn.
+     * Gets table of searched subtrees.
      *
-     * @param position the position
-     * @param color    the color
+     * @return the table, null if disabled
      */
-    Pawn(PiecePosition position, PieceColor color) {
-        super(position, color);
+    public TranspositionTable getTable() {
+        return table;
     }
 
-    /** function that counts possible moves for Pawn. */
-    @Override
-    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
-        int coordX = this.position.getX();
-        int coordY = this.position.getY();
-        int numOfMoves = 0;
-        if (color == PieceColor.WHITE) {
-            if (coordY + 1 < boardSize + 1
-            && !positions.containsKey(String.valueOf(coordX) + " " + String.valueOf(coordY + 1))) {
-                numOfMoves += 1;
-            }
-        } else if (color == PieceColor.BLACK) {
-            if (coordY - 1 > 0
-            && !positions.containsKey(String.valueOf(coordX) + " " + String.valueOf(coordY - 1))) {
-                numOfMoves += 1;
+    private long search(Worker worker, int depth) {
+        PerftBoard board = worker.board;
+        PerftBoard.MoveList moves = worker.movesAt(depth);
+        int count = board.generateMoves(moves);
+        if (depth == 1) {
+            return count;
+        }
+        long key = board.getHash() ^ PerftBoard.mix(depth);
+        if (table != null) {
+            long known = table.probe(key, depth);
+            if (known != TranspositionTable.NOT_FOUND) {
+                return known;
             }
         }
-        numOfMoves += getCapturesCount(positions, boardSize);
-        return numOfMoves;
+        long nodes = 0;
+        for (int i = 0; i < count; i++) {
+            long move = moves.get(i);
+            int captured = board.make(move);
+            nodes += search(worker, depth - 1);
+            board.unmake(move, captured);
+        }
+        if (table != null) {
+            table.store(key, depth, nodes);
+        }
+        return nodes;
     }
 
-    /** function that counts possible captures for Pawn. */
-    @Override
-    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
-        int coordX = this.position.getX();
-        int coordY = this.position.getY();
-        int numOfCaptures = 0;
-        for (Map.Entry<String, ChessPiece> pair: positions.entrySet()) {
-            String moveY = pair.getKey().split(" ")[1];
-            String moveX = pair.getKey().split(" ")[0];
-            if (!pair.getValue().getColor().equals(this.color)) {
-                if (this.color.equals(PieceColor.WHITE)) {
-                    if (moveX.equals(String.valueOf(coordX + 1)) && moveY.equals(String.valueOf(coordY + 1))) {
-                        numOfCaptures += 1;
-                    }
-                    if (moveX.equals(String.valueOf(coordX - 1)) && moveY.equals(String.valueOf(coordY + 1))) {
-                        numOfCaptures += 1;
-                    }
-                } else if (this.color.equals(PieceColor.BLACK)) {
-                    if (moveX.equals(String.valueOf(coordX + 1)) && moveY.equals(String.valueOf(coordY - 1))) {
-                        numOfCaptures += 1;
-                    }
-                    if (moveX.equals(String.valueOf(coordX - 1)) && moveY.equals(String.valueOf(coordY - 1))) {
-                        numOfCaptures += 1;
-                    }
+    /**
+     * Class {@code Worker}, the state of a thread of the search.
+     */
+    private static final class Worker {
+        /** The board of the thread. */
+        private final PerftBoard board;
+        /** Move lists of every depth. */
+        private PerftBoard.MoveList[] moves = new PerftBoard.MoveList[0];
+
+        Worker(PerftBoard threadBoard) {
+            this.board = threadBoard;
+        }
+
+        PerftBoard.MoveList movesAt(int depth) {
+            if (depth >= moves.length) {
+                int oldLength = moves.length;
+                moves = Arrays.copyOf(moves, depth + 1);
+                for (int i = oldLength; i < moves.length; i++) {
+                    moves[i] = new PerftBoard.MoveList();
                 }
             }
+            return moves[depth];
         }
-        return numOfCaptures;
     }
 }
 
 /**
- * Class Bishop of type {@link ChessPiece}.
+ * Class {@code TranspositionTable}, a fixed-size table of search results keyed by 64-bit position hash.
+ * Every entry takes two longs, the key xor-ed with the data and the data itself. Threads read and write
+ * entries without locks, a torn entry fails the xor check and is treated as a miss, a new entry
+ * always replaces the old one.
  */
-class Bishop extends ChessPiece implements BishopMovement {
+class TranspositionTable {
+    /** Value returned by {@link #probe(long, int)} when the position is not in the table. */
+    static final long NOT_FOUND = -1;
+    /** Number of low bits of the data that keep the depth. */
+    private static final int DEPTH_BITS = 8;
+    /** Mask of the depth in the data. */
+    private static final long DEPTH_MASK = (1L << DEPTH_BITS) - 1;
+    /** Largest value that fits into the data next to the depth. */
+    private static final long MAX_VALUE = (1L << (Long.SIZE - DEPTH_BITS)) - 1;
+    /** Number of bytes taken by an entry. */
+    private static final int ENTRY_BYTES = 2 * Long.BYTES;
+    /** Access to elements of {@link #slots} that can not be torn. */
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /** Pairs of the key xor-ed with the data and the data. */
+    private final long[] slots;
+    /** Mask of the entry index, the number of entries is a power of two. */
+    private final int mask;
+    /** Number of probes that found the position. */
+    private final LongAdder hits = new LongAdder();
+    /** Number of probes that did not find the position. */
+    private final LongAdder misses = new LongAdder();
+    /** Number of misses on entries taken by another position. */
+    private final LongAdder collisions = new LongAdder();
+
     /**
-     * Instantiates a new Bishop.
+     * Instantiates a new Transposition table, the size is cut to fit into half of the heap
+     * and into one array of two longs per entry.
      *
-     * @param position the position
-     * @param color    the color
+     * @param sizeMb the size in megabytes
      */
-    Bishop(PiecePosition position, PieceColor color) {
-        super(position, color);
-    }
-
-
-    /** function that calls implementation of possible moves counter for Bishop. */
-    @Override
-    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
-        return getDiagonalMovesCount(this.position, this.color, positions, boardSize);
+    TranspositionTable(int sizeMb) {
+        final long megabyte = 1024 * 1024;
+        final int maxEntries = 1 << 29;
+        long bytes = Math.min(sizeMb * megabyte, Runtime.getRuntime().maxMemory() / 2);
+        long wanted = Math.max(1, Math.min(maxEntries, bytes / ENTRY_BYTES));
+        int entries = (int) Long.highestOneBit(wanted);
+        this.slots = new long[entries * 2];
+        this.mask = entries - 1;
     }
 
-    /** function that calls implementation of possible captures counter for Bishop. */
-    @Override
-    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
-        return getDiagonalCapturesCount(this.position, this.color, positions, boardSize);
+    /**
+     * Find the value stored for the position.
+     *
+     * @param key   the hash of position
+     * @param depth the depth of search
+     * @return the value or {@link #NOT_FOUND}
+     */
+    public long probe(long key, int depth) {
+        int index = ((int) key & mask) * 2;
+        long data = (long) SLOTS.getOpaque(slots, index + 1);
+        long storedKey = (long) SLOTS.getOpaque(slots, index) ^ data;
+        if (data != 0 && storedKey == key && (data & DEPTH_MASK) == depth) {
+            hits.increment();
+            return data >>> DEPTH_BITS;
+        }
+        misses.increment();
+        if (data != 0) {
+            collisions.increment();
+        }
+        return NOT_FOUND;
     }
-}
-
 
-/**
- * Class Rook of type {@link ChessPiece}.
- */
-class Rook extends ChessPiece implements RookMovement {
     /**
-     * Instantiates a new Rook.
+     * Store the value of the position, replacing the entry in its place.
      *
-     * @param position the position
-     * @param color    the color
+     * @param key   the hash of position
+     * @param depth the depth of search, from 1 to 255
+     * @param value the non-negative value
      */
-    Rook(PiecePosition position, PieceColor color) {
-        super(position, color);
+    public void store(long key, int depth, long value) {
+        if (value > MAX_VALUE) {
+            return;
+        }
+        int index = ((int) key & mask) * 2;
+        long data = value << DEPTH_BITS | depth;
+        SLOTS.setOpaque(slots, index, key ^ data);
+        SLOTS.setOpaque(slots, index + 1, data);
     }
 
-    /** function that calls implementation of possible moves counter for Rook. */
-    @Override
-    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
-        return getOrthogonalMovesCount(this.position, this.color, positions, boardSize);
+    /**
+     * Gets number of entries.
+     *
+     * @return the number of entries
+     */
+    public int getEntries() {
+        return mask + 1;
     }
 
-    /** function that calls implementation of possible captures counter for Rook. */
-    @Override
-    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
-        return getOrthogonalCapturesCount(this.position, this.color, positions, boardSize);
+    /**
+     * Gets number of hits.
+     *
+     * @return the number of probes that found the position
+     */
+    public long getHits() {
+        return hits.sum();
     }
-}
 
-/**
- * Class Queen of type {@link ChessPiece}.
- */
-class Queen extends ChessPiece implements BishopMovement, RookMovement {
     /**
-     * Instantiates a new Queen.
+     * Gets number of misses.
      *
-     * @param position the position
-     * @param color    the color
+     * @return the number of probes that did not find the position
      */
-    Queen(PiecePosition position, PieceColor color) {
-        super(position, color);
+    public long getMisses() {
+        return misses.sum();
     }
 
-    /** function that calls implementation of possible moves counter for Queen. */
-    @Override
-    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
-        return getDiagonalMovesCount(this.position, this.color, positions, boardSize)
-               + getOrthogonalMovesCount(this.position, this.color, positions, boardSize);
+    /**
+     * Gets number of collisions.
+     *
+     * @return the number of misses on entries taken by another position
+     */
+    public long getCollisions() {
+        return collisions.sum();
     }
 
-    /** function that calls implementation of possible captures counter for Queen. */
-    @Override
-    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
-        return getDiagonalCapturesCount(this.position, this.color, positions, boardSize)
-               + getOrthogonalCapturesCount(this.position, this.color, positions, boardSize);
+    public String toString() {
+        return getEntries() + " entries, " + getHits() + " hits, " + getMisses() + " misses, "
+               + getCollisions() + " collisions";
     }
 }
 
 /**
- * Class Board that interconnects instances of {@link ChessPiece}.
+ * Class {@code EvaluationTrace} that records the events of a run with the JDK Flight Recorder.
+ * The recording is written to its file when the program exits, also after an error of input.
  */
-class Board {
+final class EvaluationTrace {
+    /** Type of the evaluation batch event. */
+    private static final EventType BATCH_TYPE = EventType.getEventType(EvaluationBatchEvent.class);
+
+    private EvaluationTrace() {
+    }
 
     /**
-     * Instance of class {@link ErrorWriter}.
-     * Used to throw exceptions
+     * Start recording of the events of this program.
+     *
+     * @param file the file of the recording
+     * @throws IOException if the file can not be written
      */
-    private ErrorWriter err = new ErrorWriter();
+    static void start(Path file) throws IOException {
+        Recording recording = new Recording();
+        recording.setName("chess");
+        recording.enable(ParseEvent.class);
+        recording.enable(BoardBuildEvent.class);
+        recording.enable(EvaluationBatchEvent.class);
+        recording.enable(EngineChoiceEvent.class);
+        recording.enable(OutputEvent.class);
+        recording.setDestination(file);
+        recording.setDumpOnExit(true);
+        recording.start();
+    }
+
     /**
-     * The Positions to pieces {@link HashMap} - used to bind {@link ChessPiece} with {@link PiecePosition}.
+     * Are evaluation batches recorded, engines evaluate pieces in batches of a type only for a recording.
+     *
+     * @return true if a recording takes the batch events
      */
-    private Map<String, ChessPiece> positionsToPieces = new HashMap();
+    static boolean isBatchTraced() {
+        return BATCH_TYPE.isEnabled();
+    }
+}
 
+/**
+ * Class {@code ChessEvent}, an event of a run tagged with the board size and the number of pieces.
+ */
+@Category("Chess")
+abstract class ChessEvent extends Event {
     /** A variable that represents size of a ChessBoard. */
-    private int size;
+    @Label("Board Size")
+    int boardSize;
+
+    /** Number of pieces. */
+    @Label("Pieces")
+    int pieces;
 
     /**
-     * Instantiates a new Board.
+     * Tag the event with the position.
      *
-     * @param boardSize the board size
+     * @param size  the board size
+     * @param count the number of pieces
      */
-    Board(int boardSize) {
-        this.size = boardSize;
+    void tag(int size, int count) {
+        this.boardSize = size;
+        this.pieces = count;
     }
+}
+
+/**
+ * Class {@code ParseEvent}, checking the input and reading the pieces.
+ */
+@Name("chess.Parse")
+@Label("Parse")
+class ParseEvent extends ChessEvent {
+}
+
+/**
+ * Class {@code BoardBuildEvent}, placing the pieces on the board.
+ */
+@Name("chess.BoardBuild")
+@Label("Board Build")
+class BoardBuildEvent extends ChessEvent {
+}
+
+/**
+ * Class {@code EvaluationBatchEvent}, counting moves of the pieces of one type and color.
+ */
+@Name("chess.EvaluationBatch")
+@Label("Evaluation Batch")
+class EvaluationBatchEvent extends ChessEvent {
+    /** Name of the engine. */
+    @Label("Engine")
+    String engine;
+
+    /** Type of the pieces. */
+    @Label("Piece Type")
+    String pieceType;
+
+    /** Color of the pieces. */
+    @Label("Piece Color")
+    String pieceColor;
+
+    /** Number of pieces of the batch. */
+    @Label("Count")
+    int count;
+
+    /** Number of entries of the board read by the batch, entries of the map or cells of the grid. */
+    @Label("Entries Scanned")
+    long entriesScanned;
 
     /**
-     * Gets piece possible moves count.
+     * Describe the batch.
      *
-     * @param piece the piece
-     * @return the piece possible moves count
+     * @param engineName the name of the engine
+     * @param type       the type of pieces
+     * @param color      the color of pieces
+     * @param batchSize  the number of pieces
+     * @param scanned    the number of entries read
      */
-    public int getPiecePossibleMovesCount(ChessPiece piece) {
-        return piece.getMovesCount(positionsToPieces, size);
+    void describe(String engineName, PieceType type, PieceColor color, int batchSize, long scanned) {
+        this.engine = engineName;
+        this.pieceType = type.name();
+        this.pieceColor = color.name();
+        this.count = batchSize;
+        this.entriesScanned = scanned;
     }
+}
+
+/**
+ * Class {@code EngineChoiceEvent}, evaluating the position with the engine chosen by the cost model.
+ */
+@Name("chess.EngineChoice")
+@Label("Engine Choice")
+class EngineChoiceEvent extends ChessEvent {
+    /** Name of the chosen engine. */
+    @Label("Engine")
+    String engine;
+
+    /** Time predicted by the cost model. */
+    @Label("Predicted Nanos")
+    long predictedNanos;
+
+    /** Time the evaluation took. */
+    @Label("Actual Nanos")
+    long actualNanos;
 
     /**
-     * Gets piece possible captures count.
+     * Describe the choice.
      *
-     * @param piece the piece
-     * @return the piece possible captures count
+     * @param engineName the name of the engine
+     * @param predicted  the predicted time in nanoseconds
+     * @param actual     the measured time in nanoseconds
      */
-    public int getPiecePossibleCapturesCount(ChessPiece piece) {
-        return piece.getCapturesCount(positionsToPieces, size);
+    void describe(String engineName, long predicted, long actual) {
+        this.engine = engineName;
+        this.predictedNanos = predicted;
+        this.actualNanos = actual;
     }
+}
+
+/**
+ * Class {@code OutputEvent}, writing the counts to the output file.
+ */
+@Name("chess.Output")
+@Label("Output")
+class OutputEvent extends ChessEvent {
+}
+
+/**
+ * Class {@code ScanCountingMap}, a view of the pieces of {@link Board} that counts the entries
+ * the movement rules read: every entry of an iteration and every lookup of a cell.
+ */
+class ScanCountingMap extends AbstractMap<String, ChessPiece> {
+    /** The pieces of the board. */
+    private final Map<String, ChessPiece> positions;
+    /** Number of entries read. */
+    private long scanned;
 
     /**
-     * Add piece.
+     * Instantiates a new Scan counting map.
      *
-     * @param piece the piece
+     * @param positionsToPieces the pieces of the board
      */
-    public void addPiece(ChessPiece piece) {
-        String coordinates = piece.position.getX() + " " + piece.position.getY();
-        if (positionsToPieces.containsKey(coordinates)) {
-            err.reportFatalError(new InvalidPiecePositionException());
-        }
-        positionsToPieces.put(coordinates, piece);
+    ScanCountingMap(Map<String, ChessPiece> positionsToPieces) {
+        this.positions = positionsToPieces;
     }
 
     /**
-     * Gets piece.
+     * Gets number of entries read.
      *
-     * @param position the position
-     * @return the piece
+     * @return the number of entries
      */
-    public ChessPiece getPiece(PiecePosition position) {
-        String coordinates = position.toString();
+    public long getScanned() {
+        return scanned;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        scanned += 1;
+        return positions.containsKey(key);
+    }
+
+    @Override
+    public ChessPiece get(Object key) {
+        scanned += 1;
+        return positions.get(key);
+    }
+
+    @Override
+    public Set<Map.Entry<String, ChessPiece>> entrySet() {
+        return new AbstractSet<Map.Entry<String, ChessPiece>>() {
+            @Override
+            public Iterator<Map.Entry<String, ChessPiece>> iterator() {
+                Iterator<Map.Entry<String, ChessPiece>> entries = positions.entrySet().iterator();
+                return new Iterator<Map.Entry<String, ChessPiece>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
 
-        for (Map.Entry<String, ChessPiece> pair : positionsToPieces.entrySet()) {
-            if (pair.getKey().equals(coordinates)) {
-                return pair.getValue();
+                    @Override
+                    public Map.Entry<String, ChessPiece> next() {
+                        scanned += 1;
+                        return entries.next();
+                    }
+                };
             }
-        }
-        return null;
+
+            @Override
+            public int size() {
+                return positions.size();
+            }
+        };
     }
 }
 
@@ -1170,3 +8741,46 @@ class InvalidInputException extends Exception {
         return "Invalid input";
     }
 }
+
+/**
+ * Class Invalid snapshot exception, a snapshot that can not be used for the input.
+ */
+class InvalidSnapshotException extends Exception {
+    /** Version of the serialized form. */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Instantiates a new Invalid snapshot exception.
+     *
+     * @param reason the reason the snapshot is rejected
+     */
+    InvalidSnapshotException(String reason) {
+        super(reason);
+    }
+}
+
+/**
+ * Class Rejected input exception, carries the error that stopped handling of an input.
+ */
+class RejectedInputException extends RuntimeException {
+    /** Version of the serialized form. */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Instantiates a new Rejected input exception.
+     *
+     * @param error the error of the input
+     */
+    RejectedInputException(Exception error) {
+        super(error);
+    }
+
+    /**
+     * Gets error.
+     *
+     * @return the error of the input
+     */
+    public Exception getError() {
+        return (Exception) getCause();
+    }
+}